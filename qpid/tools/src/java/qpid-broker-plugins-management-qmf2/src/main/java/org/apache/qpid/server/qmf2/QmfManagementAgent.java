@@ -25,8 +25,20 @@ package org.apache.qpid.server.qmf2;
 
 import static org.apache.qpid.qmf2.common.WorkItem.WorkItemType.METHOD_CALL;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,7 +47,9 @@ import org.apache.qpid.qmf2.agent.Agent;
 import org.apache.qpid.qmf2.agent.MethodCallParams;
 import org.apache.qpid.qmf2.agent.MethodCallWorkItem;
 import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.WorkItem;
@@ -81,6 +95,9 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     // Set heartbeat interval to 10 seconds. TODO Should probably be config driven, but I *think* that this is
     // different than "heartbeat.delay" and "heartbeat.timeoutFactor" currently present in the config?
     private static final int HEARTBEAT_INTERVAL = 10;
+
+    // The number of Exchanges or Queues added by each task during the parallel initial load of Management Objects.
+    private static final int INITIAL_LOAD_CHUNK_SIZE = 500;
     private Agent _agent = null;
 
     // The first Connection Object relates to the QmfManagementAgent, we use this flag to avoid mapping that Connection
@@ -109,7 +126,48 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      * allow navigation back to the concrete subclasses of ConfiguredObject if necessary.
      * The capacity of 100 is pretty arbitrary but the default of 16 seems too low for a ManagementAgent.
      */
-    private Map<ConfiguredObject, QmfAgentData> _objects = new ConcurrentHashMap<ConfiguredObject, QmfAgentData>(100);
+    private final ConcurrentMap<ConfiguredObject, QmfAgentData> _objects =
+        new ConcurrentHashMap<ConfiguredObject, QmfAgentData>(100);
+
+    /**
+     * Indexes of the links between ConfiguredObjects that have QmfAgentData, keyed by parent and by child. A Binding
+     * has two parents (its Queue and its Exchange) as does a Consumer (its Queue and its Session). These allow
+     * childRemoved() to remove the whole subtree below a removed Object, e.g. the Sessions and Consumers of a
+     * closed Connection, without searching the _objects Map.
+     */
+    private final ConcurrentMap<ConfiguredObject, Set<ConfiguredObject>> _children =
+        new ConcurrentHashMap<ConfiguredObject, Set<ConfiguredObject>>(100);
+    private final ConcurrentMap<ConfiguredObject, Set<ConfiguredObject>> _parents =
+        new ConcurrentHashMap<ConfiguredObject, Set<ConfiguredObject>>(100);
+
+    /**
+     * The ConfiguredObjects whose QmfAgentData was created by the initial load, whose QMF2 Events are raised once the
+     * parallel load has completed. Objects added concurrently via childAdded() raise their own Events so aren't
+     * included. Only used by registerConfigurationChangeListeners().
+     */
+    private final Set<ConfiguredObject> _initialLoad =
+        Collections.newSetFromMap(new ConcurrentHashMap<ConfiguredObject, Boolean>());
+
+    /**
+     * Method calls are not run on the Agent's listener thread, which would let a single slow call (such as a durable
+     * queue creation blocking on store I/O, or a purge of a large queue) stall every other management request.
+     * Instead each call is passed to one of these single threaded executors, chosen by hashing an ordering key
+     * derived from the object the call acts upon. This lets calls on unrelated objects run concurrently whilst
+     * guaranteeing that calls on the same object are executed in the order in which they were received. Calls
+     * that depend upon more than one object are serialised with respect to all other calls.
+     */
+    private final ExecutorService[] _methodExecutors;
+
+    /**
+     * Constructor. Creates the AMQP Connection to the Broker and starts the QMF2 Agent using a single method
+     * worker thread.
+     * @param url the Connection URL to be used to construct the AMQP Connection.
+     * @param broker the root Broker Management Object from which the other Management Objects may be obtained.
+     */
+    public QmfManagementAgent(final String url, final Broker broker)
+    {
+        this(url, broker, 1);
+    }
 
     /**
      * Constructor. Creates the AMQP Connection to the Broker and starts the QMF2 Agent.
@@ -120,12 +178,28 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      * queues and exchanges with {@literal [vhost:<vhost-name>/]<object-name>} in other words if we want to add things to
      * the non-default Virtual Host prefix their names with {@literal [vhost:<vhost-name>/]}. This approach *ought* to allow
      * non-Virtual Host aware command line tools the ability to add queues/exchanges to a particular vhost.
+     * @param methodWorkerThreads the number of worker threads used to execute QMF method calls.
      */
-    public QmfManagementAgent(final String url, final Broker broker)
+    public QmfManagementAgent(final String url, final Broker broker, final int methodWorkerThreads)
     {
         _broker = broker;
         _defaultVirtualHost = broker.getDefaultVirtualHost();
 
+        _methodExecutors = new ExecutorService[Math.max(methodWorkerThreads, 1)];
+        for (int i = 0; i < _methodExecutors.length; i++)
+        {
+            final String threadName = "QMF2 Method Worker " + i;
+            _methodExecutors[i] = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(final Runnable r)
+                {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
         try
         {
             // Create the actual JMS Connection. ConnectionHelper allows us to work with a variety of URL
@@ -189,6 +263,11 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      */
     public void close()
     {
+        for (ExecutorService executor : _methodExecutors)
+        {
+            executor.shutdownNow();
+        }
+
         if (isConnected())
         {
             _agent.destroy();
@@ -205,18 +284,26 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     }
 
     /**
-     * This method initialises the initial set of QmfAgentData Objects and tracks changes to the Broker Management 
+     * This method initialises the initial set of QmfAgentData Objects and tracks changes to the Broker Management
      * Objects via the childAdded() method call.
+     * <p>
+     * Connections and their children are added on the calling thread, because the first Connection seen is the
+     * QmfManagementAgent's own Connection, which we hide. Exchanges and Queues, which on a large broker make up the
+     * vast majority of Management Objects, are split into chunks that are added in parallel. The Events for the
+     * Objects added here are raised once they have all been added, in the order in which they would have been raised
+     * had the Objects been added one at a time, see raiseInitialLoadEvents().
      */
     private void registerConfigurationChangeListeners()
     {
-        childAdded(null, _broker);
+        childAdded(null, _broker, false);
 
         if (_log.isDebugEnabled())
         {
             _log.debug("Registering model listeners for broker " + _broker);
         }
 
+        List<VirtualHost<?,?,?>> vhosts = new ArrayList<VirtualHost<?,?,?>>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
         for (VirtualHostNode<?> vhostNode : _broker.getVirtualHostNodes())
         {
 
@@ -235,77 +322,237 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             if (vhost != null)
             {
                 vhost.addChangeListener(this);
+                vhosts.add(vhost);
 
                 addListenersForConnectionsAndChildren(vhost);
-                addListenersForExchangesAndChildren(vhost);
-                addListenersForQueuesAndChildren(vhost);
+                addListenersForExchangesAndChildren(vhost, tasks);
+                addListenersForQueuesAndChildren(vhost, tasks);
             }
         }
 
+        runInitialLoadTasks(tasks);
+        raiseInitialLoadEvents(vhosts);
 
         if (_log.isDebugEnabled())
         {
-            _log.debug("Registered model listeners");
+            _log.debug("Registered model listeners for " + _objects.size() + " objects");
         }
 
     }
 
-    private void addListenersForQueuesAndChildren(final VirtualHost<?, ?, ?> vhost)
+    /**
+     * Runs the tasks created by registerConfigurationChangeListeners() using a temporary pool of up to one thread
+     * per available processor, returning when all of the tasks have completed.
+     * @param tasks the tasks that add the initial Exchange and Queue Management Objects.
+     */
+    private void runInitialLoadTasks(final List<Callable<Void>> tasks)
     {
-        for (Queue<?> queue : vhost.getQueues())
+        if (tasks.isEmpty())
         {
-            boolean agentQueue = false;
-            for (Binding binding : queue.getBindings())
+            return;
+        }
+
+        int threads = Math.max(Math.min(Runtime.getRuntime().availableProcessors(), tasks.size()), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable r)
+            {
+                Thread thread = new Thread(r, "QMF2 Initial Load");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try
+        {
+            for (Future<Void> future : executor.invokeAll(tasks))
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException ee)
+                {
+                    _log.error("Exception caught while adding initial Management Objects", ee.getCause());
+                }
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Raises the QMF2 Events for the Management Objects added by the initial load. For each VirtualHost the Client
+     * Connect Events are raised, then the Exchange Declare Event of each Exchange followed by the Bind Events of its
+     * Bindings, then the Queue Declare Event of each Queue followed by the Bind Events of any of its Bindings not
+     * already reported and the Subscribe Events of its Consumers.
+     * @param vhosts the VirtualHosts whose Management Objects were added by the initial load.
+     */
+    private void raiseInitialLoadEvents(final List<VirtualHost<?,?,?>> vhosts)
+    {
+        for (VirtualHost<?,?,?> vhost : vhosts)
+        {
+            for (Connection<?> connection : vhost.getConnections())
+            {
+                QmfAgentData data = _objects.get(connection);
+                if (data != null && _initialLoad.remove(connection))
+                {
+                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientConnectEvent());
+                }
+            }
+
+            for (Exchange<?> exchange : vhost.getExchanges())
             {
-                String key = binding.getName();
-                if (key.equals("broker") || key.equals("console.request.agent_locate") ||
-                    key.startsWith("apache.org:qpidd:"))
+                QmfAgentData data = _objects.get(exchange);
+                if (data != null && _initialLoad.remove(exchange))
+                {
+                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeclareEvent());
+                }
+
+                for (Binding binding : exchange.getBindings())
                 {
-                    agentQueue = true;
-                    break;
+                    raiseInitialLoadBindEvent(binding);
                 }
             }
 
-            // Don't add QMF related bindings or Queues in registerConfigurationChangeListeners as those will
-            // relate to the Agent itself and we want to "hide" those to be consistent with the C++ Broker.
-            if (!agentQueue)
+            for (Queue<?> queue : vhost.getQueues())
             {
-                childAdded(vhost, queue);
+                QmfAgentData data = _objects.get(queue);
+                if (data != null && _initialLoad.remove(queue))
+                {
+                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
+                }
 
                 for (Binding binding : queue.getBindings())
                 {
-                    childAdded(queue, binding);
+                    raiseInitialLoadBindEvent(binding);
                 }
 
                 for (Consumer subscription : queue.getChildren(Consumer.class))
                 {
-                    childAdded(queue, subscription);
+                    data = _objects.get(subscription);
+                    if (data != null && _initialLoad.remove(subscription))
+                    {
+                        _agent.raiseEvent(
+                            ((org.apache.qpid.server.qmf2.agentdata.Subscription)data).createSubscribeEvent());
+                    }
                 }
             }
         }
+        _initialLoad.clear();
     }
 
-    private void addListenersForExchangesAndChildren(final VirtualHost<?, ?, ?> vhost)
+    /**
+     * Raises the Bind Event for a Binding added by the initial load, unless it has already been raised.
+     * @param binding the Binding.
+     */
+    private void raiseInitialLoadBindEvent(final Binding binding)
+    {
+        QmfAgentData data = _objects.get(binding);
+        if (data != null && _initialLoad.remove(binding) &&
+            !binding.getExchange().getName().equals("<<default>>")) // No Event for default direct.
+        {
+            _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createBindEvent());
+        }
+    }
+
+    private void addListenersForQueuesAndChildren(final VirtualHost<?, ?, ?> vhost, final List<Callable<Void>> tasks)
+    {
+        final List<Queue<?>> queues = new ArrayList<Queue<?>>(vhost.getQueues());
+        for (int i = 0; i < queues.size(); i += INITIAL_LOAD_CHUNK_SIZE)
+        {
+            final List<Queue<?>> chunk = queues.subList(i, Math.min(i + INITIAL_LOAD_CHUNK_SIZE, queues.size()));
+            tasks.add(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    for (Queue<?> queue : chunk)
+                    {
+                        addQueueAndChildren(vhost, queue);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private void addQueueAndChildren(final VirtualHost<?, ?, ?> vhost, final Queue<?> queue)
+    {
+        boolean agentQueue = false;
+        for (Binding binding : queue.getBindings())
+        {
+            String key = binding.getName();
+            if (key.equals("broker") || key.equals("console.request.agent_locate") ||
+                key.startsWith("apache.org:qpidd:"))
+            {
+                agentQueue = true;
+                break;
+            }
+        }
+
+        // Don't add QMF related bindings or Queues in registerConfigurationChangeListeners as those will
+        // relate to the Agent itself and we want to "hide" those to be consistent with the C++ Broker.
+        if (!agentQueue)
+        {
+            childAdded(vhost, queue, false);
+
+            for (Binding binding : queue.getBindings())
+            {
+                childAdded(queue, binding, false);
+            }
+
+            for (Consumer subscription : queue.getChildren(Consumer.class))
+            {
+                childAdded(queue, subscription, false);
+            }
+        }
+    }
+
+    private void addListenersForExchangesAndChildren(final VirtualHost<?, ?, ?> vhost, final List<Callable<Void>> tasks)
+    {
+        final List<Exchange<?>> exchanges = new ArrayList<Exchange<?>>(vhost.getExchanges());
+        for (int i = 0; i < exchanges.size(); i += INITIAL_LOAD_CHUNK_SIZE)
+        {
+            final List<Exchange<?>> chunk =
+                exchanges.subList(i, Math.min(i + INITIAL_LOAD_CHUNK_SIZE, exchanges.size()));
+            tasks.add(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    for (Exchange<?> exchange : chunk)
+                    {
+                        addExchangeAndChildren(vhost, exchange);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private void addExchangeAndChildren(final VirtualHost<?, ?, ?> vhost, final Exchange<?> exchange)
     {
         // The code blocks for adding Bindings (and adding Queues) contain checks to see if what is being added
         // relates to Queues or Bindings for the QmfManagementAgent. If they are QmfManagementAgent related
         // we avoid registering the Object as a QMF Object, in other words we "hide" QmfManagementAgent QMF Objects.
         // This is done to be consistent with the C++ broker which also "hides" its own Connection, Queue & Binding.
-        for (Exchange<?> exchange : vhost.getExchanges())
-        {
-            childAdded(vhost, exchange);
+        childAdded(vhost, exchange, false);
 
-            for (Binding binding : exchange.getBindings())
+        for (Binding binding : exchange.getBindings())
+        {
+            String key = binding.getName();
+            if (key.equals("broker") || key.equals("console.request.agent_locate") ||
+                key.startsWith("apache.org:qpidd:") || key.startsWith("TempQueue"))
+            { // Don't add QMF related Bindings in registerConfigurationChangeListeners as those will relate
+            } // to the Agent and we want to "hide" those.
+            else
             {
-                String key = binding.getName();
-                if (key.equals("broker") || key.equals("console.request.agent_locate") ||
-                    key.startsWith("apache.org:qpidd:") || key.startsWith("TempQueue"))
-                { // Don't add QMF related Bindings in registerConfigurationChangeListeners as those will relate
-                } // to the Agent and we want to "hide" those.
-                else
-                {
-                    childAdded(exchange, binding);
-                }
+                childAdded(exchange, binding, false);
             }
         }
     }
@@ -314,23 +561,56 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     {
         for (Connection<?> connection : vhost.getConnections())
         {
-            childAdded(vhost, connection);
+            childAdded(vhost, connection, false);
 
             for (Session<?> session : connection.getSessions())
             {
-                childAdded(connection, session);
+                childAdded(connection, session, false);
 
                 if (session.getConsumers() != null)
                 {
                     for (Consumer subscription : session.getConsumers())
                     {
-                        childAdded(session, subscription);
+                        childAdded(session, subscription, false);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Adds a value to the Set held in one of the parent/child index Maps, creating the Set if necessary.
+     * @param index the index Map to update.
+     * @param key the ConfiguredObject whose Set should be updated.
+     * @param value the ConfiguredObject to add to the Set.
+     */
+    private static void addToIndex(final ConcurrentMap<ConfiguredObject, Set<ConfiguredObject>> index,
+                                   final ConfiguredObject key, final ConfiguredObject value)
+    {
+        Set<ConfiguredObject> set = index.get(key);
+        if (set == null)
+        {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<ConfiguredObject, Boolean>());
+            Set<ConfiguredObject> existing = index.putIfAbsent(key, set);
+            if (existing != null)
+            {
+                set = existing;
+            }
+        }
+        set.add(value);
+    }
+
+    /**
+     * Registers newly created QmfAgentData in the _objects Map unless another thread got there first.
+     * @param child the ConfiguredObject that the QmfAgentData represents.
+     * @param data the newly created QmfAgentData.
+     * @return data if it was registered, otherwise null.
+     */
+    private QmfAgentData register(final ConfiguredObject child, final QmfAgentData data)
+    {
+        return (_objects.putIfAbsent(child, data) == null) ? data : null;
+    }
+
 
     // ************************* ConfigurationChangeListener implementation methods *************************
 
@@ -375,6 +655,23 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      */
     @Override
     public void childAdded(final ConfiguredObject object, final ConfiguredObject child)
+    {
+        childAdded(object, child, true);
+    }
+
+    /**
+     * Creates the QMF2 Management Object for a child ConfiguredObject, as described for childAdded(object, child).
+     * <p>
+     * This may be called concurrently for the same child (e.g. a Binding reached via both its Queue and its
+     * Exchange during the initial load) so the QmfAgentData is registered with putIfAbsent and only the thread
+     * that registers it adds it to the Agent. The parent/child link is also recorded so that removing a parent
+     * can remove its whole subtree.
+     * @param object the parent object that the child is being added to.
+     * @param child the child object being added.
+     * @param raiseEvents true if the QMF2 Events for newly created Management Objects should be raised, false if they
+     * are added by the initial load, which raises their Events once it has completed.
+     */
+    private void childAdded(final ConfiguredObject object, final ConfiguredObject child, final boolean raiseEvents)
     {
 
         if (_log.isDebugEnabled())
@@ -397,13 +694,15 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             {
                 // If the parent object is the default vhost set it to null so that the Connection ignores it.
                 VirtualHost vhost = (object.getName().equals(_defaultVirtualHost)) ? null : (VirtualHost)object;
-                data = new org.apache.qpid.server.qmf2.agentdata.Connection(vhost, (Connection)child);
-                _objects.put(child, data);
+                data = register(child, new org.apache.qpid.server.qmf2.agentdata.Connection(vhost, (Connection)child));
 
                 // Raise a Client Connect Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientConnectEvent());
+                if (data != null && raiseEvents)
+                {
+                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientConnectEvent());
+                }
             }
-            agentConnection = false; // Only ignore the first Connection, which is the one from the Agent. 
+            agentConnection = false; // Only ignore the first Connection, which is the one from the Agent.
         }
         else if (child instanceof Session)
         {
@@ -412,8 +711,8 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 QmfAgentData ref = _objects.get(object); // Get the Connection QmfAgentData so we can get connectionRef.
                 if (ref != null)
                 {
-                    data = new org.apache.qpid.server.qmf2.agentdata.Session((Session)child, ref.getObjectId());
-                    _objects.put(child, data);
+                    data = register(child, new org.apache.qpid.server.qmf2.agentdata.Session((Session)child,
+                                                                                             ref.getObjectId()));
                 }
             }
         }
@@ -423,12 +722,13 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             {
                 // If the parent object is the default vhost set it to null so that the Connection ignores it.
                 VirtualHost vhost = (object.getName().equals(_defaultVirtualHost)) ? null : (VirtualHost)object;
-                data = new org.apache.qpid.server.qmf2.agentdata.Exchange(vhost, (Exchange)child);
-                _objects.put(child, data);
+                data = register(child, new org.apache.qpid.server.qmf2.agentdata.Exchange(vhost, (Exchange)child));
 
                 // Raise an Exchange Declare Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeclareEvent());
-
+                if (data != null && raiseEvents)
+                {
+                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeclareEvent());
+                }
             }
         }
         else if (child instanceof Queue)
@@ -437,11 +737,13 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             {
                 // If the parent object is the default vhost set it to null so that the Connection ignores it.
                 VirtualHost vhost = (object.getName().equals(_defaultVirtualHost)) ? null : (VirtualHost)object;
-                data = new org.apache.qpid.server.qmf2.agentdata.Queue(vhost, (Queue)child);
-                _objects.put(child, data);
+                data = register(child, new org.apache.qpid.server.qmf2.agentdata.Queue(vhost, (Queue)child));
 
                 // Raise a Queue Declare Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
+                if (data != null && raiseEvents)
+                {
+                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
+                }
             }
         }
         else if (child instanceof Binding)
@@ -452,11 +754,10 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             // depending on whether Queue or Exchange was the parent of this addChild() call.
             if (!_objects.containsKey(child))
             {
-                data = new org.apache.qpid.server.qmf2.agentdata.Binding((Binding)child);
-                _objects.put(child, data);
+                data = register(child, new org.apache.qpid.server.qmf2.agentdata.Binding((Binding)child));
 
                 String eName = ((Binding)child).getExchange().getName();
-                if (!eName.equals("<<default>>")) // Don't send Event for Binding to default direct.
+                if (data != null && raiseEvents && !eName.equals("<<default>>")) // No Event for default direct.
                 {
                     // Raise a Bind Event.
                     _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createBindEvent());
@@ -467,54 +768,75 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 (org.apache.qpid.server.qmf2.agentdata.Binding)_objects.get(child);
 
             QmfAgentData ref = _objects.get(object);
-            if (ref != null)
+            if (ref != null && binding != null)
             {
-                if (object instanceof Queue)
-                {
-                    binding.setQueueRef(ref.getObjectId());
-                }
-                else if (object instanceof Exchange)
+                synchronized (binding) // The Queue and Exchange paths may set their references concurrently.
                 {
-                    binding.setExchangeRef(ref.getObjectId());
+                    if (object instanceof Queue)
+                    {
+                        binding.setQueueRef(ref.getObjectId());
+                    }
+                    else if (object instanceof Exchange)
+                    {
+                        binding.setExchangeRef(ref.getObjectId());
+                    }
                 }
             }
         }
         else if (child instanceof Consumer) // AKA Subscription
         {
-            // Subscriptions are a little more complex because in QMF Subscriptions contain sessionRef and queueRef 
+            // Subscriptions are a little more complex because in QMF Subscriptions contain sessionRef and queueRef
             // properties whereas with the Java Broker model Consumer is a child of Queue and Session. To cope with
             // this we first try to create or retrieve the QMF Subscription Object then add either the Queue or
             // Session reference depending on whether Queue or Session was the parent of this addChild() call.
             if (!_objects.containsKey(child))
             {
-                data = new org.apache.qpid.server.qmf2.agentdata.Subscription((Consumer)child);
-                _objects.put(child, data);
-           }
+                data = register(child, new org.apache.qpid.server.qmf2.agentdata.Subscription((Consumer)child));
+            }
 
             org.apache.qpid.server.qmf2.agentdata.Subscription subscription =
                 (org.apache.qpid.server.qmf2.agentdata.Subscription)_objects.get(child);
 
             QmfAgentData ref = _objects.get(object);
-            if (ref != null)
+            if (ref != null && subscription != null)
             {
-                if (object instanceof Queue)
+                synchronized (subscription) // The Queue and Session paths may set their references concurrently.
                 {
-                    subscription.setQueueRef(ref.getObjectId(), (Queue)object);
-                    // Raise a Subscribe Event - N.B. Need to do it *after* we've set the queueRef.
-                    _agent.raiseEvent(subscription.createSubscribeEvent());
+                    if (object instanceof Queue)
+                    {
+                        subscription.setQueueRef(ref.getObjectId(), (Queue)object);
+                    }
+                    else if (object instanceof Session)
+                    {
+                        subscription.setSessionRef(ref.getObjectId());
+                    }
                 }
-                else if (object instanceof Session)
+
+                // Raise a Subscribe Event - N.B. Need to do it *after* we've set the queueRef.
+                if (raiseEvents && object instanceof Queue)
                 {
-                    subscription.setSessionRef(ref.getObjectId());
+                    _agent.raiseEvent(subscription.createSubscribeEvent());
                 }
             }
         }
 
+        // Record the parent/child link between Objects that both have QmfAgentData, e.g. Connection->Session,
+        // Session->Consumer, Queue->Binding, Exchange->Binding and Queue->Consumer.
+        if (object != null && _objects.containsKey(object) && _objects.containsKey(child))
+        {
+            addToIndex(_children, object, child);
+            addToIndex(_parents, child, object);
+        }
+
         try
         {
             // If we've created new QmfAgentData we register it with the Agent.
             if (data != null)
             {
+                if (!raiseEvents)
+                { // Added by the initial load, so its Events are raised by raiseInitialLoadEvents().
+                    _initialLoad.add(child);
+                }
                 _agent.addObject(data);
             }
         }
@@ -532,6 +854,10 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      * <p>
      * This method checks the type of the child ConfiguredObject that has been removed and raises the appropriate
      * QMF2 Events, it then destroys the QMF2 Management Object and removes the mapping between child and the QMF Object.
+     * <p>
+     * Any of the child's own children that are still present (e.g. the Sessions and Consumers of a Connection
+     * that has been closed) are removed too, found via the _children index so the cost is proportional to the
+     * size of the subtree. If the broker later reports their removal too, that call finds nothing to do.
      *
      * @param object the parent object that the child is being removed from.
      * @param child the child object being removed.
@@ -548,8 +874,9 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
 
         child.removeChangeListener(this);
 
-        // Look up the associated QmfAgentData and mark it for deletion by the Agent.
-        QmfAgentData data = _objects.get(child);
+        // Remove the mapping from the internal ConfiguredObject->QmfAgentData Map. Removing it first means that only
+        // one thread raises the Events and destroys the QmfAgentData if the removal is reported more than once.
+        QmfAgentData data = _objects.remove(child);
 
         if (data != null)
         {
@@ -590,16 +917,191 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             data.destroy();
         }
 
-        // Remove the mapping from the internal ConfiguredObject->QmfAgentData Map.
-        _objects.remove(child);
+        // Unlink the child from all of its parents, then remove any of its children that are still present.
+        Set<ConfiguredObject> parents = _parents.remove(child);
+        if (parents != null)
+        {
+            for (ConfiguredObject parent : parents)
+            {
+                Set<ConfiguredObject> siblings = _children.get(parent);
+                if (siblings != null)
+                {
+                    siblings.remove(child);
+                }
+            }
+        }
+
+        Set<ConfiguredObject> children = _children.remove(child);
+        if (children != null)
+        {
+            for (ConfiguredObject grandChild : children)
+            {
+                childRemoved(child, grandChild);
+            }
+        }
     }
 
     // ******************************* QmfEventListener implementation method *******************************
 
+    /**
+     * Returns the key used to order method calls, or null if the call must be serialised with all other calls.
+     * <p>
+     * Calls that act upon a single queue or exchange are keyed by the name of the Virtual Host and of the object,
+     * so a create or delete invoked on the Broker Object and a purge invoked on the Queue Object are ordered with
+     * respect to each other however the queue name was qualified. Calls that depend upon more than one object,
+     * such as binding operations, batch, reroute to a named exchange or anything we can't parse, return null.
+     * @param object the QmfAgentData that the method is being invoked on.
+     * @param methodName the name of the QMF method being invoked.
+     * @param inArgs the method's input arguments.
+     * @return the ordering key for the method call, or null if the call must be serialised.
+     */
+    private Object getOrderingKey(final QmfAgentData object, final String methodName, final QmfData inArgs)
+    {
+        if (object instanceof org.apache.qpid.server.qmf2.agentdata.Broker)
+        {
+            if (inArgs != null && (methodName.equals("create") || methodName.equals("delete")))
+            {
+                String type = inArgs.getStringValue("type");
+                String name = inArgs.getStringValue("name");
+                if (name != null && ("queue".equals(type) || "exchange".equals(type)))
+                {
+                    return getObjectKey(type, name);
+                }
+            }
+        }
+        else if (object instanceof org.apache.qpid.server.qmf2.agentdata.Queue)
+        {
+            String name = object.getStringValue("name");
+            if (name != null && (methodName.equals("purge") ||
+                (methodName.equals("reroute") && inArgs != null && inArgs.getBooleanValue("useAltExchange"))))
+            {
+                return getObjectKey("queue", name);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the normalised ordering key for a queue or exchange name of the form [vhost:{@literal <vhost-name>}/]{@literal <name>},
+     * applying the default Virtual Host if the name isn't prefixed.
+     * @param type the object type, either "queue" or "exchange".
+     * @param name the possibly Virtual Host qualified object name.
+     * @return the ordering key for the object.
+     */
+    private String getObjectKey(final String type, final String name)
+    {
+        String vhostName = _defaultVirtualHost;
+        String objectName = name;
+        int separator = name.indexOf('/');
+        if (name.startsWith("vhost:") && separator > 0)
+        {
+            vhostName = name.substring(6, separator);
+            objectName = name.substring(separator + 1);
+        }
+        return vhostName + "/" + type + ":" + objectName;
+    }
+
+    /**
+     * Passes a method call to the worker thread selected by its ordering key. If the key is null the call is
+     * serialised with respect to every other call by queueing a barrier on all of the worker threads: the call
+     * runs on the first worker once the calls queued ahead of it on every worker have completed and the other
+     * workers wait for it to complete before running the calls queued behind it. If the executor has been shut
+     * down an exception is returned to the Console.
+     * @param key the ordering key for the method call, or null if the call must be serialised.
+     * @param handle the reply handle used by raiseException() if the call can't be scheduled.
+     * @param methodName the name of the QMF method being invoked.
+     * @param task the task that actually invokes the method.
+     */
+    private void execute(final Object key, final Handle handle, final String methodName, final Runnable task)
+    {
+        try
+        {
+            if (key != null)
+            {
+                int index = (key.hashCode() & Integer.MAX_VALUE) % _methodExecutors.length;
+                _methodExecutors[index].execute(task);
+            }
+            else if (_methodExecutors.length == 1)
+            {
+                _methodExecutors[0].execute(task);
+            }
+            else
+            {
+                executeSerialised(task);
+            }
+        }
+        catch (RejectedExecutionException ree)
+        {
+            _agent.raiseException(handle, methodName + " rejected, QMF2 Management is shutting down.");
+        }
+    }
+
+    /**
+     * Queues a barrier on every worker thread that runs the supplied task on the first worker once all of the
+     * workers have reached the barrier. This is synchronized so that the barriers of two serialised calls are
+     * queued in the same order on every worker, otherwise each could wait on a worker held by the other.
+     * @param task the task that actually invokes the method.
+     * @throws RejectedExecutionException if the first worker has been shut down.
+     */
+    private synchronized void executeSerialised(final Runnable task)
+    {
+        final CountDownLatch arrived = new CountDownLatch(_methodExecutors.length);
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        _methodExecutors[0].execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    arrived.countDown();
+                    arrived.await();
+                    task.run();
+                }
+                catch (InterruptedException ie)
+                { // The executors are being shut down, so abandon the call.
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    completed.countDown();
+                }
+            }
+        });
+
+        for (int i = 1; i < _methodExecutors.length; i++)
+        {
+            try
+            {
+                _methodExecutors[i].execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        arrived.countDown();
+                        try
+                        {
+                            completed.await();
+                        }
+                        catch (InterruptedException ie)
+                        { // The executors are being shut down.
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException ree)
+            { // A worker that has been shut down has nothing queued to wait for.
+                arrived.countDown();
+            }
+        }
+    }
+
     /**
      * Callback method triggered when the underlying QMF2 Agent has WorkItems available for processing.
      * The purpose of this method is mainly to handle the METHOD_CALL WorkItem and demultiplex &amp; delegate
-     * to the invokeMethod() call on the relevant concrete QmfAgentData Object.
+     * to the invokeMethod() call on the relevant concrete QmfAgentData Object. The invokeMethod() call itself
+     * is run on one of the method worker threads rather than the thread that called onEvent().
      * @param wi the WorkItem that has been passed by the QMF2 Agent to be processed here (mainly METHOD_CALL).
      */
     @Override
@@ -610,14 +1112,16 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             MethodCallWorkItem item = (MethodCallWorkItem)wi;
             MethodCallParams methodCallParams = item.getMethodCallParams();
 
-            String methodName = methodCallParams.getName();
+            final String methodName = methodCallParams.getName();
+            final Handle handle = item.getHandle();
+            final QmfData inArgs = methodCallParams.getArgs();
             ObjectId objectId = methodCallParams.getObjectId();
 
             // Look up QmfAgentData by ObjectId from the Agent's internal Object store.
             QmfAgentData object = _agent.getObject(objectId);
             if (object == null)
             {
-                _agent.raiseException(item.getHandle(), "No object found with ID=" + objectId);
+                _agent.raiseException(handle, "No object found with ID=" + objectId);
             }
             else
             {
@@ -626,19 +1130,31 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 // other classes yet.
                 if (object instanceof org.apache.qpid.server.qmf2.agentdata.Broker)
                 {
-                    org.apache.qpid.server.qmf2.agentdata.Broker broker = 
+                    final org.apache.qpid.server.qmf2.agentdata.Broker broker = 
                         (org.apache.qpid.server.qmf2.agentdata.Broker) object;
-                    broker.invokeMethod(_agent, item.getHandle(), methodName, methodCallParams.getArgs());
+                    execute(getOrderingKey(object, methodName, inArgs), handle, methodName, new Runnable()
+                    {
+                        public void run()
+                        {
+                            broker.invokeMethod(_agent, handle, methodName, inArgs);
+                        }
+                    });
                 }
                 else if (object instanceof org.apache.qpid.server.qmf2.agentdata.Queue)
                 {
-                    org.apache.qpid.server.qmf2.agentdata.Queue queue = 
+                    final org.apache.qpid.server.qmf2.agentdata.Queue queue = 
                         (org.apache.qpid.server.qmf2.agentdata.Queue) object;
-                    queue.invokeMethod(_agent, item.getHandle(), methodName, methodCallParams.getArgs());
+                    execute(getOrderingKey(object, methodName, inArgs), handle, methodName, new Runnable()
+                    {
+                        public void run()
+                        {
+                            queue.invokeMethod(_agent, handle, methodName, inArgs);
+                        }
+                    });
                 }
                 else
                 {
-                    _agent.raiseException(item.getHandle(), "Unknown Method " + methodName + " on " + 
+                    _agent.raiseException(handle, "Unknown Method " + methodName + " on " + 
                                           object.getClass().getSimpleName());
                 }
             }
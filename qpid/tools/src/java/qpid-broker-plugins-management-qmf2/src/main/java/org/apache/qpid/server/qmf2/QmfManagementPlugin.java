@@ -30,7 +30,11 @@ public interface QmfManagementPlugin<X extends QmfManagementPlugin<X>> extends P
 
     // attributes
     String CONNECTION_URL = "connectionURL";
+    String METHOD_WORKER_THREADS = "methodWorkerThreads";
 
     @ManagedAttribute(defaultValue = "amqp://guest:guest@/?brokerlist='tcp://0.0.0.0:5672'")
     String getConnectionURL();
+
+    @ManagedAttribute(defaultValue = "4")
+    int getMethodWorkerThreads();
 }
@@ -80,6 +80,8 @@ import org.apache.qpid.server.model.adapter.AbstractPluginAdapter;
  *    "connectionURL" : "amqp://guest:guest@/?brokerlist='tcp://0.0.0.0:5672'"
  * }]
  * </pre>
+ * The optional "methodWorkerThreads" property (default 4) sets the number of threads used to execute QMF method
+ * calls such as create, delete and purge, allowing calls on different objects to be processed concurrently.
  * @author Fraser Adams
  */
 public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagementPluginImpl> implements QmfManagementPlugin<QmfManagementPluginImpl>
@@ -102,6 +104,9 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
 
     @ManagedAttributeField
     private String _connectionURL;      // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _methodWorkerThreads;   // Pulled from the Plugin config.
     private QmfManagementAgent _agent;
 
     /**
@@ -181,7 +186,7 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
                     }
 
                     // Now create the *real* Agent which maps Broker Management Objects to QmdAgentData Objects.
-                    _agent = new QmfManagementAgent(_connectionURL, _broker);
+                    _agent = new QmfManagementAgent(_connectionURL, _broker, _methodWorkerThreads);
                 }
 
 
@@ -239,4 +244,13 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
     {
         return _connectionURL;
     }
+
+    /**
+     * Accessor to retrieve the methodWorkerThreads attribute.
+     * @return the number of threads used to execute QMF method calls.
+     */
+    public int getMethodWorkerThreads()
+    {
+        return _methodWorkerThreads;
+    }
 }
@@ -23,8 +23,10 @@ package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -472,6 +474,15 @@ public class Broker extends QmfAgentData
 
     /**
      * This method acts as a single entry point for QMF methods invoked on the Broker Object.
+     * <p>
+     * In addition to the standard create and delete methods this supports a batch method, which is an extension
+     * to the C++ broker's schema. The batch method takes an "operations" argument which is a List of Maps, each Map
+     * holding a "method" (create or delete) plus the "type", "name" and optional "properties" arguments that would
+     * be passed to the equivalent individual create or delete call. The operations are applied in order and the
+     * "results" output argument is a List of Maps holding the "method", "type" and "name" of each operation along
+     * with a boolean "success" and, for failed operations, the "error_text". A failed operation doesn't prevent
+     * the remaining operations from being applied. This allows provisioning tools to create or delete large numbers
+     * of exchanges, queues and bindings with a single round trip rather than one per object.
      *
      * @param agent the org.apache.qpid.qmf2.agent.Agent instance that we call methodResponse() and raiseException() on.
      * @param handle the reply handle used by methodResponse() and raiseException().
@@ -483,10 +494,88 @@ public class Broker extends QmfAgentData
     {
         if (methodName.equals("create") || methodName.equals("delete"))
         {
+            String error = createOrDelete(agent, methodName, inArgs);
+            if (error == null)
+            {
+                agent.methodResponse(methodName, handle, new QmfData(), null);
+            }
+            else
+            {
+                agent.raiseException(handle, error);
+            }
+        }
+        else if (methodName.equals("batch"))
+        {
+            Object operations = inArgs.getValue("operations");
+            if (!(operations instanceof List))
+            {
+                agent.raiseException(handle, "batch requires a List of operations.");
+                return;
+            }
+
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(((List)operations).size());
+            for (Object operation : (List)operations)
+            {
+                Map<String, Object> result = new HashMap<String, Object>();
+                String error;
+                if (operation instanceof Map)
+                {
+                    QmfData args = new QmfData((Map)operation);
+                    String method = args.getStringValue("method");
+                    result.put("method", method);
+                    result.put("type", args.getStringValue("type"));
+                    result.put("name", args.getStringValue("name"));
+
+                    error = createOrDelete(agent, method, args);
+                }
+                else
+                {
+                    error = "Invalid batch operation, must be a Map.";
+                }
+
+                result.put("success", error == null);
+                if (error != null)
+                {
+                    result.put("error_text", error);
+                }
+                results.add(result);
+            }
+
             QmfData outArgs = new QmfData();
+            outArgs.setValue("results", results);
+            agent.methodResponse(methodName, handle, outArgs, null);
+        }
+        else // If methodName is not create, delete or batch.
+        {
+            agent.raiseException(handle, methodName + " not yet implemented on Broker.");
+        }
+    } // End of invokeMethod.
 
+    /**
+     * Carries out a single create or delete of an exchange, queue or binding. This is used both by the individual
+     * create and delete methods and by each operation of the batch method.
+     *
+     * @param agent the org.apache.qpid.qmf2.agent.Agent instance used to look up alternate exchanges.
+     * @param methodName the method to apply, either "create" or "delete".
+     * @param inArgs a Map of input arguments wrapped in a QmfData Object holding the type, name and properties.
+     * @return null if the operation succeeded, otherwise a description of the error.
+     */
+    @SuppressWarnings("unchecked")
+    private String createOrDelete(Agent agent, String methodName, QmfData inArgs)
+    {
+        if ("create".equals(methodName) || "delete".equals(methodName))
+        {
             String name = inArgs.getStringValue("name");
             String type = inArgs.getStringValue("type");
+            if (type == null || !(type.equals("exchange") || type.equals("queue") || type.equals("binding")))
+            {
+                return "Invalid type " + type + ", must be exchange, queue or binding.";
+            }
+
+            if (name == null)
+            {
+                return "The name of the " + type + " must be specified.";
+            }
 
             NameParser nameParser = new NameParser(name, type);
             String vhostName = nameParser.getVirtualHostName();
@@ -496,11 +585,11 @@ public class Broker extends QmfAgentData
             {
                 if (vhostName == null)
                 {
-                    agent.raiseException(handle, "VirtualHost names for exchange and queue must match.");
+                    return "VirtualHost names for exchange and queue must match.";
                 }
                 else
                 {
-                    agent.raiseException(handle, "VirtualHost " + vhostName + " not found.");
+                    return "VirtualHost " + vhostName + " not found.";
                 }
             }
             else
@@ -511,6 +600,10 @@ public class Broker extends QmfAgentData
                     {
                         //boolean strict = inArgs.getBooleanValue("strict");
                         Map<String, Object> properties = inArgs.getValue("properties");
+                        if (properties == null)
+                        {
+                            properties = new HashMap<String, Object>();
+                        }
 
                         boolean durable = false;
                         Object property = properties.get("durable");
@@ -540,8 +633,7 @@ System.out.println("properties = " + properties);
                             String alternateExchange = parseAlternateExchange(vhostName, properties);
                             if (alternateExchange != null && alternateExchange.equals("invalid"))
                             {
-                                agent.raiseException(handle, "Alternate Exchange must belong to the same Virtual Host as the Exchange being added.");
-                                return;
+                                return "Alternate Exchange must belong to the same Virtual Host as the Exchange being added.";
                             }
 
                             // Note that for Qpid 0.20 the "qpid.msg_sequence=1" and "qpid.ive=1" properties are
@@ -574,8 +666,7 @@ System.out.println("properties = " + properties);
                             String alternateExchange = parseAlternateExchange(vhostName, properties);
                             if (alternateExchange != null && alternateExchange.equals("invalid"))
                             {
-                                agent.raiseException(handle, "Alternate Exchange must belong to the same Virtual Host as the Queue being added.");
-                                return;
+                                return "Alternate Exchange must belong to the same Virtual Host as the Queue being added.";
                             }
 
                             // I don't *think* that it make sense to allow setting exclusive or autoDelete to
@@ -615,9 +706,7 @@ System.out.println("properties = " + properties);
                             Exchange exchange = nameParser.getExchange();
                             if (exchange == null)
                             {
-                                agent.raiseException(handle, "Cannot create binding on Exchange " +
-                                                     nameParser.getExchangeName());
-                                return;
+                                return "Cannot create binding on Exchange " + nameParser.getExchangeName();
                             }
                             else
                             {
@@ -626,12 +715,10 @@ System.out.println("properties = " + properties);
                                                        properties, attributes);
                             }
                         }
-
-                        agent.methodResponse(methodName, handle, outArgs, null);
                     }
                     catch (Exception e)
-                    {
-                        agent.raiseException(handle, e.getMessage());
+                    { // N.B. a null return means success, so make sure that we don't return a null error message.
+                        return (e.getMessage() == null) ? e.toString() : e.getMessage();
                     }
                 }
                 else // method = delete
@@ -662,21 +749,20 @@ System.out.println("properties = " + properties);
                                 binding.delete();
                             }
                         }
-
-                        agent.methodResponse(methodName, handle, outArgs, null);
                     }
                     catch (Exception e)
-                    {
-                        agent.raiseException(handle, e.getMessage());
+                    { // N.B. a null return means success, so make sure that we don't return a null error message.
+                        return (e.getMessage() == null) ? e.toString() : e.getMessage();
                     }
                 }
             }
         }
-        else // If methodName is not create or delete.
+        else
         {
-            agent.raiseException(handle, methodName + " not yet implemented on Broker.");
+            return "Invalid method " + methodName + ", must be create or delete.";
         }
-    } // End of invokeMethod.
+        return null;
+    } // End of createOrDelete.
 
     /**
      * This method maps the org.apache.qpid.server.model.Broker to QMF2 broker properties where possible then
@@ -22,7 +22,9 @@
 package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 // Simple Logging Facade 4 Java
@@ -41,9 +43,16 @@ import org.apache.qpid.qmf2.common.SchemaEventClass;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 //import org.apache.qpid.qmf2.common.SchemaProperty;
 
+import org.apache.qpid.server.message.MessageDestination;
+import org.apache.qpid.server.message.ServerMessage;
 import org.apache.qpid.server.model.Exchange;
 import org.apache.qpid.server.model.ExclusivityPolicy;
 import org.apache.qpid.server.model.LifetimePolicy;
+import org.apache.qpid.server.model.VirtualHost;
+import org.apache.qpid.server.queue.QueueEntry;
+import org.apache.qpid.server.queue.QueueEntryVisitor;
+import org.apache.qpid.server.txn.LocalTransaction;
+import org.apache.qpid.server.txn.ServerTransaction;
 
 /**
  * This class provides a concrete implementation of QmfAgentData for the Queue Management Object.
@@ -111,6 +120,13 @@ public class Queue extends QmfAgentData
     }
     // End of static initialiser.
 
+    /**
+     * The maximum number of messages that purge() and reroute() will acquire and dequeue in a single transaction.
+     * Working in bounded batches means that a large backlog never gets held in one huge transaction and that
+     * consumers and producers on the queue get a look in between batches.
+     */
+    private static final int BATCH_SIZE = 1000;
+
     private final org.apache.qpid.server.model.Queue _queue;
     private String _vhostName = "";
     private ObjectId _alternateExchange = null;
@@ -176,23 +192,174 @@ public class Queue extends QmfAgentData
     }
 
     /**
-     * TODO
-     * 
+     * This method acts as a single entry point for QMF methods invoked on the Queue Object.
+     * <p>
+     * The purge and reroute methods are supported. Both take a "request" argument giving the maximum number of
+     * messages to act on (zero or absent means all messages). reroute additionally takes "useAltExchange", which
+     * if true routes the messages to the queue's alternate exchange, otherwise they are routed to the exchange
+     * named by the "exchange" argument. The "filter" argument used by the C++ broker is not supported and is ignored.
+     * On success the "count" output argument holds the number of messages that were actually purged or rerouted.
+     * <p>
+     * As these methods might touch a very large number of messages the QmfManagementAgent calls this method on
+     * a worker thread rather than the Agent's listener thread, and the messages are processed in batches of
+     * BATCH_SIZE, each batch in its own transaction.
+     *
+     * @param agent the org.apache.qpid.qmf2.agent.Agent instance that we call methodResponse() and raiseException() on.
+     * @param handle the reply handle used by methodResponse() and raiseException().
+     * @param methodName the name of the QMF method being invoked.
+     * @param inArgs a Map of input arguments wrapped in a QmfData Object.
      */
     public void invokeMethod(Agent agent, Handle handle, String methodName, QmfData inArgs)
     {
-        /*if (methodName.equals("purge"))
+        if (methodName.equals("purge") || methodName.equals("reroute"))
+        {
+            long request = inArgs.getLongValue("request");
+            if (request <= 0)
+            {
+                request = Long.MAX_VALUE;
+            }
+
+            boolean useAltExchange = false;
+            MessageDestination destination = null;
+            if (methodName.equals("reroute"))
+            {
+                useAltExchange = inArgs.getBooleanValue("useAltExchange");
+                if (useAltExchange)
+                {
+                    if (_queue.getAlternateExchange() == null)
+                    {
+                        agent.raiseException(handle, "Queue " + getStringValue("name") + " has no alternate exchange.");
+                        return;
+                    }
+                }
+                else
+                {
+                    // The exchange must belong to the same Virtual Host as the queue, so we strip off any vhost prefix.
+                    String exchangeName = inArgs.getStringValue("exchange");
+                    String[] splitName = exchangeName.split("/");
+                    exchangeName = splitName[splitName.length - 1];
+
+                    VirtualHost vhost = (VirtualHost)_queue.getParent(VirtualHost.class);
+                    Object exchange = vhost.getChildByName(Exchange.class, exchangeName);
+                    if (exchange instanceof MessageDestination)
+                    {
+                        destination = (MessageDestination)exchange;
+                    }
+                    else
+                    {
+                        agent.raiseException(handle, "Exchange " + exchangeName + " not found.");
+                        return;
+                    }
+                }
+            }
+
+            try
+            {
+                long count = 0;
+                int batchCount;
+                do
+                {
+                    batchCount = processBatch((int)Math.min(BATCH_SIZE, request - count), useAltExchange, destination);
+                    count += batchCount;
+                } while (batchCount > 0 && count < request);
+
+                QmfData outArgs = new QmfData();
+                outArgs.setValue("count", count);
+                agent.methodResponse(methodName, handle, outArgs, null);
+            }
+            catch (Exception e)
+            {
+                agent.raiseException(handle, e.getMessage());
+            }
+        }
+        else
+        {
+            agent.raiseException(handle, methodName + " not yet implemented on Queue.");
+        }
+    }
+
+    /**
+     * Acquires up to limit available messages from the head of the queue then, in a single transaction, either
+     * dequeues them (purge) or routes them to the alternate exchange or the supplied destination and dequeues them
+     * (reroute). If the transaction fails any messages that have been acquired are released back to the queue.
+     *
+     * @param limit the maximum number of messages to process in this batch.
+     * @param useAltExchange if true route the messages to the queue's alternate exchange.
+     * @param destination the destination to route the messages to, if null and useAltExchange is false the
+     * messages are simply discarded.
+     * @return the number of messages processed, zero indicates that there are no more available messages.
+     */
+    @SuppressWarnings("unchecked")
+    private int processBatch(final int limit, final boolean useAltExchange, final MessageDestination destination)
+    {
+        final List<QueueEntry> batch = new ArrayList<QueueEntry>(limit);
+        _queue.visit(new QueueEntryVisitor()
+        {
+            public boolean visit(final QueueEntry entry)
+            {
+                if (entry.acquire())
+                {
+                    batch.add(entry);
+                }
+                return batch.size() >= limit; // Returning true stops the visit.
+            }
+        });
+
+        if (batch.isEmpty())
         {
-            //broker.create(inArgs);
+            return 0;
         }
-        else if (methodName.equals("reroute"))
+
+        VirtualHost vhost = (VirtualHost)_queue.getParent(VirtualHost.class);
+        ServerTransaction txn = new LocalTransaction(vhost.getMessageStore());
+        try
         {
-            //broker.create(inArgs);
+            for (final QueueEntry entry : batch)
+            {
+                if (useAltExchange)
+                {
+                    // routeToAlternate() dequeues the entry from this queue as part of the transaction.
+                    entry.routeToAlternate(null, txn);
+                }
+                else
+                {
+                    ServerMessage message = entry.getMessage();
+                    if (destination != null)
+                    {
+                        destination.send(message, message.getInitialRoutingAddress(),
+                                         entry.getInstanceProperties(), txn, null);
+                    }
+
+                    txn.dequeue(entry.getOwningResource(), message, new ServerTransaction.Action()
+                    {
+                        public void postCommit()
+                        {
+                            entry.delete();
+                        }
+
+                        public void onRollback()
+                        {
+                        }
+                    });
+                }
+            }
+            txn.commit();
         }
-        else*/
+        catch (RuntimeException e)
         {
-            agent.raiseException(handle, methodName + " not yet implemented on Queue.");
+            _log.info("Exception {} caught processing batch on Queue {}", e.getMessage(), getStringValue("name"));
+            txn.rollback();
+            for (QueueEntry entry : batch)
+            {
+                if (!entry.isDeleted() && entry.isAcquired())
+                {
+                    entry.release();
+                }
+            }
+            throw e;
         }
+
+        return batch.size();
     }
 
     /**
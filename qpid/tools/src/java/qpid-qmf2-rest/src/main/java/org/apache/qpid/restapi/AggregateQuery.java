@@ -0,0 +1,214 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi;
+
+// Misc Imports
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+
+/**
+ * An AggregateQuery performs the same getObjects() query on a number of Connections (typically to different brokers)
+ * in parallel and merges the results, so that for example a "deepest queues across the fleet" view can be built
+ * with a single HTTP request rather than one request per broker.
+ * <p>
+ * Each Connection is queried on an ExecutorService shared by all AggregateQueries. Connections that are disconnected,
+ * fail, or don't respond within the timeout are reported as unavailable and the results from the remaining
+ * Connections are returned, so a single slow broker doesn't hold up the whole response. Connections that share the
+ * same SharedConsole (i.e. the same broker, URL and options) are only queried once, the first of them being named
+ * as the object's connection and the others listed as its aliases.
+ * <p>
+ * The merged results are filtered, sorted and paginated as a whole by an ObjectQuery and each object is tagged with
+ * the name of the Connection it came from, and the names of any aliases, when written as JSON:
+ * <pre>
+ * {"objects":[{"connection":&lt;name&gt;,["aliases":[&lt;name&gt;,...],]"object":&lt;QmfConsoleData&gt;},...],
+ *  "unavailable":[&lt;name&gt;,...]}
+ * </pre>
+ */
+public final class AggregateQuery
+{
+    private static final Logger _log = LoggerFactory.getLogger(AggregateQuery.class);
+
+    private final Map<QmfConsoleData, List<String>> _tags = new IdentityHashMap<QmfConsoleData, List<String>>();
+    private final List<String> _unavailable = new ArrayList<String>();
+    private List<QmfConsoleData> _objects = new ArrayList<QmfConsoleData>();
+
+    /**
+     * Query a number of Connections in parallel.
+     * @param executor the ExecutorService used to query the Connections.
+     * @param connections a Map of the Connections to query keyed by the name reported to the client.
+     * @param packageName the schema package name we're looking up objects for, may be null.
+     * @param className the schema class name we're looking up objects for.
+     * @param timeout the maximum time in milliseconds to wait for the Connections to respond.
+     */
+    public AggregateQuery(final ExecutorService executor, final Map<String, ConnectionProxy> connections,
+                          final String packageName, final String className, final long timeout)
+    {
+        // The Console timeout is in seconds, rounded up so that it doesn't expire before our own timeout.
+        final int consoleTimeout = (int)Math.max(1, (timeout + 999)/1000);
+
+        // The names of the Connections sharing each SharedConsole that is queried, in the order of the tasks.
+        List<List<String>> names = new ArrayList<List<String>>();
+        List<Callable<List<QmfConsoleData>>> tasks = new ArrayList<Callable<List<QmfConsoleData>>>();
+        Map<SharedConsole, List<String>> queried = new HashMap<SharedConsole, List<String>>();
+        for (Map.Entry<String, ConnectionProxy> entry : connections.entrySet())
+        {
+            ConnectionProxy connection = entry.getValue();
+            if (!connection.isConnected())
+            {
+                _unavailable.add(entry.getKey());
+                continue;
+            }
+
+            List<String> aliases = queried.get(connection.getSharedConsole());
+            if (aliases != null)
+            {
+                aliases.add(entry.getKey());
+                continue;
+            }
+
+            aliases = new ArrayList<String>();
+            aliases.add(entry.getKey());
+            queried.put(connection.getSharedConsole(), aliases);
+
+            final Console console = connection.getConsole();
+            names.add(aliases);
+            tasks.add(new Callable<List<QmfConsoleData>>()
+            {
+                public List<QmfConsoleData> call()
+                {
+                    return (packageName == null) ? console.getObjects(className, consoleTimeout) :
+                                                   console.getObjects(packageName, className, consoleTimeout);
+                }
+            });
+        }
+
+        List<Future<List<QmfConsoleData>>> futures = null;
+        try
+        {
+            futures = executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            for (List<String> aliases : names)
+            {
+                _unavailable.addAll(aliases);
+            }
+            return;
+        }
+
+        for (int i = 0; i < futures.size(); i++)
+        {
+            List<String> aliases = names.get(i);
+            try
+            {
+                List<QmfConsoleData> objects = futures.get(i).get();
+                for (QmfConsoleData object : objects)
+                {
+                    _tags.put(object, aliases);
+                }
+                _objects.addAll(objects);
+            }
+            catch (CancellationException ce)
+            { // The Connection didn't respond within the timeout.
+                _unavailable.addAll(aliases);
+            }
+            catch (ExecutionException ee)
+            {
+                _log.info("AggregateQuery getObjects() on {} failed: {}", aliases, ee.getCause());
+                _unavailable.addAll(aliases);
+            }
+            catch (InterruptedException ie)
+            {
+                _unavailable.addAll(aliases);
+            }
+        }
+    }
+
+    /**
+     * Apply an ObjectQuery to the merged results.
+     * @param query the ObjectQuery to apply.
+     */
+    public void apply(final ObjectQuery query)
+    {
+        _objects = query.apply(_objects);
+    }
+
+    /**
+     * Returns the names of the Connections that couldn't be queried or didn't respond within the timeout.
+     * @return the names of the Connections that didn't contribute to the results.
+     */
+    public List<String> getUnavailable()
+    {
+        return _unavailable;
+    }
+
+    /**
+     * Write the merged results as JSON.
+     * @param out the Appendable that the JSON encoding is written to.
+     * @param properties the names of the properties of each object to include, or null to include all properties.
+     */
+    public void write(final Appendable out, final Set<String> properties) throws IOException
+    {
+        out.append("{\"objects\":[");
+        boolean first = true;
+        for (QmfConsoleData object : _objects)
+        {
+            if (!first)
+            {
+                out.append(',');
+            }
+            first = false;
+            List<String> aliases = _tags.get(object);
+            out.append("{\"connection\":");
+            JSON.write(out, aliases.get(0));
+            if (aliases.size() > 1)
+            {
+                out.append(",\"aliases\":");
+                JSON.write(out, aliases.subList(1, aliases.size()));
+            }
+            out.append(",\"object\":");
+            JSON.write(out, object, properties);
+            out.append('}');
+        }
+        out.append("],\"unavailable\":");
+        JSON.write(out, _unavailable);
+        out.append('}');
+    }
+}
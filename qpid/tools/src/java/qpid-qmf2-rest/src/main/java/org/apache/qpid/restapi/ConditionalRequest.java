@@ -0,0 +1,148 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi;
+
+// Misc Imports
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+
+/**
+ * This class provides static helper methods used by Servers to support HTTP conditional GET requests, which allow
+ * a client such as a browser or a polling dashboard to avoid downloading a resource that it already holds.
+ * <p>
+ * The validators are an entity tag, sent as ETag and checked against If-None-Match, and optionally a modification
+ * time, sent as Last-Modified and checked against If-Modified-Since. If-None-Match takes precedence over
+ * If-Modified-Since as described in RFC 7232.
+ * <p>
+ * Note that an HttpTransaction that compresses a response appends GZIP_ETAG_SUFFIX to its (strong) entity tag as
+ * the compressed representation differs from the uncompressed one, matching ignores that suffix.
+ */
+public final class ConditionalRequest
+{
+    /**
+     * The suffix appended to the entity tag of a gzip Content-Encoded response.
+     */
+    public static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    /**
+     * Prevent instantiation, this class only has static methods.
+     */
+    private ConditionalRequest()
+    {
+    }
+
+    /**
+     * Create a SimpleDateFormat for the RFC 1123 date format used by HTTP. SimpleDateFormat isn't thread safe
+     * so a new instance is used for each request.
+     */
+    private static SimpleDateFormat createDateFormat()
+    {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Returns the opaque part of an entity tag, stripping any weak prefix, the quotes and GZIP_ETAG_SUFFIX.
+     */
+    private static String opaqueTag(String etag)
+    {
+        etag = etag.trim();
+        if (etag.startsWith("W/"))
+        {
+            etag = etag.substring(2);
+        }
+
+        if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\""))
+        {
+            etag = etag.substring(1, etag.length() - 1);
+        }
+
+        if (etag.endsWith(GZIP_ETAG_SUFFIX))
+        {
+            etag = etag.substring(0, etag.length() - GZIP_ETAG_SUFFIX.length());
+        }
+        return etag;
+    }
+
+    /**
+     * Set the ETag and (if lastModified is greater than zero) the Last-Modified response headers, then check whether
+     * the request's If-None-Match or If-Modified-Since headers show that the client already holds the current
+     * representation of the resource. If so a 304 Not Modified response with no body is sent.
+     *
+     * @param tx the HttpTransaction containing the request from the client and used to send the response.
+     * @param etag the opaque (unquoted) entity tag of the current representation of the resource.
+     * @param lastModified the modification time of the resource in milliseconds since the epoch, or zero if unknown.
+     * @param mimeType the mimeType of the resource.
+     * @return true if a 304 Not Modified response has been sent, false if the caller should send the resource.
+     */
+    public static boolean checkNotModified(final HttpTransaction tx, final String etag, final long lastModified,
+                                           final String mimeType) throws IOException
+    {
+        tx.setHeader("ETag", "\"" + etag + "\"");
+        if (lastModified > 0)
+        {
+            tx.setHeader("Last-Modified", createDateFormat().format(new Date(lastModified)));
+        }
+
+        boolean notModified = false;
+        String ifNoneMatch = tx.getHeader("If-None-Match");
+        if (ifNoneMatch != null)
+        {
+            for (String tag : ifNoneMatch.split(","))
+            {
+                tag = tag.trim();
+                if (tag.equals("*") || opaqueTag(tag).equals(etag))
+                {
+                    notModified = true;
+                    break;
+                }
+            }
+        }
+        else if (lastModified > 0)
+        {
+            String ifModifiedSince = tx.getHeader("If-Modified-Since");
+            if (ifModifiedSince != null)
+            {
+                try
+                { // HTTP dates have a resolution of one second.
+                    long since = createDateFormat().parse(ifModifiedSince).getTime();
+                    notModified = lastModified / 1000 <= since / 1000;
+                }
+                catch (ParseException pe)
+                { // An invalid date is ignored, as required by RFC 7232.
+                }
+            }
+        }
+
+        if (notModified)
+        {
+            tx.sendResponse(HTTP_NOT_MODIFIED, mimeType, (byte[])null);
+        }
+        return notModified;
+    }
+}
@@ -21,22 +21,19 @@
 package org.apache.qpid.restapi;
 
 // Misc Imports
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.TimerTask;
-
-// JMS Imports
-import javax.jms.Connection;
-import javax.jms.ExceptionListener;
-import javax.jms.JMSException;
-
-// Simple Logging Facade 4 Java
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 // QMF2 Imports
-import org.apache.qpid.qmf2.common.BlockingNotifier;
-import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.console.Console;
-import org.apache.qpid.qmf2.util.ConnectionHelper;
 
 /**
  * Contains a Connection object under a "leasehold agreement" whereby the Connection (and associated Sessions and QMF 
@@ -46,14 +43,18 @@ import org.apache.qpid.qmf2.util.ConnectionHelper;
  * but by using the lease metaphor we can expire instances that haven't been used for some predetermined period.
  * Using the leashold agreement means that we don't have to rely on users explicitly deleting Connections that they
  * are no longer interested in, because obviously we can't rely on that :-)
+ * <p>
+ * The Qpid Connection and QMF2 Console are held by a SharedConsole, which is shared by all of the ConnectionProxy
+ * Objects created with the same Connection URL and options. Each ConnectionProxy has its own lease and receives
+ * its own copy of the WorkItems received by the Console from the SharedConsole. WorkItems are held on a queue for
+ * retrieval via getNextWorkItem() and are also pushed to any EventStreams that clients have opened on this Connection.
+ * Requests blocked waiting for WorkItems are woken when the ConnectionProxy is closed.
  *
  * @author Fraser Adams
  */
-public final class ConnectionProxy extends TimerTask implements ExceptionListener
+public final class ConnectionProxy extends TimerTask
 {
-    private static final Logger _log = LoggerFactory.getLogger(ConnectionProxy.class);
-
-    private static final int MAX_WORKITEM_QUEUE_SIZE = 20; // Maximum number of items allowed on WorkItem queue.
+    private static final int MAX_WORKITEM_QUEUE_SIZE = 1000; // Maximum number of items allowed on WorkItem queue.
 
     // Connections expire after 20 minutes of no use.
     private static final int TIMEOUT_THRESHOLD = (20*60000)/ConnectionStore.PING_PERIOD; 
@@ -61,104 +62,56 @@ public final class ConnectionProxy extends TimerTask implements ExceptionListene
     // Connections expire after 1 minute if they have never been dereferenced.
     private static final int UNUSED_THRESHOLD = 60000/ConnectionStore.PING_PERIOD; 
 
-    private Connection _connection;
-    private Console _console;
-    private boolean _connected;
-    private int _expireCount;
+    // Send a keep alive to EventStreams every 15 seconds.
+    private static final int KEEPALIVE_THRESHOLD = 15000/ConnectionStore.PING_PERIOD;
+
+    private int _expireCount = UNUSED_THRESHOLD;
     private final ConnectionStore _store;
+    private final SharedConsole _shared;
     private final String _name;
     private final String _url;
     private final String _connectionOptions;
     private final boolean _disableEvents;
+    private final BlockingQueue<WorkItem> _workItems = new ArrayBlockingQueue<WorkItem>(MAX_WORKITEM_QUEUE_SIZE);
+    private final List<EventStream> _eventStreams = new CopyOnWriteArrayList<EventStream>();
+    private int _keepAliveCount = KEEPALIVE_THRESHOLD;
 
-    /**
-     * Actually create the Qpid Connection and QMF2 Console specified in the Constructor.
-     */
-    private synchronized void createConnection()
-    {
-        //System.out.println("ConnectionProxy createConnection() name: " + _name + ", thread: " + Thread.currentThread().getId() + ", creating connection to " + _url + ", options " + _connectionOptions);
-        try
-        {
-            _connection = ConnectionHelper.createConnection(_url, _connectionOptions);
-            if (_connection != null)
-            {       
-                _connection.setExceptionListener(this);
-
-                // N.B. creating a Console with a notifier causes the internal WorkQueue to get populated, so care must
-                // be taken to manage its size. In a normal Console application the application would only declare this
-                // if there was an intention to retrieve work items, but in a fairly general REST API we can't guarantee
-                // that clients will. ConsoleLease acts to make the WorkQueue "circular" by deleting items from the
-                // front of the WorkQueue if it exceeds a particular size.
-                if (_disableEvents)
-                {
-                    _console = new Console(_name, null, null, null);
-                    _console.disableEvents();
-                }
-                else
-                {
-                    BlockingNotifier notifier = new BlockingNotifier();
-                    _console = new Console(_name, null, notifier, null);
-                }
-                _console.addConnection(_connection);
-                _connected = true;
-                _expireCount = UNUSED_THRESHOLD;
-                notifyAll();
-            }
-        }
-        catch (Exception ex)
-        {
-            _log.info("Exception {} caught in ConnectionProxy constructor.", ex.getMessage());
-            _connected = false;
-        }
-    }
+    // The Threads blocked waiting for WorkItems, interrupted by close(). Guarded by _waiters, as is _closed.
+    private final Set<Thread> _waiters = new HashSet<Thread>();
+    private boolean _closed = false;
 
     /**
      * This method blocks until the Connection has been created.
      */
-    public synchronized void waitForConnection()
+    public void waitForConnection()
     {
-        while (!_connected)
-        {
-            try
-            {
-                wait();
-            }
-            catch (InterruptedException ie)
-            {
-                continue;
-            }
-        }
+        _shared.waitForConnection();
     }
 
     /**
      * This method blocks until the Connection has been created or timeout expires (or wait has been interrupted).
      * @param timeout the maximum time in milliseconds to wait for notification of the connection's availability.
      */
-    public synchronized void waitForConnection(long timeout)
+    public void waitForConnection(long timeout)
     {
-        try
-        {
-            wait(timeout);
-        }
-        catch (InterruptedException ie)
-        { // Ignore
-        }
+        _shared.waitForConnection(timeout);
     }
 
     /**
      * Construct a Proxy to the specified Qpid Connection with the supplied name to be stored in the specified store.
      * @param store The ConnectionStore that we want to store this ConnectionProxy in.
+     * @param shared The SharedConsole holding the Qpid Connection and QMF2 Console used by this ConnectionProxy.
      * @param name A unique name for the Connection that we want to create.
      * @param url A Connection URL using one of the forms supported by {@link org.apache.qpid.qmf2.util.ConnectionHelper}.
      * @param connectionOptions A set of connection options in the form supported by {@link org.apache.qpid.qmf2.util.ConnectionHelper}.
      * @param disableEvents if true create a QMF Console Connection that can only perform synchronous
      * operations like getObjects() and cannot do asynchronous things like Agent discovery or receive Events.
      */
-    public ConnectionProxy(final ConnectionStore store, final String name,
+    public ConnectionProxy(final ConnectionStore store, final SharedConsole shared, final String name,
                            final String url, final String connectionOptions, final boolean disableEvents)
     {
-        _connected = false;
         _store = store;
+        _shared = shared;
         _name = name;
         _url = url;
         _connectionOptions = connectionOptions;
@@ -166,35 +119,66 @@ public final class ConnectionProxy extends TimerTask implements ExceptionListene
     }
 
     /**
-     * The exception listener for the underlying Qpid Connection. This is used to trigger the ConnectionProxy internal
-     * reconnect logic. N.B. ConnectionProxy uses its own reconnection logic for two reasons: firstly  the Qpid auto
-     * retry mechanism has some undesireable and unreliable behaviours prior to Qpid version 0.16 and secondly the
-     * Qpid auto retry mechanism is transparent whereas we actually <b>want</b> to detect connection failures in the REST
-     * API so that we can report failures back to the client.
-     * @param jmse The JMSException that has caused onException to be triggered.
+     * Called by the SharedConsole for each WorkItem received by its Console. Queues the WorkItem for
+     * getNextWorkItem() and pushes it to any EventStreams whose filters accept it. The JSON encoding is only
+     * created once, however many ConnectionProxy Objects and EventStreams the WorkItem is sent to.
+     * @param item the WorkItem received by the Console.
+     * @param json the JSON encoding of the WorkItem if it has already been created, otherwise null.
+     * @return the JSON encoding of the WorkItem if it has been created, otherwise null.
      */
-    public void onException(JMSException jmse)
+    public String onEvent(final WorkItem item, String json)
     {
-        _log.info("ConnectionProxy onException {}", jmse.getMessage());
-        _connected = false;
+        while (!_workItems.offer(item))
+        { // The queue is full so discard the oldest item to make room.
+            _workItems.poll();
+        }
+
+        for (EventStream stream : _eventStreams)
+        {
+            if (stream.isClosed())
+            {
+                _eventStreams.remove(stream);
+            }
+            else if (stream.accepts(item))
+            {
+                json = (json == null) ? JSON.fromObject(item) : json;
+                stream.send(item, json);
+            }
+        }
+        return json;
     }
 
     /**
      * This method is called periodically by {@link org.apache.qpid.restapi.ConnectionStore} to carry out a number
-     * of housekeeping tasks. It checks if the Qpid Connection is still connected and if not it attempts to reconnect
-     * it also checks whether the Connection "lease" has run out and if it has it tidies up the Connection. Finally
-     * it restricts the size of the QMF2 WorkItem queue as the REST API has no control over whether a client is or
-     * is not interested in being notified of QMF2 Events.
+     * of housekeeping tasks. It checks whether the Connection "lease" has run out and if it has it tidies up the
+     * Connection. Finally it closes EventStreams whose writes have timed out, tidies up closed EventStreams and
+     * sends keep alives to the open ones. Reconnection if the broker has disconnected is handled by the SharedConsole.
      */
     public void run()
     {
-        if (_connected)
+        if (_shared.isConnected())
         {
             //System.out.println("ConnectionProxy name: " + _name + ", thread: " + Thread.currentThread().getId() + ", WorkItem count = " + _console.getWorkitemCount());
 
-            while (_console.getWorkitemCount() > MAX_WORKITEM_QUEUE_SIZE)
+            // Tidy up any closed EventStreams and periodically send a keep alive to the rest. The lease is renewed
+            // whilst there are open EventStreams as they are using the Connection even if they make no requests.
+            boolean sendKeepAlive = --_keepAliveCount <= 0;
+            _keepAliveCount = sendKeepAlive ? KEEPALIVE_THRESHOLD : _keepAliveCount;
+            for (EventStream stream : _eventStreams)
             {
-                _console.getNextWorkitem();
+                stream.checkWriteTimeout();
+                if (stream.isClosed())
+                {
+                    _eventStreams.remove(stream);
+                }
+                else
+                {
+                    _expireCount = TIMEOUT_THRESHOLD;
+                    if (sendKeepAlive)
+                    {
+                        stream.sendKeepAlive();
+                    }
+                }
             }
 
             _expireCount--;
@@ -204,14 +188,11 @@ public final class ConnectionProxy extends TimerTask implements ExceptionListene
                 _store.delete(_name);
             }
         }
-        else
-        {
-            createConnection();
-        }
     }
 
     /**
-     * Stops scheduled housekeeping, destroys any attached QMF2 Console instances then closes the Qpid Connection.
+     * Stops scheduled housekeeping and closes any EventStreams. The ConnectionStore releases the SharedConsole,
+     * which destroys the QMF2 Console and closes the Qpid Connection once no ConnectionProxy is using them.
      */
     public synchronized void close()
     {
@@ -219,15 +200,21 @@ public final class ConnectionProxy extends TimerTask implements ExceptionListene
 
         cancel();
 
-        try
+        synchronized (_waiters)
         {
-            _console.destroy();
-            _connection.close();
+            _closed = true;
+            for (Thread waiter : _waiters)
+            {
+                waiter.interrupt();
+            }
+            _waiters.clear();
         }
-        catch (Exception e)
-        { // Log and Ignore
-            _log.info("ConnectionProxy close() caught Exception {}", e.getMessage());
+
+        for (EventStream stream : _eventStreams)
+        {
+            stream.close();
         }
+        _eventStreams.clear();
     }
 
     /**
@@ -237,7 +224,156 @@ public final class ConnectionProxy extends TimerTask implements ExceptionListene
     public Console getConsole()
     {
         _expireCount = TIMEOUT_THRESHOLD;
-        return _console;
+        return _shared.getConsole();
+    }
+
+    /**
+     * Returns whether this Connection was created with events enabled and is thus able to receive WorkItems.
+     * @return true if this Connection can receive WorkItems.
+     */
+    public boolean isEventsEnabled()
+    {
+        return !_disableEvents;
+    }
+
+    /**
+     * Returns the count of pending WorkItems that can be retrieved.
+     * @return the count of pending WorkItems that can be retrieved.
+     */
+    public int getWorkItemCount()
+    {
+        _expireCount = TIMEOUT_THRESHOLD;
+        return _workItems.size();
+    }
+
+    /**
+     * Register the current Thread as waiting for WorkItems so that close() can wake it.
+     * @return false if the ConnectionProxy has already been closed, in which case the caller shouldn't wait.
+     */
+    private boolean beginWait()
+    {
+        synchronized (_waiters)
+        {
+            if (_closed)
+            {
+                return false;
+            }
+            _waiters.add(Thread.currentThread());
+            return true;
+        }
+    }
+
+    /**
+     * Deregister the current Thread as waiting for WorkItems, clearing any interrupt raised by close() after the
+     * wait had already finished so that it doesn't affect whatever the Thread does next.
+     */
+    private void endWait()
+    {
+        synchronized (_waiters)
+        {
+            _waiters.remove(Thread.currentThread());
+            if (_closed)
+            {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Returns the next pending WorkItem, blocking until one becomes available.
+     * @return the next pending WorkItem, or null if the wait was interrupted or the ConnectionProxy was closed.
+     */
+    public WorkItem getNextWorkItem()
+    {
+        _expireCount = TIMEOUT_THRESHOLD;
+        if (!beginWait())
+        {
+            return null;
+        }
+
+        try
+        {
+            return _workItems.take();
+        }
+        catch (InterruptedException ie)
+        {
+            return null;
+        }
+        finally
+        {
+            endWait();
+        }
+    }
+
+    /**
+     * Returns the next pending WorkItem, waiting up to the specified time for one to become available.
+     * @param timeout the maximum time in milliseconds to wait for a WorkItem.
+     * @return the next pending WorkItem, or null if none became available or the ConnectionProxy was closed.
+     */
+    public WorkItem getNextWorkItem(final long timeout)
+    {
+        _expireCount = TIMEOUT_THRESHOLD;
+        if (!beginWait())
+        {
+            return null;
+        }
+
+        try
+        {
+            return _workItems.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            return null;
+        }
+        finally
+        {
+            endWait();
+        }
+    }
+
+    /**
+     * Returns up to max pending WorkItems, waiting up to the specified time for the first to become available.
+     * @param max the maximum number of WorkItems to return.
+     * @param timeout the maximum time in milliseconds to wait if no WorkItems are pending.
+     * @return a List of WorkItems, empty if none became available within the timeout or the ConnectionProxy was closed.
+     */
+    public List<WorkItem> getWorkItems(final int max, final long timeout)
+    {
+        _expireCount = TIMEOUT_THRESHOLD;
+        List<WorkItem> items = new ArrayList<WorkItem>(Math.min(max, _workItems.size() + 1));
+        if (!beginWait())
+        {
+            return items;
+        }
+
+        try
+        {
+            WorkItem first = _workItems.poll(timeout, TimeUnit.MILLISECONDS);
+            if (first != null)
+            {
+                items.add(first);
+                _workItems.drainTo(items, max - 1);
+            }
+        }
+        catch (InterruptedException ie)
+        { // Return whatever we have.
+        }
+        finally
+        {
+            endWait();
+        }
+        return items;
+    }
+
+    /**
+     * Adds an EventStream to which WorkItems received by this Connection's Console will be pushed.
+     * @param stream the EventStream to add.
+     */
+    public void addEventStream(final EventStream stream)
+    {
+        _expireCount = TIMEOUT_THRESHOLD;
+        _eventStreams.add(stream);
     }
 
     /**
@@ -248,7 +384,16 @@ public final class ConnectionProxy extends TimerTask implements ExceptionListene
     public boolean isConnected()
     {
         _expireCount = TIMEOUT_THRESHOLD;
-        return _connected;
+        return _shared.isConnected();
+    }
+
+    /**
+     * Returns the SharedConsole holding the Qpid Connection and QMF2 Console used by this ConnectionProxy.
+     * @return the SharedConsole used by this ConnectionProxy.
+     */
+    public SharedConsole getSharedConsole()
+    {
+        return _shared;
     }
 
     /**
@@ -21,9 +21,17 @@
 package org.apache.qpid.restapi;
 
 // Misc Imports
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.QmfException;
@@ -34,6 +42,10 @@ import org.apache.qpid.qmf2.console.Console;
  * Objects which wrap Qpid Connections and provide some additional housekeeping behaviour necessary for a distributed
  * system. The ConnectionStore schedules regular housekeeping tasks to be executed on the ConnectionProxy Objects
  * using a java.util.Timer, which scales fairly well.
+ * <p>
+ * ConnectionProxy Objects created with the same Connection URL, options and disableEvents flag share a single
+ * SharedConsole, holding the actual Qpid Connection and QMF2 Console, which is reference counted and closed when
+ * the last ConnectionProxy using it is deleted.
  *
  * @author Fraser Adams
  */
@@ -45,12 +57,28 @@ public class ConnectionStore
      */
     public static final int PING_PERIOD = 5000;
 
+    /**
+     * The number of threads used to write to the EventStreams of all ConnectionProxy Objects.
+     */
+    private static final int EVENT_STREAM_THREADS = 4;
+
+    /**
+     * The number of threads used to query Connections in parallel on behalf of AggregateQueries.
+     */
+    private static final int AGGREGATE_QUERY_THREADS = 16;
+
     /**
      * This Map is used to associate connection names with their ConnectionProxies. Note that the names are prefixed
      * internally with the authenticated user name to prevent users accidentally (or maliciously) sharing connections.
      */
     private Map<String, ConnectionProxy> _connections = new ConcurrentHashMap<String, ConnectionProxy>();
 
+    /**
+     * This Map is used to look up the SharedConsole for a given Connection URL, options and disableEvents flag.
+     * Guarded by the ConnectionStore's lock.
+     */
+    private Map<String, SharedConsole> _consoles = new HashMap<String, SharedConsole>();
+
     /**
      * Create a Timer used to schedule regular checks on ConnectionProxy Objects to see that they are still in use.
      * In essence ConnectionProxy Objects behave in a similar way to RMI Leases in that if they are not used 
@@ -58,12 +86,45 @@ public class ConnectionStore
      */
     private Timer _timer = new Timer(true);
 
+    /**
+     * A small pool of threads shared by all EventStreams, which only occupy a thread whilst they have events to write.
+     * The queue is unbounded so threads are only added beyond EVENT_STREAM_THREADS when an EventStream raises the
+     * core pool size to replace a writer that is blocked on a client that has stopped reading.
+     */
+    private final ExecutorService _eventStreamExecutor = new ThreadPoolExecutor(EVENT_STREAM_THREADS,
+        Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory()
+        {
+            public Thread newThread(final Runnable r)
+            {
+                Thread thread = new Thread(r, "EventStream Writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * A pool of threads shared by all AggregateQueries, used to query several Connections in parallel.
+     */
+    private final ExecutorService _aggregateQueryExecutor = Executors.newFixedThreadPool(AGGREGATE_QUERY_THREADS,
+        new ThreadFactory()
+        {
+            public Thread newThread(final Runnable r)
+            {
+                Thread thread = new Thread(r, "AggregateQuery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
     /**
      * Creates a new ConnectionProxy Object with the given name, which in turn creates a Qpid Connection using the
      * supplied Connection URL and options. In addition it schedules some regular housekeeping on the ConnectionProxy
      * to enable it to manage Connection failures and perform what amounts to distributed garbage collection.
      * When a ConnectionProxy with a given name has been created it is cached and subsequent calls to this method
      * will return the cached instance. If an new instance is required one must first call the delete method.
+     * The Qpid Connection and QMF2 Console are shared with any other ConnectionProxy created with the same url,
+     * opts and disableEvents.
      * @param name A unique name for the Connection that we want to create.
      * @param url A Connection URL using one of the forms supported by {@link org.apache.qpid.qmf2.util.ConnectionHelper}.
      * @param opts A set of connection options in the form supported by {@link org.apache.qpid.qmf2.util.ConnectionHelper}.
@@ -77,7 +138,17 @@ public class ConnectionStore
         ConnectionProxy connection = _connections.get(name);
         if (connection == null)
         {
-            connection = new ConnectionProxy(this, name, url, opts, disableEvents);
+            String key = url + "\n" + opts + "\n" + disableEvents;
+            SharedConsole shared = _consoles.get(key);
+            if (shared == null)
+            {
+                shared = new SharedConsole(key, url, opts, disableEvents);
+                _consoles.put(key, shared);
+                _timer.schedule(shared, 0, PING_PERIOD);
+            }
+
+            connection = new ConnectionProxy(this, shared, name, url, opts, disableEvents);
+            shared.addProxy(connection);
             _connections.put(name, connection);
             _timer.schedule(connection, 0, PING_PERIOD);
         }
@@ -85,7 +156,8 @@ public class ConnectionStore
     }
 
     /**
-     * Closes the named Connection, stops its scheduled housekeeping and removes from the store.
+     * Closes the named Connection, stops its scheduled housekeeping and removes from the store. If no other
+     * Connection is using its SharedConsole that is closed too.
      * @param name the name of the Connection that we want to delete.
      */
     public synchronized void delete(final String name)
@@ -95,9 +167,34 @@ public class ConnectionStore
         {
             connection.close();
             _connections.remove(name);
+
+            SharedConsole shared = connection.getSharedConsole();
+            if (shared.removeProxy(connection) == 0)
+            {
+                _consoles.remove(shared.getKey());
+                shared.close();
+            }
         }
     }
 
+    /**
+     * Returns the Executor used to write to EventStreams.
+     * @return the Executor used to write to EventStreams.
+     */
+    public Executor getEventStreamExecutor()
+    {
+        return _eventStreamExecutor;
+    }
+
+    /**
+     * Returns the ExecutorService used by AggregateQueries to query Connections in parallel.
+     * @return the ExecutorService used by AggregateQueries to query Connections in parallel.
+     */
+    public ExecutorService getAggregateQueryExecutor()
+    {
+        return _aggregateQueryExecutor;
+    }
+
     /**
      * Retrieves the named Connection from the store.
      * @param name the name of the Connection that we want to retrieve.
@@ -0,0 +1,129 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi;
+
+// Misc Imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class provides static helper methods used to negotiate gzip Content-Encoding of HTTP responses. They are
+ * used both by HttpTransaction implementations, which compress responses on the fly, and by FileServer, which
+ * caches precompressed variants of static files.
+ */
+public final class ContentEncoding
+{
+    /**
+     * Responses smaller than this aren't worth compressing as the gzip header and trailer add around 20 bytes.
+     */
+    public static final int GZIP_THRESHOLD = 1024;
+
+    /**
+     * The Content-Encoding that a Server sets to prevent a response being compressed, for example because it has
+     * already found that compressing the content doesn't make it any smaller. HttpTransaction implementations don't
+     * compress responses that have a Content-Encoding, and remove this one before the response is sent.
+     */
+    public static final String IDENTITY = "identity";
+
+    /**
+     * Prevent instantiation, this class only has static methods.
+     */
+    private ContentEncoding()
+    {
+    }
+
+    /**
+     * Returns true if content of the specified mimeType is worth compressing, that is if it is textual.
+     * @param mimeType the mimeType of the content.
+     * @return true if content of the specified mimeType is worth compressing.
+     */
+    public static boolean isCompressible(final String mimeType)
+    {
+        return mimeType != null &&
+               (mimeType.startsWith("text/") || mimeType.indexOf("json") != -1 ||
+                mimeType.indexOf("javascript") != -1 || mimeType.indexOf("xml") != -1);
+    }
+
+    /**
+     * Returns true if the client's Accept-Encoding request header accepts gzip.
+     * @param tx the HttpTransaction containing the request from the client.
+     * @return true if the client accepts gzip Content-Encoding.
+     */
+    public static boolean acceptsGzip(final HttpTransaction tx)
+    {
+        String acceptEncoding = tx.getHeader("Accept-Encoding");
+        if (acceptEncoding == null)
+        {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*"))
+            { // A quality value of zero means "not acceptable".
+                for (int i = 1; i < parts.length; i++)
+                {
+                    String parameter = parts[i].trim().replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?"))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compress content using gzip.
+     * @param content the content to compress.
+     * @return the compressed content.
+     */
+    public static byte[] gzip(final byte[] content) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length/4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bos);
+        gzip.write(content);
+        gzip.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Set the response headers for a gzip Content-Encoded response. A strong ETag has
+     * ConditionalRequest.GZIP_ETAG_SUFFIX appended because the compressed representation isn't byte for byte
+     * identical to the uncompressed one.
+     * @param tx the HttpTransaction used to send the response.
+     * @param etag the opaque (unquoted) entity tag of the uncompressed representation, or null if there isn't one.
+     */
+    public static void setGzipHeaders(final HttpTransaction tx, final String etag)
+    {
+        tx.setHeader("Content-Encoding", "gzip");
+        tx.setHeader("Vary", "Accept-Encoding");
+        if (etag != null)
+        {
+            tx.setHeader("ETag", "\"" + etag + ConditionalRequest.GZIP_ETAG_SUFFIX + "\"");
+        }
+    }
+}
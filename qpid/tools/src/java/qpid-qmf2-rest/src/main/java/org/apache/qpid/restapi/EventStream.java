@@ -0,0 +1,350 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi;
+
+// Misc Imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.common.WorkItem.WorkItemType;
+import org.apache.qpid.qmf2.console.AgentAccessWorkItem;
+
+/**
+ * An EventStream is a single client's text/event-stream (Server-Sent Events) response to which WorkItems received
+ * by a ConnectionProxy's QMF2 Console are pushed as they arrive.
+ * <p>
+ * The HTTP handler thread returns as soon as the response headers have been sent, the stream is then written to by
+ * a small Executor shared by all EventStreams. Each EventStream queues its pending events and schedules itself on the
+ * Executor only when it has events to write, so a large number of mostly idle clients costs a handful of threads.
+ * If a client falls too far behind (more than MAX_PENDING_EVENTS) or its connection fails the stream is closed, at
+ * which point a browser EventSource will reconnect.
+ * <p>
+ * com.sun.net.httpserver provides no way to abort a response whose write is blocked because the client has stopped
+ * reading, so closing an EventStream can't release a writer thread blocked in write(). Instead checkWriteTimeout()
+ * is called periodically and closes an EventStream whose write has taken longer than WRITE_TIMEOUT, adding a thread
+ * to the Executor until the write returns (when the client reads or the TCP connection fails) so that the other
+ * EventStreams aren't starved of writers.
+ * <p>
+ * Each event is written as "event: &lt;WorkItemType&gt;" followed by the JSON encoding of the WorkItem as its data.
+ * An EventStream may filter the WorkItems it receives by WorkItemType and by Agent name.
+ */
+public final class EventStream implements Runnable
+{
+    private static final Logger _log = LoggerFactory.getLogger(EventStream.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_PENDING_EVENTS = 1000;
+    private static final long WRITE_TIMEOUT = 30000;
+
+    private final OutputStream _out;
+    private final Executor _executor;
+    private final Set<WorkItemType> _types;
+    private final String _agentName;
+    private final BlockingQueue<byte[]> _pending = new ArrayBlockingQueue<byte[]>(MAX_PENDING_EVENTS);
+    private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+    private volatile boolean _closed = false;
+    private long _writeStarted = 0; // Guarded by this.
+    private boolean _stalled = false; // Guarded by this.
+
+    /**
+     * Construct an EventStream.
+     * @param out the response stream, whose headers have already been sent.
+     * @param executor the Executor used to write to the response stream.
+     * @param types the WorkItemTypes to send, as returned by parseTypes().
+     * @param agentName if not null only WorkItems relating to this Agent are sent.
+     */
+    public EventStream(final OutputStream out, final Executor executor, final Set<WorkItemType> types,
+                       final String agentName)
+    {
+        _out = out;
+        _executor = executor;
+        _types = types;
+        _agentName = agentName;
+
+        // Tell the client how long to wait before reconnecting should the stream be closed.
+        enqueue("retry: 5000\n\n");
+    }
+
+    /**
+     * Parse a WorkItemType filter.
+     * @param types a comma separated list of the WorkItemType names to send, null or empty to send all types.
+     * @return the Set of WorkItemTypes to send.
+     * @throws IllegalArgumentException if types contains an unknown WorkItemType name.
+     */
+    public static Set<WorkItemType> parseTypes(final String types)
+    {
+        if (types == null || types.length() == 0)
+        {
+            return EnumSet.allOf(WorkItemType.class);
+        }
+
+        Set<WorkItemType> result = EnumSet.noneOf(WorkItemType.class);
+        for (String type : types.split(","))
+        {
+            result.add(WorkItemType.valueOf(type.trim()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if this EventStream's filters accept the specified WorkItem.
+     * @param item the WorkItem to check.
+     * @return true if the WorkItem should be sent to this EventStream.
+     */
+    public boolean accepts(final WorkItem item)
+    {
+        if (!_types.contains(item.getType()))
+        {
+            return false;
+        }
+
+        if (_agentName != null)
+        {
+            return (item instanceof AgentAccessWorkItem) &&
+                   _agentName.equals(((AgentAccessWorkItem)item).getAgent().getName());
+        }
+        return true;
+    }
+
+    /**
+     * Queue a WorkItem to be sent to the client. The JSON encoding is passed in so that it need only be created
+     * once however many EventStreams a WorkItem is sent to.
+     * @param item the WorkItem being sent.
+     * @param json the JSON encoding of the WorkItem.
+     */
+    public void send(final WorkItem item, final String json)
+    {
+        StringBuilder buffer = new StringBuilder(json.length() + 64);
+        buffer.append("event: ").append(item.getType()).append("\n");
+        for (String line : json.split("\n", -1))
+        { // Any newlines in the data must be sent as separate data lines.
+            buffer.append("data: ").append(line).append("\n");
+        }
+        buffer.append("\n");
+        enqueue(buffer.toString());
+    }
+
+    /**
+     * Queue an SSE comment, used to keep idle connections alive and to detect clients that have gone away.
+     */
+    public void sendKeepAlive()
+    {
+        enqueue(":\n\n");
+    }
+
+    /**
+     * Queue some text to be written to the client and if necessary schedule this EventStream on the Executor.
+     * @param text the text to be written.
+     */
+    private void enqueue(final String text)
+    {
+        if (_closed)
+        {
+            return;
+        }
+
+        if (!_pending.offer(text.getBytes(UTF8)))
+        {
+            _log.info("EventStream client too slow, closing stream");
+            close();
+            return;
+        }
+
+        if (_scheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                _executor.execute(this);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                _closed = true;
+                closeOutput();
+            }
+        }
+    }
+
+    /**
+     * Write all pending events to the client. This is run on the Executor and only ever runs on one thread at a time
+     * for a given EventStream, the thread that sets _scheduled is the only one allowed to touch the response stream.
+     */
+    public void run()
+    {
+        try
+        {
+            byte[] data;
+            while (!_closed && (data = _pending.poll()) != null)
+            {
+                beginWrite();
+                try
+                {
+                    _out.write(data);
+                    if (_pending.isEmpty())
+                    {
+                        _out.flush();
+                    }
+                }
+                finally
+                {
+                    endWrite();
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            _log.info("EventStream write failed {}, closing stream", ioe.getMessage());
+            _closed = true;
+        }
+
+        if (_closed)
+        { // Leave _scheduled set so that nothing else attempts to write to the closed stream.
+            closeOutput();
+            return;
+        }
+
+        _scheduled.set(false);
+
+        // An event may have been queued after the final poll() but before _scheduled was cleared.
+        if (!_pending.isEmpty() && _scheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                _executor.execute(this);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                _closed = true;
+                closeOutput();
+            }
+        }
+    }
+
+    /**
+     * Record the start of a write so that checkWriteTimeout() can detect a client that has stopped reading.
+     */
+    private synchronized void beginWrite()
+    {
+        _writeStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * Record the end of a write. If checkWriteTimeout() added a thread to the Executor whilst the write was blocked
+     * that thread is removed again.
+     */
+    private synchronized void endWrite()
+    {
+        _writeStarted = 0;
+        if (_stalled)
+        {
+            _stalled = false;
+            resize(_executor, -1);
+        }
+    }
+
+    /**
+     * Close the EventStream if a write has been blocked for longer than WRITE_TIMEOUT. The blocked writer thread
+     * can't be released, so a thread is added to the Executor in its place until the write returns. This is called
+     * periodically by the ConnectionProxy housekeeping.
+     */
+    public synchronized void checkWriteTimeout()
+    {
+        if (!_stalled && _writeStarted != 0 && System.currentTimeMillis() - _writeStarted > WRITE_TIMEOUT)
+        {
+            _log.info("EventStream write timed out, closing stream");
+            _stalled = true;
+            _closed = true;
+            _pending.clear();
+            resize(_executor, 1);
+        }
+    }
+
+    /**
+     * Change the number of core threads of the Executor, if it is a ThreadPoolExecutor, to account for writer
+     * threads that are blocked on clients that have stopped reading.
+     * @param executor the Executor used to write to EventStreams.
+     * @param delta the change in the number of blocked writer threads.
+     */
+    private static void resize(final Executor executor, final int delta)
+    {
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor)executor;
+            synchronized (pool)
+            {
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+            }
+        }
+    }
+
+    /**
+     * Returns whether this EventStream has been closed.
+     * @return true if this EventStream has been closed.
+     */
+    public boolean isClosed()
+    {
+        return _closed;
+    }
+
+    /**
+     * Close the EventStream and the underlying response. If the stream is currently being written to then the
+     * writing thread closes the response when its write returns and it notices that the EventStream has been
+     * closed, a write that never returns is dealt with by checkWriteTimeout().
+     */
+    public void close()
+    {
+        _closed = true;
+        _pending.clear();
+        if (_scheduled.compareAndSet(false, true))
+        {
+            closeOutput();
+        }
+    }
+
+    /**
+     * Close the underlying response, only called by the thread that has set _scheduled.
+     */
+    private void closeOutput()
+    {
+        _pending.clear();
+        try
+        {
+            _out.close();
+        }
+        catch (IOException ioe)
+        { // Ignore, the client has most likely gone away already.
+        }
+    }
+}
@@ -20,6 +20,8 @@
  */
 package org.apache.qpid.restapi;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -28,6 +30,8 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,6 +52,13 @@ import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
  * Although this is a relatively simple File Server it is still able to serve large files as it uses streaming, in
  * addition it uses the HTTP Range/Content-Range/Content-Length Headers to allow resuming of partial downloads
  * from clients that support it.
+ * <p>
+ * Files are sent with ETag and Last-Modified headers derived from the file's size and modification time, so that
+ * conditional GET requests for unchanged files (such as the static UI assets) receive a 304 Not Modified response.
+ * Files up to MAX_CACHED_FILE_SIZE are held in a size bounded LRU cache, together with a precompressed gzip variant
+ * of textual files, so that the many small assets loaded by a web UI are served from memory. A cached file is
+ * reread if its modification time or size changes. Cached files without a gzip variant, such as those that gzip
+ * doesn't make any smaller, are sent with identity encoding so that they aren't compressed again for each request.
  *
  * @author Fraser Adams
  */
@@ -85,9 +96,50 @@ public class FileServer implements Server
         _mimeTypes.put("class", "application/octet-stream");
     }
 
+    /**
+     * The maximum total size in bytes of the file contents (including gzip variants) held in the cache.
+     */
+    private static final long MAX_CACHE_SIZE = 16*1024*1024;
+
+    /**
+     * Files larger than this aren't cached, they are streamed from disk for every request.
+     */
+    private static final long MAX_CACHED_FILE_SIZE = 1024*1024;
+
+    /**
+     * The cached contents of a file together with the validators used to detect that the file has changed.
+     */
+    private static final class CachedFile
+    {
+        private final byte[] _content;
+        private final byte[] _gzipped;
+        private final long _lastModified;
+        private final long _length;
+
+        private CachedFile(final byte[] content, final byte[] gzipped, final long lastModified)
+        {
+            _content = content;
+            _gzipped = gzipped;
+            _lastModified = lastModified;
+            _length = content.length;
+        }
+
+        private long size()
+        {
+            return _content.length + (_gzipped == null ? 0 : _gzipped.length);
+        }
+    }
+
     private final File _home;
     private final boolean _allowDirectoryListing;
 
+    /**
+     * LRU cache of file contents keyed by canonical path, the least recently used files are evicted when the total
+     * size exceeds MAX_CACHE_SIZE. Guarded by synchronized (_cache).
+     */
+    private final LinkedHashMap<String, CachedFile> _cache = new LinkedHashMap<String, CachedFile>(64, 0.75f, true);
+    private long _cacheSize = 0;
+
     /**
      * URL-encodes everything between "/"-characters. Encodes spaces as '%20' instead of '+'.
      *
@@ -152,6 +204,88 @@ public class FileServer implements Server
         }
     }
 
+    /**
+     * Return the cached contents of a file, reading the file into the cache if it isn't cached or has changed since
+     * it was cached. Textual files also have a precompressed gzip variant cached.
+     *
+     * @param file the file to return.
+     * @param fileName the canonical path of the file.
+     * @param mime the mimeType of the file.
+     * @param lastModified the current modification time of the file.
+     * @param length the current length of the file.
+     * @return the cached contents of the file or null if the file is too large to be cached.
+     */
+    private CachedFile getCachedFile(final File file, final String fileName, final String mime,
+                                     final long lastModified, final long length) throws IOException
+    {
+        if (length > MAX_CACHED_FILE_SIZE)
+        {
+            return null;
+        }
+
+        synchronized (_cache)
+        {
+            CachedFile cached = _cache.get(fileName);
+            if (cached != null && cached._lastModified == lastModified && cached._length == length)
+            {
+                return cached;
+            }
+        }
+
+        // Read the file outside the lock, if two threads race to read the same file the last one wins.
+        byte[] content = new byte[(int)length];
+        DataInputStream is = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            is.readFully(content);
+            if (is.read() != -1)
+            { // The file has grown since its length was checked, so don't cache a truncated copy.
+                return null;
+            }
+        }
+        catch (EOFException eofe)
+        { // The file has shrunk since its length was checked.
+            return null;
+        }
+        finally
+        {
+            is.close();
+        }
+
+        byte[] gzipped = null;
+        if (length >= ContentEncoding.GZIP_THRESHOLD && ContentEncoding.isCompressible(mime))
+        {
+            gzipped = ContentEncoding.gzip(content);
+            if (gzipped.length >= content.length)
+            {
+                gzipped = null;
+            }
+        }
+
+        CachedFile cached = new CachedFile(content, gzipped, lastModified);
+        synchronized (_cache)
+        {
+            CachedFile previous = _cache.put(fileName, cached);
+            if (previous != null)
+            {
+                _cacheSize -= previous.size();
+            }
+            _cacheSize += cached.size();
+
+            Iterator<CachedFile> i = _cache.values().iterator();
+            while (_cacheSize > MAX_CACHE_SIZE && i.hasNext())
+            {
+                CachedFile eldest = i.next();
+                if (eldest != cached)
+                {
+                    _cacheSize -= eldest.size();
+                    i.remove();
+                }
+            }
+        }
+        return cached;
+    }
+
     /**
      * Construct an instance of FileServer.
      *
@@ -294,10 +428,17 @@ public class FileServer implements Server
                 mime = "application/octet-stream";
             }
         
-            // Use Range header allow download resuming.
-            long startFrom = 0;
+            // Use the file's modification time and size as validators so that unchanged files aren't resent.
+            long lastModified = file.lastModified();
             long length = file.length();
+            String etag = Long.toHexString(lastModified) + "-" + Long.toHexString(length);
+            if (ConditionalRequest.checkNotModified(tx, etag, lastModified, mime))
+            {
+                return;
+            }
 
+            // Use Range header allow download resuming.
+            long startFrom = 0;
             String range = tx.getHeader("Range");
             if (range != null)
             {
@@ -321,14 +462,48 @@ public class FileServer implements Server
                 }
             }
 
+            // Complete responses are served from the cache, partial ones (and large files) are streamed from disk.
+            CachedFile cached = (startFrom == 0) ? getCachedFile(file, fileName, mime, lastModified, length) : null;
+            if (cached != null)
+            {
+                if (cached._gzipped != null)
+                { // The response varies by Accept-Encoding whether or not it is compressed.
+                    tx.setHeader("Vary", "Accept-Encoding");
+                    if (ContentEncoding.acceptsGzip(tx))
+                    {
+                        ContentEncoding.setGzipHeaders(tx, etag);
+                        tx.sendResponse(HTTP_OK, mime, cached._gzipped);
+                        return;
+                    }
+                }
+                else
+                { // We've already found that the file isn't worth compressing.
+                    tx.setHeader("Content-Encoding", ContentEncoding.IDENTITY);
+                }
+                tx.setHeader("Accept-Ranges", "bytes");
+                tx.sendResponse(HTTP_OK, mime, cached._content);
+                return;
+            }
+
             FileInputStream is = new FileInputStream(file);
             is.skip(startFrom);
 
             int status = (startFrom == 0) ? HTTP_OK : HTTP_PARTIAL;
+            tx.setHeader("Accept-Ranges", "bytes");
             tx.setHeader("Content-Length", "" + (length - startFrom));
-            tx.setHeader("Content-Range", "" + startFrom + "-" + (length - 1) + "/" + length);
+            if (status == HTTP_PARTIAL)
+            { // Only partial responses have a Content-Range, which also prevents them being compressed.
+                tx.setHeader("Content-Range", "bytes " + startFrom + "-" + (length - 1) + "/" + length);
+            }
 
-            tx.sendResponse(status, mime, is);
+            try
+            {
+                tx.sendResponse(status, mime, is);
+            }
+            finally
+            {
+                is.close();
+            }
         }
         catch (IOException ioe)
         {
@@ -22,6 +22,7 @@ package org.apache.qpid.restapi;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * An HttpTransaction encapsulates an HTTP request received and a response to be generated in one HTTP request/response
@@ -90,6 +91,17 @@ public interface HttpTransaction
      */
     public void sendResponse(final int status, final String mimeType, final InputStream is) throws IOException;
 
+    /**
+     * Send the HTTP response headers and return a stream used to write the response body, which is sent using
+     * chunked transfer encoding. Unlike the sendResponse methods the transaction remains open after the Server
+     * method returns and is only completed when the returned stream is closed, possibly from another thread.
+     * This is used to support long lived streaming responses such as text/event-stream.
+     * @param status the HTTP status code e.g. 200 for OK.
+     * @param mimeType the mimeType of the response content e.g. text/event-stream.
+     * @return the OutputStream used to write the response body.
+     */
+    public OutputStream getResponseStream(final int status, final String mimeType) throws IOException;
+
     /**
      * Returns the Internet Protocol (IP) address of the client or last proxy that sent the request.
      * @return the Internet Protocol (IP) address of the client or last proxy that sent the request.
@@ -128,6 +140,13 @@ public interface HttpTransaction
      */
     public String getRequestURI();
 
+    /**
+     * Returns the query string that is contained in the request URL after the path, or null if the URL does not have
+     * a query string. The query string is returned in its raw, undecoded, form.
+     * @return a String containing the query string or null if the URL contains no query string.
+     */
+    public String getQueryString();
+
     /**
      * Sets a response header with the given name and value. If the header had already been set, the new value
      * overwrites the previous one.
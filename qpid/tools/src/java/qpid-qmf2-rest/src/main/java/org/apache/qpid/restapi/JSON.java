@@ -20,9 +20,14 @@
  */
 package org.apache.qpid.restapi;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 // QMF2 imports
@@ -38,14 +43,12 @@ import org.apache.qpid.qmf2.console.QmfConsoleData;
  * This class provides a number of convenience methods to serialise and deserialise JSON strings to/from Java
  * Collections or QmfData objects.
  *
- * The JSONMapParser class used here is largely a direct copy of org.apache.qpid.messaging.util.AddressParser
- * as it provides a handy mechanism to parse a JSON String into a Map which is the only JSON requirement that
- * we really need for QMF. Originally this code simply did "import org.apache.qpid.messaging.util.AddressParser;"
- * but there's a restriction/bug on the core AddressParser whereby it serialises integers into Java Integer
- * which means that long integer values aren't correctly stored. It's this restriction that gives Java Address
- * Strings a defacto 2GB queue size. I should really provide a patch for the *real* AddressParser but it's better
- * to add features covering "shorthand" forms for large values (e.g. k/K, m/M, g/G for kilo, mega, giga etc.)
- * to both the Java and C++ AddressParser to ensure maximum consistency.
+ * Deserialisation is performed by JSONMapParser, which started out as a copy of
+ * org.apache.qpid.messaging.util.AddressParser as that provides a handy mechanism to parse a JSON String into a Map
+ * which is the only JSON requirement that we really need for QMF. Originally this code simply did
+ * "import org.apache.qpid.messaging.util.AddressParser;" but there's a restriction/bug on the core AddressParser
+ * whereby it serialises integers into Java Integer which means that long integer values aren't correctly stored.
+ * JSONMapParser is now a streaming parser, so request bodies can be parsed straight from the request InputStream.
  *
  * Because the JSON requirements for the REST API are relatively modest a fairly simple serialisation/deserialisation
  * mechanism is included here and in the modified AddressParser classes rather than incorporating a full-blown
@@ -55,11 +58,13 @@ import org.apache.qpid.qmf2.console.QmfConsoleData;
  */
 public final class JSON
 {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * Serialise an Object to JSON. Note this isn't a full JSON serialisation of java.lang.Object, rather it only
      * includes types that are relevant to QmfData Objects and the types that may be contained therein.
      * @param item the Object that we wish to serialise to JSON.
-     * @return the JSON String encoding.
+     * @return the JSON String encoding, an empty String if item is null.
      */
     public final static String fromObject(final Object item)
     {
@@ -67,175 +72,301 @@ public final class JSON
         {
             return "";
         }
+
+        StringBuilder buffer = new StringBuilder(512);
+        try
+        {
+            write(buffer, item);
+        }
+        catch (IOException ioe)
+        { // Can't happen, StringBuilder.append() doesn't throw IOException.
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Serialise a Map to JSON.
+     * @param m the Map that we wish to serialise to JSON.
+     * @return the JSON String encoding.
+     */
+    public final static String fromMap(final Map m)
+    {
+        return fromObject(m);
+    }
+
+    /**
+     * Serialise a List to JSON.
+     * @param list the List that we wish to serialise to JSON.
+     * @return the JSON String encoding.
+     */
+    public final static String fromList(final List list)
+    {
+        return fromObject(list);
+    }
+
+    /**
+     * Serialise a QmfData Object to JSON. If the Object is a QmfConsoleData we serialise the ObjectId as a String
+     * which is the same encoding used for the various "ref" properies in fromObject().
+     * @param data the QmfData that we wish to serialise to JSON.
+     * @return the JSON String encoding.
+     */
+    public final static String fromQmfData(final QmfData data)
+    {
+        return fromObject(data);
+    }
+
+    /**
+     * Serialise a WorkItem Object to JSON.
+     * @param data the WorkItem that we wish to serialise to JSON.
+     * @return the JSON String encoding.
+     */
+    public final static String fromWorkItem(final WorkItem data)
+    {
+        return fromObject(data);
+    }
+
+    /**
+     * Serialise an Object to JSON, writing the encoding directly to an Appendable such as a Writer wrapping an
+     * HTTP response stream. This avoids building the whole (potentially very large) encoding as a String, so
+     * callers serialising large Lists of QmfData should prefer this to fromObject(). Unlike fromObject() a null
+     * item is written as a JSON null, which is also how null values contained in Maps and Lists are written.
+     * @param out the Appendable that the JSON encoding is written to.
+     * @param item the Object that we wish to serialise to JSON.
+     */
+    public final static void write(final Appendable out, final Object item) throws IOException
+    {
+        write(out, item, null);
+    }
+
+    /**
+     * Serialise an Object to JSON, writing the encoding directly to an Appendable, including only the specified
+     * properties of the QmfData contained in item. The _object_id, _schema_id and timestamps of QmfConsoleData are
+     * always included. The projection applies to item if it is a QmfData or to the QmfData in item if it is a List.
+     * @param out the Appendable that the JSON encoding is written to.
+     * @param item the Object that we wish to serialise to JSON.
+     * @param properties the names of the QmfData properties to include, or null to include all properties.
+     */
+    public final static void write(final Appendable out, final Object item, final Set<String> properties)
+        throws IOException
+    {
+        if (item == null)
+        {
+            out.append("null");
+        }
         else
         {
             if (item instanceof Map)
             { // Check if the value part is an ObjectId and serialise appropriately
                 Map map = (Map)item;
                 if (map.containsKey("_object_name"))
-                { // Serialise "ref" properties as String versions of ObjectId to match encoding used in fromQmfData()
-                    return "\"" + new ObjectId(map) + "\"";
+                { // Serialise "ref" properties as String versions of ObjectId to match encoding used in writeQmfData()
+                    writeString(out, new ObjectId(map).toString());
                 }
                 else
                 {
-                    return fromMap(map);
+                    out.append('{');
+                    writeMapContents(out, map, true, null);
+                    out.append('}');
                 }
             }
             else if (item instanceof List)
             {
-                return fromList((List)item);
+                writeList(out, (List)item, properties);
             }
             else if (item instanceof QmfData)
             {
-                return fromQmfData((QmfData)item);
+                writeQmfData(out, (QmfData)item, properties);
             }
             else if (item instanceof WorkItem)
             {
-                return fromWorkItem((WorkItem)item);
+                writeWorkItem(out, (WorkItem)item);
             }
             else if (item instanceof String)
             {
-                return "\"" + item + "\"";
+                writeString(out, (String)item);
             }
             else if (item instanceof byte[])
             {
-                return "\"" + new String((byte[])item) + "\"";
+                writeString(out, new String((byte[])item));
             }
             else if (item instanceof UUID)
             {
-                return "\"" + item.toString() + "\"";
+                writeString(out, item.toString());
             }
             else
             {
-                return item.toString();
+                out.append(item.toString());
             }
         }
     }
 
     /**
-     * Encode the Map contents so we can use the same code for fromMap and fromQmfData as the latter also needs
-     * to encode _object_id and _schema_id. This returns a String that needs to be topped and tailed with braces.
-     * @param m the Map that we wish to serialise to JSON.
-     * @return the String encoding of the contents.
+     * Write a String as a quoted JSON string, escaping quotes, backslashes and control characters.
+     * @param out the Appendable that the JSON encoding is written to.
+     * @param value the String that we wish to serialise to JSON.
      */
-    @SuppressWarnings("unchecked")
-    private final static String encodeMapContents(final Map m)
+    private final static void writeString(final Appendable out, final String value) throws IOException
     {
-        Map<String, Object> map = (Map<String, Object>)m;
-        StringBuilder buffer = new StringBuilder(512);
-        int size = map.size();
-        int count = 1;
-        for (Map.Entry<String, Object> entry : map.entrySet())
+        if (value == null)
         {
-            String key = (String)entry.getKey();
-            buffer.append("\"" + key + "\":");
+            out.append("null");
+            return;
+        }
 
-            Object value = entry.getValue();
-            buffer.append(fromObject(value));
-            if (count++ < size)
+        out.append('"');
+        int length = value.length();
+        int start = 0; // Runs of characters that don't need escaping are appended in one go.
+        for (int i = 0; i < length; i++)
+        {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\' || ch < 0x20)
             {
-                buffer.append(",");
+                out.append(value, start, i);
+                start = i + 1;
+                switch (ch)
+                {
+                    case '"':  out.append("\\\""); break;
+                    case '\\': out.append("\\\\"); break;
+                    case '\n': out.append("\\n"); break;
+                    case '\r': out.append("\\r"); break;
+                    case '\t': out.append("\\t"); break;
+                    case '\b': out.append("\\b"); break;
+                    case '\f': out.append("\\f"); break;
+                    default:
+                        String hex = Integer.toHexString(ch);
+                        out.append("\\u");
+                        for (int j = hex.length(); j < 4; j++)
+                        {
+                            out.append('0');
+                        }
+                        out.append(hex);
+                }
             }
         }
-        return buffer.toString();
+        out.append(value, start, length);
+        out.append('"');
     }
 
     /**
-     * Serialise a Map to JSON.
+     * Write the Map contents so we can use the same code for Maps and QmfData as the latter also needs to encode
+     * _object_id and _schema_id. The contents need to be topped and tailed with braces by the caller.
+     * @param out the Appendable that the JSON encoding is written to.
      * @param m the Map that we wish to serialise to JSON.
-     * @return the JSON String encoding.
+     * @param first true if the contents are the first members written within the enclosing braces.
+     * @param properties the names of the entries to include, or null to include all entries.
      */
     @SuppressWarnings("unchecked")
-    public final static String fromMap(final Map m)
+    private final static void writeMapContents(final Appendable out, final Map m, boolean first,
+                                               final Set<String> properties) throws IOException
     {
-        return "{" + encodeMapContents(m) + "}";
+        Map<String, Object> map = (Map<String, Object>)m;
+        for (Map.Entry<String, Object> entry : map.entrySet())
+        {
+            if (properties != null && !properties.contains(entry.getKey()))
+            {
+                continue;
+            }
+
+            if (!first)
+            {
+                out.append(',');
+            }
+            first = false;
+            writeString(out, entry.getKey());
+            out.append(':');
+            write(out, entry.getValue());
+        }
     }
 
     /**
-     * Serialise a List to JSON.
+     * Write a List as a JSON array.
+     * @param out the Appendable that the JSON encoding is written to.
      * @param list the List that we wish to serialise to JSON.
-     * @return the JSON String encoding.
+     * @param properties the names of the QmfData properties to include, or null to include all properties.
      */
-    public final static String fromList(final List list)
+    private final static void writeList(final Appendable out, final List list, final Set<String> properties)
+        throws IOException
     {
-        StringBuilder buffer = new StringBuilder(512);
-        buffer.append("[");
-        int size = list.size();
-        int count = 1;
+        out.append('[');
+        boolean first = true;
         for (Object item : list)
         {
-            buffer.append(fromObject(item));
-            if (count++ < size)
+            if (!first)
             {
-                buffer.append(",");
+                out.append(',');
             }
+            first = false;
+            write(out, item, properties);
         }
-        buffer.append("]");
-        return buffer.toString();
+        out.append(']');
     }
 
     /**
-     * Serialise a QmfData Object to JSON. If the Object is a QmfConsoleData we serialise the ObjectId as a String
-     * which is the same encoding used for the various "ref" properies in fromObject().
+     * Write a QmfData Object as JSON. If the Object is a QmfConsoleData we serialise the ObjectId as a String
+     * which is the same encoding used for the various "ref" properies in write().
+     * @param out the Appendable that the JSON encoding is written to.
      * @param data the QmfData that we wish to serialise to JSON.
-     * @return the JSON String encoding.
+     * @param properties the names of the properties to include, or null to include all properties.
      */
-    public final static String fromQmfData(final QmfData data)
+    private final static void writeQmfData(final Appendable out, final QmfData data, final Set<String> properties)
+        throws IOException
     {
-        String consoleDataInfo = "";
-
+        out.append('{');
+        boolean first = true;
         if (data instanceof QmfConsoleData)
         {
             QmfConsoleData consoleData = (QmfConsoleData)data;
             SchemaClassId sid = consoleData.getSchemaClassId();
             long[] ts = consoleData.getTimestamps();
 
-            String objectId = "\"_object_id\":\"" + consoleData.getObjectId().toString() + "\",";
-            String schemaId = "\"_schema_id\":{" + 
-                "\"_package_name\":\"" + sid.getPackageName() +
-                "\",\"_class_name\":\"" + sid.getClassName() +
-                "\",\"_type\":\"" + sid.getType() +
-                "\",\"_hash\":\"" + sid.getHashString() +
-            "\"},";
-
-            String timestamps = "\"_update_ts\":" + ts[0] + "," +
-                                "\"_create_ts\":" + ts[1] + "," +
-                                "\"_delete_ts\":" + ts[2] + ",";
-
-            consoleDataInfo = objectId + schemaId + timestamps;
+            out.append("\"_object_id\":");
+            writeString(out, consoleData.getObjectId().toString());
+            out.append(",\"_schema_id\":{\"_package_name\":");
+            writeString(out, sid.getPackageName());
+            out.append(",\"_class_name\":");
+            writeString(out, sid.getClassName());
+            out.append(",\"_type\":");
+            writeString(out, sid.getType());
+            out.append(",\"_hash\":");
+            writeString(out, sid.getHashString().toString());
+            out.append("},\"_update_ts\":").append(Long.toString(ts[0]));
+            out.append(",\"_create_ts\":").append(Long.toString(ts[1]));
+            out.append(",\"_delete_ts\":").append(Long.toString(ts[2]));
+            first = false;
         }
 
-        return "{" + consoleDataInfo + encodeMapContents(data.mapEncode()) + "}";
+        writeMapContents(out, data.mapEncode(), first, properties);
+        out.append('}');
     }
 
     /**
-     * Serialise a WorkItem Object to JSON.
+     * Write a WorkItem Object as JSON.
+     * @param out the Appendable that the JSON encoding is written to.
      * @param data the WorkItem that we wish to serialise to JSON.
-     * @return the JSON String encoding.
      */
-    public final static String fromWorkItem(final WorkItem data)
+    private final static void writeWorkItem(final Appendable out, final WorkItem data) throws IOException
     {
         // TODO There are a couple of WorkItem types that won't serialise correctly - SubscriptionIndicationWorkItem
         // and MethodCallWorkItem. Their params require a custom serialiser - though they probably won't be used
         // from a REST API so they've been parked for now.
-        String type = "\"_type\":\"" + data.getType() + "\",";
+        out.append("{\"_type\":");
+        writeString(out, data.getType().toString());
         Handle handle = data.getHandle();
-        String handleString = handle == null ? "" : "\"_handle\":\"" + handle.getCorrelationId() + "\",";
-        String params = "\"_params\":" + fromObject(data.getParams());
-
-        return "{" + type + handleString + params + "}";
+        if (handle != null)
+        {
+            out.append(",\"_handle\":");
+            writeString(out, handle.getCorrelationId());
+        }
+        out.append(",\"_params\":");
+        write(out, data.getParams());
+        out.append('}');
     }
 
     /**
      * Create a Map from a JSON String.
-     * The JSONMapParser class used here is largely a direct copy of org.apache.qpid.messaging.util.AddressParser
-     * as it provides a handy mechanism to parse a JSON String into a Map which is the only JSON requirement that
-     * we really need for QMF. Originally this code simply did "import org.apache.qpid.messaging.util.AddressParser;"
-     * but there's a restriction/bug on the core AddressParser whereby it serialises integers into Java Integer
-     * which means that long integer values aren't correctly stored. It's this restriction that gives Java Address
-     * Strings a defacto 2GB queue size. I should really provide a patch for the *real* AddressParser but it's better
-     * to add features covering "shorthand" forms for large values (e.g. k/K, m/M, g/G for kilo, mega, giga etc.)
-     * to both the Java and C++ AddressParser to ensure maximum consistency.
+     * JSONMapParser accepts the relaxed syntax of org.apache.qpid.messaging.util.AddressParser, e.g. unquoted
+     * identifiers and single quoted Strings, but integers are stored as a Long if they are too large for an Integer
+     * and "shorthand" forms for large values (e.g. "10K", "10M", "10G" for kilo, mega, giga etc.) are supported.
      * @param json the JSON String that we wish to decode into a Map.
      * @return the Map encoding of the JSON String.
      */
@@ -251,6 +382,25 @@ public final class JSON
         }
     }
 
+    /**
+     * Create a Map from UTF-8 encoded JSON read from an InputStream, such as the body of an HTTP request. The JSON is
+     * parsed as it is read rather than first being read into a String. The InputStream isn't closed.
+     * @param json the InputStream containing the JSON that we wish to decode into a Map.
+     * @return the Map encoding of the JSON, an empty Map if the InputStream contains nothing but whitespace.
+     */
+    public final static Map toMap(final InputStream json)
+    {
+        JSONMapParser parser = new JSONMapParser(new InputStreamReader(json, UTF8));
+        if (parser.isEmpty())
+        {
+            return Collections.EMPTY_MAP;
+        }
+        else
+        {
+            return parser.map();
+        }
+    }
+
     /**
      * Create a QmfData from a JSON String.
      * @param json the JSON String that we wish to decode into a QmfData.
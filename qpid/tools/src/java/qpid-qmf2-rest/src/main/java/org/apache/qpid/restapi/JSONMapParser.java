@@ -20,383 +20,545 @@
  */
 package org.apache.qpid.restapi;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.qpid.messaging.Address;
-import org.apache.qpid.messaging.util.Lexer;
-import org.apache.qpid.messaging.util.Lexicon;
-import org.apache.qpid.messaging.util.ParseError;
-import org.apache.qpid.messaging.util.Token;
-
 /**
- * AddressParser
- *
- * This JSONMapParser class used is mostly just a direct copy of org.apache.qpid.messaging.util.AddressParser
- * as it provides a handy mechanism to parse a JSON String into a Map which is the only JSON requirement that
- * we really need for QMF.
- *
- * Unfortunately there's a restriction/bug on the core AddressParser whereby it serialises integers into Java Integer
- * which means that long integer values aren't correctly stored. It's this restriction that gives Java Address
- * Strings a defacto 2GB queue size. I should really provide a patch for the *real* AddressParser but it's better
- * to add features covering "shorthand" forms for large values (e.g. k/K, m/M, g/G for kilo, mega, giga etc.)
- * to both the Java and C++ AddressParser to ensure maximum consistency.
+ * JSONMapParser
  *
- * This AddressParser clone largely uses the classes from org.apache.qpid.messaging.util like the real AddressParser
- * but unfortunately the Parser class was package scope rather than public, so I've done some "copy and paste reuse"
- * to add the Parser methods into this version of AddressParser. I've also removed the bits that actually create
- * an Address as all we need to do is to parse into a java.util.Map.
+ * This class parses JSON into java.util.Map and java.util.List Objects, which is the only JSON requirement that we
+ * really need for QMF. It started out as a copy of org.apache.qpid.messaging.util.AddressParser, because there's a
+ * restriction/bug on the core AddressParser whereby it serialises integers into Java Integer which means that long
+ * integer values aren't correctly stored (it's this restriction that gives Java Address Strings a defacto 2GB queue
+ * size), and it still accepts the same relaxed syntax as AddressParser so that Address style connectionOptions work:
+ * <pre>
+ * - Unquoted identifiers e.g. {reconnect: True} are parsed as Strings and true/false are case insensitive.
+ * - Strings may be quoted with either double or single quotes.
+ * - Quoted numbers ending in K, M or G e.g. "10M" are parsed as a Long multiplied by 1000, 1000000 or 1000000000.
+ * - Integers are parsed as an Integer if they fit, otherwise as a Long, and other numbers as a Double.
+ * - Trailing commas are allowed in Maps and Lists.
+ * </pre>
+ * Rather than tokenising the whole input into a List of Tokens using regular expressions the parser is a single
+ * pass recursive descent parser that reads characters straight from its input, which may be a Reader such as the
+ * body of an HTTP request, so large request bodies are parsed in linear time without first being read into a String.
+ * Numbers are accumulated as they are read, so parsing them doesn't rely on NumberFormatException.
+ * <p>
+ * Errors are reported by throwing an IllegalArgumentException containing the offset at which the error occurred.
  */
 
 public class JSONMapParser
 {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int EOF = -1;
 
-    private static Lexicon lxi = new Lexicon();
-
-    private static Token.Type LBRACE = lxi.define("LBRACE", "\\{");
-    private static Token.Type RBRACE = lxi.define("RBRACE", "\\}");
-    private static Token.Type LBRACK = lxi.define("LBRACK", "\\[");
-    private static Token.Type RBRACK = lxi.define("RBRACK", "\\]");
-    private static Token.Type COLON = lxi.define("COLON", ":");
-    private static Token.Type SEMI = lxi.define("SEMI", ";");
-    private static Token.Type SLASH = lxi.define("SLASH", "/");
-    private static Token.Type COMMA = lxi.define("COMMA", ",");
-    private static Token.Type NUMBER = lxi.define("NUMBER", "[+-]?[0-9]*\\.?[0-9]+");
-    // Make test for true and false case insensitive. N.B. org.apache.qpid.messaging.util.AddressParser test is
-    // case sensitive - not sure if that's a bug/oversight in the AddressParser??
-    private static Token.Type TRUE = lxi.define("TRUE", "(?i)True");
-    private static Token.Type FALSE = lxi.define("FALSE", "(?i)False");
-    private static Token.Type ID = lxi.define("ID", "[a-zA-Z_](?:[a-zA-Z0-9_-]*[a-zA-Z0-9_])?");
-    private static Token.Type STRING = lxi.define("STRING", "\"(?:[^\\\"]|\\.)*\"|'(?:[^\\']|\\.)*'");
-    private static Token.Type ESC = lxi.define("ESC", "\\\\[^ux]|\\\\x[0-9a-fA-F][0-9a-fA-F]|\\\\u[0-9a-fA-F][0-9a-fA-F][0-9a-fA-F][0-9a-fA-F]");
-    private static Token.Type SYM = lxi.define("SYM", "[.#*%@$^!+-]");
-    private static Token.Type WSPACE = lxi.define("WSPACE", "[\\s]+");
-    private static Token.Type EOF = lxi.eof("EOF");
-
-    private static Lexer LEXER = lxi.compile();
-
-/********** Copied from org.apache.qpid.messaging.util.Parser as Parser was package scope **********/
-
-    private List<Token> tokens;
-    private int idx = 0;
-
-    Token next()
+    private final Reader _reader;
+    private final StringBuilder _text = new StringBuilder();
+    private char[] _buffer;
+    private int _position = 0;
+    private int _limit = 0;
+    private long _offset = 0; // The offset of the start of _buffer in the input, used for error messages.
+
+    /**
+     * Construct a JSONMapParser that parses a String.
+     * @param input the String to parse.
+     */
+    public JSONMapParser(final String input)
     {
-        return tokens.get(idx);
+        _reader = null;
+        _buffer = input.toCharArray();
+        _limit = _buffer.length;
     }
 
-    boolean matches(Token.Type ... types)
+    /**
+     * Construct a JSONMapParser that reads its input from a Reader. The Reader is read through an internal buffer
+     * so it needn't be buffered, and the parser doesn't close it.
+     * @param reader the Reader to parse.
+     */
+    public JSONMapParser(final Reader reader)
     {
-        for (Token.Type t : types)
-        {
-            if (next().getType() == t)
-            {
-                return true;
-            }
-        }
-        return false;
+        _reader = reader;
+        _buffer = new char[BUFFER_SIZE];
     }
 
-    Token eat(Token.Type ... types)
+    /**
+     * Return the next character of the input without consuming it.
+     * @return the next character of the input or EOF.
+     */
+    private int peek()
     {
-        if (types.length > 0 && !matches(types))
-        {
-            throw new ParseError(next(), types);
-        }
-        else
+        if (_position == _limit && !fill())
         {
-            Token t = next();
-            idx += 1;
-            return t;
+            return EOF;
         }
+        return _buffer[_position];
     }
 
-/***************************************************************************************************/
-
-    public static List<Token> lex(String input)
+    /**
+     * Consume and return the next character of the input.
+     * @return the next character of the input or EOF.
+     */
+    private int read()
     {
-        return LEXER.lex(input);
+        if (_position == _limit && !fill())
+        {
+            return EOF;
+        }
+        return _buffer[_position++];
     }
 
-    static List<Token> wlex(String input)
+    /**
+     * Refill the buffer from the Reader.
+     * @return false if the end of the input has been reached.
+     */
+    private boolean fill()
     {
-        List<Token> tokens = new ArrayList<Token>();
-        for (Token t : lex(input))
+        if (_reader == null)
         {
-            if (t.getType() != WSPACE)
-            {
-                tokens.add(t);
-            }
+            return false;
         }
-        return tokens;
-    }
 
-    static String unquote(String st, Token tok)
-    {
-        StringBuilder result = new StringBuilder();
-        for (int i = 1; i < st.length() - 1; i++)
+        try
         {
-            char ch = st.charAt(i);
-            if (ch == '\\')
+            _offset += _limit;
+            _position = 0;
+            _limit = 0;
+            int count = _reader.read(_buffer, 0, _buffer.length);
+            while (count == 0)
             {
-                char code = st.charAt(i+1);
-                switch (code)
-                {
-                case '\n':
-                    break;
-                case '\\':
-                    result.append('\\');
-                    break;
-                case '\'':
-                    result.append('\'');
-                    break;
-                case '"':
-                    result.append('"');
-                    break;
-                case 'a':
-                    result.append((char) 0x07);
-                    break;
-                case 'b':
-                    result.append((char) 0x08);
-                    break;
-                case 'f':
-                    result.append('\f');
-                    break;
-                case 'n':
-                    result.append('\n');
-                    break;
-                case 'r':
-                    result.append('\r');
-                    break;
-                case 't':
-                    result.append('\t');
-                    break;
-                case 'u':
-                    result.append(decode(st.substring(i+2, i+6)));
-                    i += 4;
-                    break;
-                case 'v':
-                    result.append((char) 0x0b);
-                    break;
-                case 'o':
-                    result.append(decode(st.substring(i+2, i+4), 8));
-                    i += 2;
-                    break;
-                case 'x':
-                    result.append(decode(st.substring(i+2, i+4)));
-                    i += 2;
-                    break;
-                default:
-                    throw new ParseError(tok);
-                }
-                i += 1;
+                count = _reader.read(_buffer, 0, _buffer.length);
             }
-            else
+
+            if (count < 0)
             {
-                result.append(ch);
+                return false;
             }
+            _limit = count;
+            return true;
         }
+        catch (IOException ioe)
+        {
+            throw new IllegalArgumentException("Error reading JSON input: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Skip any whitespace and return the next character of the input without consuming it.
+     * @return the next non-whitespace character of the input or EOF.
+     */
+    private int skipWhitespace()
+    {
+        int ch = peek();
+        while (ch != EOF && Character.isWhitespace(ch))
+        {
+            _position++;
+            ch = peek();
+        }
+        return ch;
+    }
 
-        return result.toString();
+    /**
+     * Create an IllegalArgumentException describing a parse error at the current position.
+     * @param expected a description of what was expected.
+     * @return the IllegalArgumentException to throw.
+     */
+    private IllegalArgumentException error(final String expected)
+    {
+        int ch = peek();
+        String found = (ch == EOF) ? "end of input" : "'" + (char)ch + "'";
+        return new IllegalArgumentException("Expected " + expected + " but found " + found +
+                                            " at offset " + (_offset + _position));
     }
 
-    static char[] decode(String hex)
+    /**
+     * Consume the next non-whitespace character, which must be the expected character.
+     * @param expected the expected character.
+     */
+    private void eat(final char expected)
     {
-        return decode(hex, 16);
+        if (skipWhitespace() != expected)
+        {
+            throw error("'" + expected + "'");
+        }
+        _position++;
     }
 
-    static char[] decode(String code, int radix)
+    /**
+     * Returns true if the input contains nothing but whitespace, in which case there is nothing to parse.
+     * @return true if the input contains nothing but whitespace.
+     */
+    public boolean isEmpty()
     {
-        return Character.toChars(Integer.parseInt(code, radix));
+        return skipWhitespace() == EOF;
     }
 
     /**
-     * This method is the the main place where this class differs from org.apache.qpid.messaging.util.AddressParser.
-     * If the token type is a STRING it checks for a number (with optional floating point) ending in K, M or G
-     * and if it is of this type it creates a Long out of the float value multiplied by 1000, 1000000 or 1000000000.
-     * If the token type is a NUMBER it tries to parse into an Integer like AddressParser, but if that fails it
-     * tries to parse onto a Long which allows much larger integer values to be used.
+     * Parse a Map, which must be the next value in the input.
+     * @return the Map that has been parsed.
      */
-    static Object tok2obj(Token tok)
+    public Map<Object,Object> map()
     {
-        Token.Type type = tok.getType();
-        String value = tok.getValue();
-        if (type == STRING)
+        eat('{');
+
+        Map<Object,Object> result = new HashMap<Object,Object>();
+        while (skipWhitespace() != '}')
         {
-            value = unquote(value, tok);
+            Object key = value();
+            eat(':');
+            result.put(key, value());
 
-            // Initial regex to check for a number (with optional floating point) ending in K, M or G
-            if (value.matches("([0-9]*\\.[0-9]+|[0-9]+)\\s*[kKmMgG]"))
+            int ch = skipWhitespace();
+            if (ch == ',')
             {
-                // If it's a numeric string perform the relevant multiplication and return as a Long.
-                int length = value.length();
-                if (length > 1)
-                {
-                    String end = value.substring(length - 1, length).toUpperCase();
-                    String start = value.substring(0, length - 1).trim();
-
-                    if (end.equals("K"))
-                    {
-                        return Long.valueOf((long)(Float.parseFloat(start) * 1000.0));
-                    }
-                    else if (end.equals("M"))
-                    {
-                        return Long.valueOf((long)(Float.parseFloat(start) * 1000000.0));
-                    }
-                    else if (end.equals("G"))
-                    {
-                        return Long.valueOf((long)(Float.parseFloat(start) * 1000000000.0));
-                    }
-                }
-
-                return value;
+                _position++;
             }
-            else
+            else if (ch != '}')
             {
-                return value;
+                throw error("',' or '}'");
             }
         }
-        else if (type == NUMBER)
+
+        _position++;
+        return result;
+    }
+
+    /**
+     * Parse a List, which must be the next value in the input.
+     * @return the List that has been parsed.
+     */
+    public List<Object> list()
+    {
+        eat('[');
+
+        List<Object> result = new ArrayList<Object>();
+        while (skipWhitespace() != ']')
         {
-            // This block extends the original AddressParser handling of NUMBER. It first attempts to parse the String
-            // into an Integer in order to be backwards compatible with AddressParser however if this causes a
-            // NumberFormatException it then attempts to parse into a Long.
-            if (value.indexOf('.') >= 0)
+            result.add(value());
+
+            int ch = skipWhitespace();
+            if (ch == ',')
             {
-                return Double.valueOf(value);
+                _position++;
             }
-            else
+            else if (ch != ']')
             {
-                try
-                {
-                    return Integer.decode(value);
-                }
-                catch (NumberFormatException nfe)
-                {
-                    return Long.decode(value);
-                }
+                throw error("',' or ']'");
             }
         }
-        else if (type == TRUE)
+
+        _position++;
+        return result;
+    }
+
+    /**
+     * Parse the next value in the input.
+     * @return the value that has been parsed, which may be null.
+     */
+    public Object value()
+    {
+        int ch = skipWhitespace();
+        if (ch == '{')
         {
-            return true;
+            return map();
         }
-        else if (type == FALSE)
+        else if (ch == '[')
         {
-            return false;
+            return list();
+        }
+        else if (ch == '"' || ch == '\'')
+        {
+            return string();
+        }
+        else if ((ch >= '0' && ch <= '9') || ch == '-' || ch == '+' || ch == '.')
+        {
+            return number();
+        }
+        else if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_')
+        {
+            return identifier();
         }
         else
         {
-            return value;
+            throw error("a value");
         }
     }
 
-    public JSONMapParser(String input)
+    /**
+     * Parse an unquoted identifier, returning a Boolean for true or false (case insensitive), null for null and
+     * otherwise the identifier as a String.
+     * @return the value of the identifier.
+     */
+    private Object identifier()
     {
-        this.tokens = wlex(input); // Copied from org.apache.qpid.messaging.util.Parser
-        this.idx = 0; // Copied from org.apache.qpid.messaging.util.Parser
+        _text.setLength(0);
+        int ch = peek();
+        while ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') ||
+               ch == '_' || ch == '-')
+        {
+            _text.append((char)ch);
+            _position++;
+            ch = peek();
+        }
+
+        String value = _text.toString();
+        if (value.equalsIgnoreCase("true"))
+        {
+            return Boolean.TRUE;
+        }
+        else if (value.equalsIgnoreCase("false"))
+        {
+            return Boolean.FALSE;
+        }
+        else if (value.equals("null"))
+        {
+            return null;
+        }
+        else
+        {
+            return value;
+        }
     }
 
-    public Map<Object,Object> map()
+    /**
+     * Parse a number. An integer is returned as an Integer if it fits, otherwise as a Long, falling back to a
+     * Double if it doesn't fit in a Long either, and numbers with a fraction or exponent are returned as a Double.
+     * @return the value of the number.
+     */
+    private Object number()
     {
-        eat(LBRACE);
+        _text.setLength(0);
+        boolean negative = false;
+        boolean overflow = false;
+        boolean integer = true;
+        long value = 0;
+        int digits = 0;
+
+        int ch = peek();
+        if (ch == '-' || ch == '+')
+        {
+            negative = (ch == '-');
+            _text.append((char)ch);
+            _position++;
+            ch = peek();
+        }
 
-        Map<Object,Object> result = new HashMap<Object,Object>();
-        while (true)
+        // Accumulate the integer part as a negative value, as that has the larger range.
+        while (ch >= '0' && ch <= '9')
         {
-            if (matches(NUMBER, STRING, ID, LBRACE, LBRACK))
+            int digit = ch - '0';
+            if (value < (Long.MIN_VALUE + digit)/10)
             {
-                keyval(result);
-                if (matches(COMMA))
-                {
-                    eat(COMMA);
-                }
-                else if (matches(RBRACE))
-                {
-                    break;
-                }
-                else
-                {
-                    throw new ParseError(next(), COMMA, RBRACE);
-                }
+                overflow = true;
             }
-            else if (matches(RBRACE))
+            value = value*10 - digit;
+            digits++;
+            _text.append((char)ch);
+            _position++;
+            ch = peek();
+        }
+
+        if (ch == '.')
+        {
+            integer = false;
+            _text.append('.');
+            _position++;
+            ch = peek();
+            while (ch >= '0' && ch <= '9')
             {
-                break;
+                digits++;
+                _text.append((char)ch);
+                _position++;
+                ch = peek();
             }
-            else
+        }
+
+        if (digits == 0)
+        {
+            throw error("a digit");
+        }
+
+        if (ch == 'e' || ch == 'E')
+        {
+            integer = false;
+            _text.append('e');
+            _position++;
+            ch = peek();
+            if (ch == '-' || ch == '+')
             {
-                throw new ParseError(next(), NUMBER, STRING, ID, LBRACE, LBRACK,
-                                     RBRACE);
+                _text.append((char)ch);
+                _position++;
+                ch = peek();
             }
-        }
 
-        eat(RBRACE);
-        return result;
-    }
+            if (ch < '0' || ch > '9')
+            {
+                throw error("a digit");
+            }
 
-    void keyval(Map<Object,Object> map)
-    {
-        Object key = value();
-        eat(COLON);
-        Object val = value();
-        map.put(key, val);
+            while (ch >= '0' && ch <= '9')
+            {
+                _text.append((char)ch);
+                _position++;
+                ch = peek();
+            }
+        }
+
+        if (integer && !overflow && (negative || value != Long.MIN_VALUE))
+        {
+            value = negative ? value : -value;
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+            {
+                return Integer.valueOf((int)value);
+            }
+            return Long.valueOf(value);
+        }
+        return Double.valueOf(_text.toString());
     }
 
-    Object value()
+    /**
+     * Parse a String quoted with either double or single quotes. A String containing a number (with optional
+     * floating point) ending in K, M or G is returned as a Long of the number multiplied by 1000, 1000000 or
+     * 1000000000.
+     * @return the value of the String.
+     */
+    private Object string()
     {
-        if (matches(NUMBER, STRING, ID, TRUE, FALSE))
+        _text.setLength(0);
+        int quote = read();
+        int ch = read();
+        while (ch != quote)
         {
-            return tok2obj(eat());
+            if (ch == EOF)
+            {
+                throw error("closing quote");
+            }
+            else if (ch == '\\')
+            {
+                escape();
+            }
+            else
+            {
+                _text.append((char)ch);
+            }
+            ch = read();
         }
-        else if (matches(LBRACE))
+
+        int length = _text.length();
+        if (length > 1 && _text.charAt(0) <= '9' && "kKmMgG".indexOf(_text.charAt(length - 1)) != -1)
         {
-            return map();
+            return multiply(_text.toString());
         }
-        else if (matches(LBRACK))
+        return _text.toString();
+    }
+
+    /**
+     * Parse the escape sequence following a backslash in a String, appending the character it represents.
+     * As well as the JSON escapes this accepts the escapes accepted by AddressParser.
+     */
+    private void escape()
+    {
+        int code = read();
+        switch (code)
         {
-            return list();
+        case '\n':
+            break;
+        case '\\':
+        case '\'':
+        case '"':
+        case '/':
+            _text.append((char)code);
+            break;
+        case 'a':
+            _text.append((char)0x07);
+            break;
+        case 'b':
+            _text.append((char)0x08);
+            break;
+        case 'f':
+            _text.append('\f');
+            break;
+        case 'n':
+            _text.append('\n');
+            break;
+        case 'r':
+            _text.append('\r');
+            break;
+        case 't':
+            _text.append('\t');
+            break;
+        case 'u':
+            _text.appendCodePoint(digits(4, 16));
+            break;
+        case 'v':
+            _text.append((char)0x0b);
+            break;
+        case 'o':
+            _text.appendCodePoint(digits(2, 8));
+            break;
+        case 'x':
+            _text.appendCodePoint(digits(2, 16));
+            break;
+        default:
+            if (code != EOF)
+            {
+                _position--;
+            }
+            throw error("a valid escape sequence");
         }
-        else
+    }
+
+    /**
+     * Parse a fixed number of digits in the specified radix.
+     * @param count the number of digits.
+     * @param radix the radix of the digits.
+     * @return the value of the digits.
+     */
+    private int digits(final int count, final int radix)
+    {
+        int value = 0;
+        for (int i = 0; i < count; i++)
         {
-            throw new ParseError(next(), NUMBER, STRING, ID, LBRACE, LBRACK);
+            int digit = Character.digit(peek(), radix);
+            if (digit < 0)
+            {
+                throw error("a digit");
+            }
+            _position++;
+            value = value*radix + digit;
         }
+        return value;
     }
 
-    List<Object> list()
+    /**
+     * If the String is a number (with optional floating point) ending in K, M or G return a Long of the number
+     * multiplied by 1000, 1000000 or 1000000000, otherwise return the String.
+     * @param value the String to check.
+     * @return a Long or the original String.
+     */
+    private static Object multiply(final String value)
     {
-        eat(LBRACK);
-
-        List<Object> result = new ArrayList<Object>();
-
-        while (true)
+        if (value.matches("([0-9]*\\.[0-9]+|[0-9]+)\\s*[kKmMgG]"))
         {
-            if (matches(RBRACK))
+            int length = value.length();
+            char end = Character.toUpperCase(value.charAt(length - 1));
+            float start = Float.parseFloat(value.substring(0, length - 1).trim());
+
+            if (end == 'K')
             {
-                break;
+                return Long.valueOf((long)(start * 1000.0));
+            }
+            else if (end == 'M')
+            {
+                return Long.valueOf((long)(start * 1000000.0));
             }
             else
             {
-                result.add(value());
-                if (matches(COMMA))
-                {
-                    eat(COMMA);
-                }
-                else if (matches(RBRACK))
-                {
-                    break;
-                }
-                else
-                {
-                    throw new ParseError(next(), COMMA, RBRACK);
-                }
+                return Long.valueOf((long)(start * 1000000000.0));
             }
         }
-
-        eat(RBRACK);
-        return result;
+        return value;
     }
-
 }
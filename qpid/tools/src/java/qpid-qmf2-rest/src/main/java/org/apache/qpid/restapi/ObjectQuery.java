@@ -0,0 +1,265 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+
+/**
+ * An ObjectQuery holds the optional filtering, projection, sorting and pagination parameters of a console/objects
+ * request and applies them to the List of QmfConsoleData returned by Console.getObjects(), so that clients such as
+ * UIs that only want e.g. the 50 deepest queues don't need to retrieve every property of every queue.
+ * <p>
+ * The request parameters are:
+ * <pre>
+ * _where=&lt;predicate&gt;   A QmfQuery predicate e.g. ["gt", "msgDepth", 100] that objects must match.
+ * select=&lt;properties&gt;  A comma separated list of the properties to return. The _object_id, _schema_id and
+ *                       timestamps are always returned.
+ * sort=&lt;properties&gt;    A comma separated list of sort keys, a key prefixed by "-" sorts in descending order.
+ * offset=&lt;offset&gt;      The number of matching objects to skip (default 0).
+ * limit=&lt;limit&gt;        The maximum number of objects to return (default all).
+ * </pre>
+ * The predicate is evaluated in the REST gateway rather than by the Agent because the broker ManagementAgent
+ * doesn't evaluate a _where predicate in conjunction with a _schema_id. When both sort and limit are specified
+ * only the top offset + limit objects are retained whilst sorting, so the cost is O(n log(offset + limit)).
+ */
+public final class ObjectQuery
+{
+    private final QmfQuery _where;
+    private final Set<String> _select;
+    private final List<String> _sort;
+    private final List<Boolean> _descending;
+    private final int _offset;
+    private final int _limit;
+
+    /**
+     * Compares QmfConsoleData using the sort keys, missing values sort after present values.
+     */
+    private final Comparator<QmfConsoleData> _comparator = new Comparator<QmfConsoleData>()
+    {
+        public int compare(final QmfConsoleData lhs, final QmfConsoleData rhs)
+        {
+            for (int i = 0; i < _sort.size(); i++)
+            {
+                String name = _sort.get(i);
+                int result = compareValues(lhs.getValue(name), rhs.getValue(name));
+                if (result != 0)
+                {
+                    return _descending.get(i) ? -result : result;
+                }
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Construct an ObjectQuery from the request parameters.
+     * @param parameters the Map of decoded request parameters.
+     * @throws QmfException if the _where predicate is invalid.
+     * @throws NumberFormatException if offset or limit isn't an integer.
+     */
+    public ObjectQuery(final Map<String, String> parameters) throws QmfException
+    {
+        String where = parameters.get("_where");
+        if (where == null || where.length() == 0)
+        {
+            _where = null;
+        }
+        else
+        {
+            try
+            {
+                _where = new QmfQuery(QmfQueryTarget.OBJECT, where);
+            }
+            catch (RuntimeException re)
+            { // The AddressParser used by QmfQuery throws unchecked exceptions on syntax errors.
+                throw new QmfException("Invalid predicate " + where + ": " + re.getMessage());
+            }
+        }
+
+        String select = parameters.get("select");
+        if (select == null || select.length() == 0)
+        {
+            _select = null;
+        }
+        else
+        {
+            _select = new LinkedHashSet<String>();
+            for (String property : select.split(","))
+            {
+                _select.add(property.trim());
+            }
+        }
+
+        _sort = new ArrayList<String>();
+        _descending = new ArrayList<Boolean>();
+        String sort = parameters.get("sort");
+        if (sort != null)
+        {
+            for (String key : sort.split(","))
+            {
+                key = key.trim();
+                boolean descending = key.startsWith("-");
+                if (descending || key.startsWith("+"))
+                {
+                    key = key.substring(1);
+                }
+
+                if (key.length() > 0)
+                {
+                    _sort.add(key);
+                    _descending.add(descending);
+                }
+            }
+        }
+
+        String offset = parameters.get("offset");
+        _offset = (offset == null || offset.length() == 0) ? 0 : Math.max(0, Integer.parseInt(offset));
+
+        String limit = parameters.get("limit");
+        _limit = (limit == null || limit.length() == 0) ? Integer.MAX_VALUE : Math.max(0, Integer.parseInt(limit));
+    }
+
+    /**
+     * Returns true if the request has none of the ObjectQuery parameters, so the objects may be returned unaltered.
+     * @return true if the request has none of the ObjectQuery parameters.
+     */
+    public boolean isEmpty()
+    {
+        return _where == null && _select == null && _sort.isEmpty() && _offset == 0 && _limit == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the properties to return for each object, or null if all properties should be returned.
+     * @return the properties to return for each object, or null if all properties should be returned.
+     */
+    public Set<String> getSelect()
+    {
+        return _select;
+    }
+
+    /**
+     * Compare two property values. Numbers are compared numerically, everything else is compared as a String
+     * and null (a missing property) is greater than any other value.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(final Object lhs, final Object rhs)
+    {
+        if (lhs == null || rhs == null)
+        {
+            return (lhs == null) ? (rhs == null ? 0 : 1) : -1;
+        }
+
+        if (lhs instanceof Number && rhs instanceof Number)
+        {
+            if ((lhs instanceof Long || lhs instanceof Integer || lhs instanceof Short || lhs instanceof Byte) &&
+                (rhs instanceof Long || rhs instanceof Integer || rhs instanceof Short || rhs instanceof Byte))
+            {
+                long l = ((Number)lhs).longValue();
+                long r = ((Number)rhs).longValue();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+            return Double.compare(((Number)lhs).doubleValue(), ((Number)rhs).doubleValue());
+        }
+
+        if (lhs instanceof Boolean && rhs instanceof Boolean)
+        {
+            return ((Boolean)lhs).compareTo((Boolean)rhs);
+        }
+
+        return toString(lhs).compareTo(toString(rhs));
+    }
+
+    /**
+     * Return the String form of a property value, QMF strings may be held as byte[].
+     */
+    private static String toString(final Object value)
+    {
+        return (value instanceof byte[]) ? new String((byte[])value) : value.toString();
+    }
+
+    /**
+     * Apply the predicate, sort keys and pagination to a List of objects. The projection is applied when the
+     * result is serialised, see getSelect().
+     * @param objects the List of objects returned by Console.getObjects().
+     * @return the List of objects to be returned to the client.
+     */
+    public List<QmfConsoleData> apply(final List<QmfConsoleData> objects)
+    {
+        List<QmfConsoleData> matches = objects;
+        if (_where != null)
+        {
+            matches = new ArrayList<QmfConsoleData>();
+            for (QmfConsoleData object : objects)
+            {
+                if (_where.evaluate(object))
+                {
+                    matches.add(object);
+                }
+            }
+        }
+
+        if (_offset >= matches.size() || _limit == 0)
+        {
+            return Collections.emptyList();
+        }
+
+        long end = Math.min((long)_offset + _limit, matches.size());
+        if (!_sort.isEmpty())
+        {
+            if (end < matches.size())
+            { // Retain only the top end objects using a heap whose head is the "worst" object retained so far.
+                PriorityQueue<QmfConsoleData> top =
+                    new PriorityQueue<QmfConsoleData>((int)end + 1, Collections.reverseOrder(_comparator));
+                for (QmfConsoleData object : matches)
+                {
+                    top.offer(object);
+                    if (top.size() > end)
+                    {
+                        top.poll();
+                    }
+                }
+                matches = new ArrayList<QmfConsoleData>(top);
+            }
+            else if (matches == objects)
+            { // Don't reorder the caller's List.
+                matches = new ArrayList<QmfConsoleData>(objects);
+            }
+            Collections.sort(matches, _comparator);
+            end = Math.min(end, matches.size());
+        }
+
+        return (_offset == 0 && end == matches.size()) ? matches : matches.subList(_offset, (int)end);
+    }
+}
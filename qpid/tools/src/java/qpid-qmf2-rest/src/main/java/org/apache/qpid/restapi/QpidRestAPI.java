@@ -22,7 +22,6 @@ package org.apache.qpid.restapi;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
 import java.util.List;
 
 import com.sun.net.httpserver.HttpServer;
@@ -31,6 +30,7 @@ import org.apache.qpid.qmf2.util.GetOpt;
 
 import org.apache.qpid.restapi.httpserver.Authenticator;
 import org.apache.qpid.restapi.httpserver.Delegator;
+import org.apache.qpid.restapi.httpserver.RequestExecutor;
 
 /**
  * Note QpidRestAPI makes use of the Java 1.6 "Easter Egg" HttpServer and associated classes to create a simple
@@ -69,7 +69,12 @@ import org.apache.qpid.restapi.httpserver.Delegator;
  *        -p &lt;port&gt;,      --port=&lt;port&gt;
  *                        the port the QpidRestAPI is bound to default is 8080
  *        -b &lt;backlog&gt;,   --backlog=&lt;backlog&gt;
- *                        the socket backlog default is 10
+ *                        the socket backlog default is 128
+ *        -t &lt;threads&gt;,   --threads=&lt;threads&gt;
+ *                        the maximum number of requests handled concurrently default is 50
+ *        -q &lt;queued&gt;,    --queued=&lt;queued&gt;
+ *                        the maximum number of requests queued before requests are rejected
+ *                        with 503 Service Unavailable default is 500
  *        -w &lt;directory&gt;, --webroot=&lt;directory&gt;
  *                        the directory of the QpidRestAPI Web Site default is qpid-web
  * </pre>
@@ -101,11 +106,20 @@ public class QpidRestAPI
     "                        default is 8080.\n" +
     "  -b <backlog>, --backlog=<backlog>\n" +
     "                        the socket backlog.\n" +
-    "                        default is 10\n" +
+    "                        default is 128\n" +
+    "  -t <threads>, --threads=<threads>\n" +
+    "                        the maximum number of requests handled concurrently.\n" +
+    "                        default is 50\n" +
+    "  -q <queued>,  --queued=<queued>\n" +
+    "                        the maximum number of requests queued before requests\n" +
+    "                        are rejected with 503 Service Unavailable.\n" +
+    "                        default is 500\n" +
     "  -w <directory>, --webroot=<directory>\n" +
     "                        the directory of the QpidRestAPI Web Site.\n" +
     "                        default is qpid-web.\n";
 
+    private static final int DEFAULT_THREADS = 50;
+    private static final int DEFAULT_QUEUED = 500;
 
     /**
      * Construct and start an instance of QpidRestAPI. This class used a Delegator class to delegate to underlying 
@@ -119,6 +133,24 @@ public class QpidRestAPI
      */
     public QpidRestAPI(final String addr, final int port, String broker, final int backlog, final String webroot) 
         throws IOException
+    {
+        this(addr, port, broker, backlog, webroot, DEFAULT_THREADS, DEFAULT_QUEUED);
+    }
+
+    /**
+     * Construct and start an instance of QpidRestAPI. This class used a Delegator class to delegate to underlying 
+     * Server instances that actually implement the business logic of the REST API.
+     *
+     * @param addr the the address the QpidRestAPI is bound to (null = default). 
+     * @param port the port the QpidRestAPI is bound to.
+     * @param broker the address of the Qpid broker to connect to (null = default).
+     * @param backlog the socket backlog.
+     * @param webroot the directory of the QpidRestAPI Web Site.
+     * @param threads the maximum number of requests handled concurrently.
+     * @param queued the maximum number of requests queued before requests are rejected.
+     */
+    public QpidRestAPI(final String addr, final int port, String broker, final int backlog, final String webroot,
+                       final int threads, final int queued) throws IOException
     {
         final InetSocketAddress inetaddr = (addr == null) ? new InetSocketAddress(port) :
                                                             new InetSocketAddress(addr, port);
@@ -126,15 +158,17 @@ public class QpidRestAPI
 
         broker = (broker == null) ? inetaddr.getAddress().getHostAddress() + ":5672" : broker;
 
-        Delegator fileserver = new Delegator(new FileServer(webroot + "/web", true));
-        Delegator qpidserver  = new Delegator(new QpidServer(broker));
+        RequestExecutor executor = new RequestExecutor(threads, queued);
+        Delegator fileserver = new Delegator(new FileServer(webroot + "/web", true), executor);
+        Delegator qpidserver  = new Delegator(new QpidServer(broker), executor);
 
         Authenticator authenticator = new Authenticator(this.getClass().getCanonicalName(), webroot + "/authentication");
 
-        server.setExecutor(Executors.newCachedThreadPool());
+        server.setExecutor(executor);
         server.createContext("/", fileserver);
         server.createContext("/ui", fileserver).setAuthenticator(authenticator);
         server.createContext("/qpid/connection", qpidserver).setAuthenticator(authenticator);
+        server.createContext("/qpid/aggregate", qpidserver).setAuthenticator(authenticator);
         server.start();
     }
 
@@ -148,16 +182,18 @@ public class QpidRestAPI
         logLevel = (logLevel == null) ? "FATAL" : logLevel; // Set default log level to FATAL rather than DEBUG.
         System.setProperty("amqj.logging.level", logLevel);
 
-        String[] longOpts = {"help", "host=", "port=", "backlog=", "webroot="};
+        String[] longOpts = {"help", "host=", "port=", "backlog=", "webroot=", "threads=", "queued="};
         try
         {
             String addr = null;
             int port = 8080;
             String broker = null;
-            int backlog = 10;
+            int backlog = 128;
             String webroot = "qpid-web";
+            int threads = DEFAULT_THREADS;
+            int queued = DEFAULT_QUEUED;
 
-            GetOpt getopt = new GetOpt(args, "ha:i:p:b:w:", longOpts);
+            GetOpt getopt = new GetOpt(args, "ha:i:p:b:w:t:q:", longOpts);
             List<String[]> optList = getopt.getOptList();
             String[] cargs = {};
             cargs = getopt.getEncArgs().toArray(cargs);
@@ -191,9 +227,17 @@ public class QpidRestAPI
                 {
                     webroot = opt[1];
                 }
+                else if (opt[0].equals("-t") || opt[0].equals("--threads"))
+                {
+                    threads = Integer.parseInt(opt[1]);
+                }
+                else if (opt[0].equals("-q") || opt[0].equals("--queued"))
+                {
+                    queued = Integer.parseInt(opt[1]);
+                }
             }
 
-            QpidRestAPI restAPI = new QpidRestAPI(addr, port, broker, backlog, webroot);
+            QpidRestAPI restAPI = new QpidRestAPI(addr, port, broker, backlog, webroot, threads, queued);
         }
         catch (IllegalArgumentException e)
         {
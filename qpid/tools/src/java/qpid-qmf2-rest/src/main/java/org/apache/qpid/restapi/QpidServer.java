@@ -25,28 +25,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // Misc Imports
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.common.WorkItem.WorkItemType;
 import org.apache.qpid.qmf2.console.Agent;
 import org.apache.qpid.qmf2.console.Console;
 import org.apache.qpid.qmf2.console.MethodResult;
 import org.apache.qpid.qmf2.console.QmfConsoleData;
 
+// QpidRestAPI Imports
+import org.apache.qpid.restapi.httpserver.RequestExecutor;
+
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_CREATED;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 
 /**
@@ -62,6 +79,8 @@ import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
  *      qpid::messaging API.
  *
  *      This method creates a Qpid Connection Object with the name &lt;name&gt; using the specified url and options.
+ *      Connection Objects created (by any user) with the same url, options and disableEvents share a single
+ *      underlying Qpid Connection and QMF2 Console, though each has its own WorkItem queue and lease.
  *
  *      The optional disableEvents property is used to start up a QMF Connection which can only
  *      do synchronous calls such as getObjects() and can't receive Agent updates or QMF2 Events.
@@ -99,13 +118,29 @@ import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
  *      for the specified className.
  *
  * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/console/objects/&lt;packageName&gt;/&lt;className&gt;
- *      !!not yet implemented!!
  *      This method retrieves (as a JSON string) the list of QmfConsoleData objects with the specified 
  *      &lt;packageName&gt; and &lt;className&gt; using the QMF2 Console associated with the Qpid Connection Object
  *      with the name &lt;name&gt;.
  *      This is the REST equivalent of Console.getObjects(packageName, className) which searches across all Agents 
  *      for the specified className in the package packageName.
  *
+ * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/console/objects/&lt;packageName&gt;/&lt;className&gt;/&lt;agentName&gt;
+ *      This is the REST equivalent of Console.getObjects(packageName, className, agentList) which searches only
+ *      the Agent named &lt;agentName&gt;.
+ *
+ *      All of the console/objects requests above accept the following optional parameters, which are applied by
+ *      the REST server before the objects are returned:
+ *      _where=&lt;predicate&gt;  a QmfQuery predicate that objects must match e.g. ["gt", "msgDepth", 100]
+ *      select=&lt;properties&gt; a comma separated list of the properties to return e.g. name,msgDepth
+ *      sort=&lt;properties&gt;   a comma separated list of sort keys, prefix a key with "-" to sort in descending order
+ *      offset=&lt;offset&gt;     the number of matching objects to skip
+ *      limit=&lt;limit&gt;       the maximum number of objects to return
+ *      e.g. console/objects/queue?sort=-msgDepth&amp;limit=50&amp;select=name,msgDepth returns the 50 deepest queues.
+ *
+ *      The response has an ETag derived from the ObjectIds and update timestamps of the objects returned, so a
+ *      client polling with If-None-Match receives a 304 Not Modified response with no body if nothing has changed.
+ *      JSON responses are gzip compressed for clients that send Accept-Encoding: gzip.
+ *
  * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/object/&lt;ObjectId&gt;
  *      This method retrieves (as a JSON string) the QmfConsoleData object with the specified &lt;ObjectId&gt;
  *      using the QMF2 Console associated with the Qpid Connection Object with the name &lt;name&gt;.
@@ -165,9 +200,42 @@ import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
  *
  * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/console/nextWorkItem
  * 
- *      This method retrieves (as a JSON string) the next pending work item from this Console (N.B. this method
- *      blocks until a WorkItem is available so should only be called asynchronously e.g. via AJAX).
+ *      This method retrieves (as a JSON string) the next pending work item from this Console.
  *      This is the REST equivalent of Console.getNextWorkitem().
+ *      If the optional wait=&lt;ms&gt; parameter is supplied this long polls, waiting up to &lt;ms&gt;
+ *      milliseconds (default 0, maximum 60000) for a work item, so should only be called asynchronously e.g. via
+ *      AJAX. An empty response is returned if no work item became available. If too many requests are already
+ *      long polling the request is rejected with 503 Service Unavailable.
+ *
+ * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/console/workItems[?max=&lt;max&gt;][&amp;wait=&lt;ms&gt;]
+ * 
+ *      This method retrieves (as a JSON array) up to &lt;max&gt; (default 100) pending work items from this Console,
+ *      waiting up to &lt;ms&gt; milliseconds (default 0, maximum 60000) for the first one to become available.
+ *      An empty array is returned if no work items became available. As with nextWorkItem a request that would
+ *      wait is rejected with 503 Service Unavailable if too many requests are already long polling. This avoids the per-item HTTP round trip
+ *      of nextWorkItem for clients that can't use the events stream. WorkItems are held in a bounded buffer
+ *      (1000 items) per Connection, the oldest being discarded if a client doesn't keep up.
+ *
+ * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/console/events[?types=&lt;types&gt;][&amp;agent=&lt;agentName&gt;]
+ * 
+ *      This method opens a Server-Sent Events (text/event-stream) stream to which WorkItems are pushed as they
+ *      arrive, each event is named by its WorkItem type and its data is the same JSON as for nextWorkItem.
+ *      The optional &lt;types&gt; is a comma separated list of WorkItem types e.g. EVENT_RECEIVED,AGENT_ADDED and
+ *      the optional &lt;agentName&gt; restricts the stream to WorkItems relating to that Agent. The stream is
+ *      written to by a small shared pool of threads so open streams don't each occupy an HTTP server thread.
+ *
+ * GET: &lt;host&gt;:&lt;port&gt;/qpid/aggregate/objects/[&lt;packageName&gt;/]&lt;className&gt;[?connections=&lt;names&gt;][&amp;timeout=&lt;ms&gt;]
+ *
+ *      This method performs the same getObjects() query on several Connections (typically to different brokers)
+ *      in parallel and returns the merged results e.g. aggregate/objects/queue?sort=-msgDepth&amp;limit=20 returns
+ *      the 20 deepest queues across all of the user's Connections. The optional &lt;names&gt; is a comma separated
+ *      list of the Connections to query, by default all of the user's Connections are queried. Connections that
+ *      are disconnected, unknown or don't respond within &lt;ms&gt; milliseconds (default 5000, maximum 60000) are
+ *      listed as unavailable and the results from the remaining Connections are returned. The _where, select,
+ *      sort, offset and limit parameters are as for console/objects but apply to the merged results. Connections
+ *      to the same broker with the same options are only queried once, their objects are tagged with the first of
+ *      their names and list the others as aliases e.g.
+ *      {"objects":[{"connection":"broker1","aliases":["broker1a"],"object":{...}},...],"unavailable":["broker3"]}
  * </pre>
  * @author Fraser Adams
  */
@@ -175,6 +243,19 @@ public final class QpidServer implements Server
 {
     private static final Logger _log = LoggerFactory.getLogger(QpidServer.class);
 
+    // Default and maximum number of WorkItems returned by console/workItems and the maximum wait in milliseconds.
+    private static final int DEFAULT_WORKITEMS = 100;
+    private static final int MAX_WORKITEMS = 1000;
+    private static final int MAX_WORKITEM_WAIT = 60000;
+
+    // Default and maximum time in milliseconds that an aggregate query waits for its Connections to respond.
+    private static final int DEFAULT_AGGREGATE_TIMEOUT = 5000;
+    private static final int MAX_AGGREGATE_TIMEOUT = 60000;
+
+    // Size of the buffer used to write JSON responses, each full buffer is sent as an HTTP chunk.
+    private static final int JSON_BUFFER_SIZE = 16384;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private ConnectionStore _connections = new ConnectionStore();
     private String _defaultBroker = null;
 
@@ -188,28 +269,369 @@ public final class QpidServer implements Server
      * "/qpid/connection/<connectionName>/console/objects/" request,
      * in other words a request for information about an object resource specified by the remaining path.
      * Only the GET method is valid for this resource and it is in effect the REST mapping for Console.getObjects().
+     * The optional _where, select, sort, offset and limit parameters are applied by an ObjectQuery.
      */
     private void sendGetObjectsResponse(final HttpTransaction tx, final Console console, final String path) throws IOException
     {
+        ObjectQuery query = null;
+        try
+        {
+            query = new ObjectQuery(getParameters(tx));
+        }
+        catch (QmfException qmfe)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 " + qmfe.getMessage());
+            return;
+        }
+        catch (NumberFormatException nfe)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 Invalid offset or limit parameter.");
+            return;
+        }
+
         String[] params = path.split("/");
+        List<QmfConsoleData> objects = null;
         if (params.length == 1)
         { // With one parameter we call getObjects(className)
-            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getObjects(params[0])));
+            objects = console.getObjects(params[0]);
         }
         else if (params.length == 2)
         { // With two parameters we call getObjects(packageName, className)
             //System.out.println("params = " + params[0] + ", " + params[1]);
-            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getObjects(params[0], params[1])));
+            objects = console.getObjects(params[0], params[1]);
         }
         else if (params.length == 3)
-        { // TODO With three parameters we call getObjects(packageName, className, agent)
+        { // With three parameters we call getObjects(packageName, className, agent)
             //System.out.println("params = " + params[0] + ", " + params[1] + ", " + params[2]);
-            tx.sendResponse(HTTP_NOT_FOUND, "text/plain", "404 Too many parameters for objects GET request.");
+            Agent agent = console.getAgent(params[2]);
+            if (agent == null)
+            {
+                tx.sendResponse(HTTP_NOT_FOUND, "text/plain", "404 Not Found.");
+                return;
+            }
+            objects = console.getObjects(params[0], params[1], Collections.singletonList(agent));
         } else {
             tx.sendResponse(HTTP_NOT_FOUND, "text/plain", "404 Too many parameters for objects GET request.");
+            return;
+        }
+
+        if (!query.isEmpty())
+        {
+            objects = query.apply(objects);
+        }
+
+        if (!ConditionalRequest.checkNotModified(tx, getVersion(objects), 0, "application/json"))
+        {
+            sendJSONResponse(tx, objects, query.getSelect());
+        }
+    }
+
+    /**
+     * Handle a "/qpid/aggregate/objects/" request, in other words a request for the objects of the class specified by
+     * the remaining path from several of the user's Connections. The Connections are queried in parallel by an
+     * AggregateQuery and the merged results are filtered, sorted and paginated by an ObjectQuery.
+     */
+    private void sendAggregateObjectsResponse(final HttpTransaction tx, final String user, final String path)
+        throws IOException
+    {
+        Map<String, String> parameters = getParameters(tx);
+        ObjectQuery query = null;
+        int timeout = DEFAULT_AGGREGATE_TIMEOUT;
+        try
+        {
+            query = new ObjectQuery(parameters);
+            timeout = getIntParameter(parameters, "timeout", DEFAULT_AGGREGATE_TIMEOUT, 1, MAX_AGGREGATE_TIMEOUT);
+        }
+        catch (QmfException qmfe)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 " + qmfe.getMessage());
+            return;
+        }
+        catch (NumberFormatException nfe)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 Invalid offset, limit or timeout parameter.");
+            return;
+        }
+
+        String[] params = path.split("/");
+        if (path.length() == 0 || params.length > 2)
+        {
+            tx.sendResponse(HTTP_NOT_FOUND, "text/plain", "404 Invalid aggregate objects GET request.");
+            return;
+        }
+        String packageName = (params.length == 2) ? params[0] : null;
+        String className = params[params.length - 1];
+
+        // Look up the requested Connections, retaining their order, unknown Connections are reported as unavailable.
+        Map<String, ConnectionProxy> connections = null;
+        List<String> unknown = new ArrayList<String>();
+        String names = parameters.get("connections");
+        if (names == null || names.length() == 0)
+        {
+            connections = new TreeMap<String, ConnectionProxy>(_connections.getAll(user));
+        }
+        else
+        {
+            connections = new LinkedHashMap<String, ConnectionProxy>();
+            for (String name : names.split(","))
+            {
+                name = name.trim();
+                ConnectionProxy connection = _connections.get(user + "." + name);
+                if (connection == null)
+                {
+                    unknown.add(name);
+                }
+                else
+                {
+                    connections.put(name, connection);
+                }
+            }
+        }
+
+        AggregateQuery aggregate = new AggregateQuery(_connections.getAggregateQueryExecutor(), connections,
+                                                      packageName, className, timeout);
+        aggregate.getUnavailable().addAll(unknown);
+        if (!query.isEmpty())
+        {
+            aggregate.apply(query);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(tx.getResponseStream(HTTP_OK, "application/json"),
+                                                                  UTF8), JSON_BUFFER_SIZE);
+        try
+        {
+            aggregate.write(writer, query.getSelect());
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Return a version for a List of objects, used as the ETag of a console/objects response. The version is derived
+     * from the number of objects and the ObjectIds and update timestamps of each object, so it changes whenever an
+     * object is added, deleted or updated, but it doesn't depend on the order of the objects.
+     * @param objects the List of objects being returned.
+     * @return the version of the List of objects.
+     */
+    private static String getVersion(final List<QmfConsoleData> objects)
+    {
+        long maxUpdate = 0;
+        long sum = 0;
+        for (QmfConsoleData object : objects)
+        {
+            long update = object.getUpdateTime();
+            long hash = (object.getObjectId() == null) ? 0 : object.getObjectId().hashCode();
+            maxUpdate = Math.max(maxUpdate, update);
+            sum += (hash * 0x9E3779B97F4A7C15L) ^ update;
+        }
+        return Integer.toHexString(objects.size()) + "-" + Long.toHexString(maxUpdate) + "-" + Long.toHexString(sum);
+    }
+
+    /**
+     * Parse the query string of a request into a Map of decoded parameter names and values.
+     * @param tx the HttpTransaction containing the request.
+     * @return a Map of the request parameters, empty if there is no query string.
+     */
+    private static Map<String, String> getParameters(final HttpTransaction tx) throws IOException
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        String query = tx.getQueryString();
+        if (query != null)
+        {
+            for (String parameter : query.split("&"))
+            {
+                if (parameter.length() > 0)
+                {
+                    String[] kv = parameter.split("=", 2);
+                    parameters.put(URLDecoder.decode(kv[0], "UTF-8"),
+                                   kv.length == 2 ? URLDecoder.decode(kv[1], "UTF-8") : "");
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Parse an integer request parameter, clamping it to the specified range.
+     * @param parameters the Map of request parameters.
+     * @param name the name of the parameter.
+     * @param defaultValue the value used if the parameter is missing.
+     * @param min the minimum value allowed.
+     * @param max the maximum value allowed.
+     * @return the value of the parameter.
+     * @throws NumberFormatException if the parameter isn't an integer.
+     */
+    private static int getIntParameter(final Map<String, String> parameters, final String name,
+                                       final int defaultValue, final int min, final int max)
+    {
+        String value = parameters.get(name);
+        int result = (value == null || value.length() == 0) ? defaultValue : Integer.parseInt(value);
+        return Math.max(min, Math.min(result, max));
+    }
+
+    /**
+     * Send an Object as an application/json response. The JSON encoding is written directly to the response stream
+     * using chunked transfer encoding rather than being built as a String first, so large responses such as the
+     * objects of a class on a broker with many queues are sent using a constant amount of memory. As with
+     * JSON.fromObject() a null item is sent as an empty response body.
+     */
+    private static void sendJSONResponse(final HttpTransaction tx, final Object item) throws IOException
+    {
+        sendJSONResponse(tx, item, null);
+    }
+
+    /**
+     * Send an Object as an application/json response including only the specified properties of the QmfData it
+     * contains, see JSON.write().
+     */
+    private static void sendJSONResponse(final HttpTransaction tx, final Object item, final Set<String> properties)
+        throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(tx.getResponseStream(HTTP_OK, "application/json"),
+                                                                  UTF8), JSON_BUFFER_SIZE);
+        try
+        {
+            if (item != null)
+            {
+                JSON.write(writer, item, properties);
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Called before a request long polls for WorkItems so that the wait doesn't count against the RequestExecutor's
+     * bound on concurrent requests. If too many requests are already waiting the request is rejected with 503
+     * Service Unavailable.
+     * @param tx the HttpTransaction used to reject the request.
+     * @param wait the time in milliseconds that the request will wait, nothing is done if this is zero.
+     * @return false if the request has been rejected.
+     */
+    private static boolean beginWait(final HttpTransaction tx, final int wait) throws IOException
+    {
+        if (wait > 0 && !RequestExecutor.beginWait())
+        {
+            tx.setHeader("Retry-After", "1");
+            tx.sendResponse(HTTP_UNAVAILABLE, "text/plain", "503 Service Unavailable: Too many requests waiting.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called after a request accepted by beginWait() has finished long polling for WorkItems.
+     * @param wait the time in milliseconds that the request waited, nothing is done if this is zero.
+     */
+    private static void endWait(final int wait)
+    {
+        if (wait > 0)
+        {
+            RequestExecutor.endWait();
+        }
+    }
+
+    /**
+     * Handle a "/qpid/connection/<connectionName>/console/nextWorkItem" request. This waits at most wait
+     * milliseconds for a WorkItem, returning immediately if there's no wait parameter. The wait doesn't count
+     * against the RequestExecutor's bound on concurrent requests, see beginWait().
+     */
+    private void sendNextWorkItem(final HttpTransaction tx, final ConnectionProxy connection) throws IOException
+    {
+        Map<String, String> parameters = getParameters(tx);
+        try
+        {
+            int wait = getIntParameter(parameters, "wait", 0, 0, MAX_WORKITEM_WAIT);
+            if (!beginWait(tx, wait))
+            {
+                return;
+            }
+
+            WorkItem item = null;
+            try
+            {
+                item = connection.getNextWorkItem(wait);
+            }
+            finally
+            {
+                endWait(wait);
+            }
+            sendJSONResponse(tx, item);
+        }
+        catch (NumberFormatException nfe)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 Invalid wait parameter.");
         }
     }
 
+    /**
+     * Handle a "/qpid/connection/<connectionName>/console/workItems" request returning a JSON array of up to max
+     * WorkItems, waiting up to wait milliseconds for the first one.
+     */
+    private void sendWorkItems(final HttpTransaction tx, final ConnectionProxy connection) throws IOException
+    {
+        Map<String, String> parameters = getParameters(tx);
+        try
+        {
+            int max = getIntParameter(parameters, "max", DEFAULT_WORKITEMS, 1, MAX_WORKITEMS);
+            int wait = getIntParameter(parameters, "wait", 0, 0, MAX_WORKITEM_WAIT);
+            if (!beginWait(tx, wait))
+            {
+                return;
+            }
+
+            List<WorkItem> items = null;
+            try
+            {
+                items = connection.getWorkItems(max, wait);
+            }
+            finally
+            {
+                endWait(wait);
+            }
+            sendJSONResponse(tx, items);
+        }
+        catch (NumberFormatException nfe)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 Invalid max or wait parameter.");
+        }
+    }
+
+    /**
+     * Handle a "/qpid/connection/<connectionName>/console/events" request by opening a text/event-stream response
+     * and registering it with the ConnectionProxy, which pushes WorkItems to it as they arrive. This returns as soon
+     * as the response headers have been sent, leaving the response open.
+     */
+    private void sendEventStream(final HttpTransaction tx, final ConnectionProxy connection) throws IOException
+    {
+        if (!connection.isEventsEnabled())
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 Events disabled on this Connection.");
+            return;
+        }
+
+        Map<String, String> parameters = getParameters(tx);
+        Set<WorkItemType> types;
+        try
+        {
+            types = EventStream.parseTypes(parameters.get("types"));
+        }
+        catch (IllegalArgumentException iae)
+        {
+            tx.sendResponse(HTTP_BAD_REQUEST, "text/plain", "400 Invalid types " + parameters.get("types"));
+            return;
+        }
+
+        tx.setHeader("Cache-Control", "no-cache");
+        EventStream stream = new EventStream(tx.getResponseStream(HTTP_OK, "text/event-stream"),
+                                             _connections.getEventStreamExecutor(), types, parameters.get("agent"));
+        connection.addEventStream(stream);
+    }
+
     /**
      * Called by the Web Server to allow a Server to handle a GET request.
      * The HTTP GET URL structure for the REST API is specified above in the overall class documentation.
@@ -231,7 +653,7 @@ public final class QpidServer implements Server
             String user = tx.getPrincipal(); // Using the principal lets different users use the default connection.
             if (path.length() == 0)
             { // handle "/qpid/connection/" request with unspecified connection (returns list of available connections).
-                tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(_connections.getAll(user)));   
+                sendJSONResponse(tx, _connections.getAll(user));   
             }
             else
             { // if path.length() > 0 we're dealing with a specified Connection so extract the name and look it up.
@@ -294,35 +716,43 @@ public final class QpidServer implements Server
                         }
                         else if (path.startsWith("console/objects") && path.length() == 15)
                         {  // If objects is unspecified treat as a synonym for classes.
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getClasses()));
+                            sendJSONResponse(tx, console.getClasses());
                         }
                         else if (path.startsWith("console/address/"))
                         { // Get the Console AMQP Address
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getAddress()));
+                            sendJSONResponse(tx, console.getAddress());
                         }
                         else if (path.startsWith("console/address") && path.length() == 15)
                         { // Get the Console AMQP Address
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getAddress()));
+                            sendJSONResponse(tx, console.getAddress());
                         }
                         else if (path.startsWith("console/workItemCount/"))
                         { // Returns the count of pending WorkItems that can be retrieved.
-                            tx.sendResponse(HTTP_OK, "text/plain", "" + console.getWorkitemCount());
+                            tx.sendResponse(HTTP_OK, "text/plain", "" + connection.getWorkItemCount());
                         }
                         else if (path.startsWith("console/workItemCount") && path.length() == 21)
                         { // Returns the count of pending WorkItems that can be retrieved.
-                            tx.sendResponse(HTTP_OK, "text/plain", "" + console.getWorkitemCount());
+                            tx.sendResponse(HTTP_OK, "text/plain", "" + connection.getWorkItemCount());
                         }
                         else if (path.startsWith("console/nextWorkItem/"))
                         { // Obtains the next pending work item, or null if none available.
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getNextWorkitem()));
+                            sendNextWorkItem(tx, connection);
                         }
                         else if (path.startsWith("console/nextWorkItem") && path.length() == 20)
                         { // Obtains the next pending work item, or null if none available.
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getNextWorkitem()));
+                            sendNextWorkItem(tx, connection);
+                        }
+                        else if (path.equals("console/workItems") || path.equals("console/workItems/"))
+                        { // Obtains up to max pending work items, waiting up to wait ms for the first.
+                            sendWorkItems(tx, connection);
+                        }
+                        else if (path.equals("console/events") || path.equals("console/events/"))
+                        { // Opens a Server-Sent Events stream of WorkItems.
+                            sendEventStream(tx, connection);
                         }
                         else if (path.startsWith("console/agents") && path.length() == 14)
                         { // Get information about all available Agents.
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getAgents()));
+                            sendJSONResponse(tx, console.getAgents());
                         }
                         else if (path.startsWith("console/agent/"))
                         { // Get information about a specified Agent.
@@ -333,12 +763,12 @@ public final class QpidServer implements Server
                             }
                             else
                             {
-                                tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(agent));
+                                sendJSONResponse(tx, agent);
                             }
                         }
                         else if (path.startsWith("console/agent") && path.length() == 13)
                         { // If agent is unspecified treat as a synonym for agents.
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getAgents()));
+                            sendJSONResponse(tx, console.getAgents());
                         }
                         else if (path.startsWith("console/classes/"))
                         { // Get information about the classes for a specified Agent
@@ -349,7 +779,7 @@ public final class QpidServer implements Server
                         }
                         else if (path.startsWith("console/classes") && path.length() == 15)
                         { // Get information about all the classes for all Agents
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getClasses()));
+                            sendJSONResponse(tx, console.getClasses());
                         }
                         else if (path.startsWith("console/packages/"))
                         { // Get information about the packages for a specified Agent
@@ -383,12 +813,12 @@ public final class QpidServer implements Server
                                 // Not that in a departure from the QMF2 API this returns the QmfConsoleData object
                                 // rather than a list of size one. Perhaps the APIs should be completely consistent
                                 // but this response seems more convenient.
-                                tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(objects.get(0)));
+                                sendJSONResponse(tx, objects.get(0));
                             }
                         }
                         else if (path.startsWith("console/packages") && path.length() == 16)
                         { // Get information about all the packages for all Agents
-                            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getPackages()));
+                            sendJSONResponse(tx, console.getPackages());
                         }
                         else
                         {
@@ -398,10 +828,14 @@ public final class QpidServer implements Server
                 }
             }
         }
+        else if (path.startsWith("/qpid/aggregate/objects/"))
+        { // handle "/qpid/aggregate/objects/<className>" requests across several of the user's Connections.
+            sendAggregateObjectsResponse(tx, tx.getPrincipal(), path.substring(24));
+        }
         else if (path.startsWith("/qpid/connection"))
         { // handle "/qpid/connection" request with unspecified connection (returns list of available connections).
             String user = tx.getPrincipal(); // Using the principal lets different users use the default connection.
-            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(_connections.getAll(user)));   
+            sendJSONResponse(tx, _connections.getAll(user));   
         }
         else
         {
@@ -482,14 +916,12 @@ public final class QpidServer implements Server
                             QmfConsoleData object = new QmfConsoleData(Collections.EMPTY_MAP, agent);
                             object.setObjectId(oid);
 
-                            String request = tx.getRequestString();
-                            _log.info("QpidServer.doPost path: {} body: {}", tx.getRequestURI(), request);
-
-                            //System.out.println(request);
                             String method = "";
                             try
                             {
-                                Map<String, Object> reqMap = JSON.toMap(request);
+                                // Parse the request body as it is read rather than reading it into a String first.
+                                Map<String, Object> reqMap = JSON.toMap(tx.getRequestStream());
+                                _log.info("QpidServer.doPost path: {} body: {}", tx.getRequestURI(), reqMap);
 
                                 method = (String)reqMap.get("_method_name");
                                 Object arguments = reqMap.get("_arguments");
@@ -503,9 +935,9 @@ public final class QpidServer implements Server
                                 // Invoke the specified method on the QmfConsoleData we've created.
                                 MethodResult results = null;
 
-                                _log.info("invokeMethod: {}", request);
+                                _log.info("invokeMethod: {} {}", method, args);
                                 results = object.invokeMethod(method, inArgs);
-                                tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(results));
+                                sendJSONResponse(tx, results);
                             }
                             catch (QmfException qmfe)
                             {
@@ -570,16 +1002,14 @@ public final class QpidServer implements Server
         {
             path = path.substring(17);
             String user = tx.getPrincipal();
-            String request = tx.getRequestString();
-            _log.info("QpidServer.doPut path: {} body: {}", tx.getRequestURI(), request);
-
             String name = user + "." + path;
 
             try
             {
                 // The PUT request is a JSON string containing a url String property and a connectionOptions
                 // property which is itself a JSON String.
-                Map<String, String> reqMap = JSON.toMap(request);
+                Map<String, String> reqMap = JSON.toMap(tx.getRequestStream());
+                _log.info("QpidServer.doPut path: {} body: {}", tx.getRequestURI(), reqMap);
 
                 String url = reqMap.get("url");
                 url = url.equals("") ? _defaultBroker : url;
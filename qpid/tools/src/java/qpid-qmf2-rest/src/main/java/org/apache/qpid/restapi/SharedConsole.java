@@ -0,0 +1,306 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi;
+
+// Misc Imports
+import java.util.List;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// JMS Imports
+import javax.jms.Connection;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Agent;
+import org.apache.qpid.qmf2.console.AgentAddedWorkItem;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+
+/**
+ * A SharedConsole holds the Qpid Connection and QMF2 Console used by all of the ConnectionProxy Objects (REST API
+ * sessions) that were created with the same Connection URL, options and disableEvents flag.
+ * <p>
+ * Without sharing, every REST API session would have its own Connection and Console, each performing its own Agent
+ * discovery, holding its own schema and receiving every Agent heartbeat and indication, so that gateway memory and
+ * broker load would grow with the number of users. The SharedConsole is reference counted by its ConnectionProxy
+ * Objects and is closed by the ConnectionStore when the last of them has been closed. Each ConnectionProxy still has
+ * its own lease, WorkItem queue and EventStreams, the SharedConsole fans out the WorkItems received by the Console
+ * to each of them.
+ * <p>
+ * As the URL and options (which carry any credentials) form part of the key used to share a SharedConsole, sessions
+ * that authenticate to the broker differently never share a Connection.
+ * <p>
+ * The SharedConsole's Console has its object cache enabled with a short maximum age, so that many sessions polling
+ * the same objects result in a single query to the Agent. If the qpid.restapi.value_interning system property is
+ * set to true the Console also interns the property names and values of the objects it receives, which saves memory
+ * when the cache retains many objects of the same classes at the cost of extra work decoding each object.
+ */
+public final class SharedConsole extends TimerTask implements ExceptionListener, QmfEventListener
+{
+    private static final Logger _log = LoggerFactory.getLogger(SharedConsole.class);
+
+    // The maximum age in milliseconds of objects returned from the Console's object cache and its maximum size.
+    private static final long OBJECT_CACHE_MAX_AGE = 1000;
+    private static final int OBJECT_CACHE_MAX_SIZE = 100000;
+
+    // Whether the Console interns the property names and values of the objects it receives, off by default.
+    private static final boolean VALUE_INTERNING = Boolean.getBoolean("qpid.restapi.value_interning");
+
+    private final String _key;
+    private final String _url;
+    private final String _connectionOptions;
+    private final boolean _disableEvents;
+    private final List<ConnectionProxy> _proxies = new CopyOnWriteArrayList<ConnectionProxy>();
+    private Connection _connection;
+    private volatile Console _console;
+    private volatile boolean _connected;
+    private boolean _closed;
+
+    /**
+     * Construct a SharedConsole, the Connection is created when the SharedConsole is first run by the ConnectionStore.
+     * @param key the key used by the ConnectionStore to look up this SharedConsole.
+     * @param url A Connection URL using one of the forms supported by {@link org.apache.qpid.qmf2.util.ConnectionHelper}.
+     * @param connectionOptions A set of connection options in the form supported by {@link org.apache.qpid.qmf2.util.ConnectionHelper}.
+     * @param disableEvents if true create a QMF Console Connection that can only perform synchronous
+     * operations like getObjects() and cannot do asynchronous things like Agent discovery or receive Events.
+     */
+    public SharedConsole(final String key, final String url, final String connectionOptions,
+                         final boolean disableEvents)
+    {
+        _key = key;
+        _url = url;
+        _connectionOptions = connectionOptions;
+        _disableEvents = disableEvents;
+        _connected = false;
+    }
+
+    /**
+     * Actually create the Qpid Connection and QMF2 Console.
+     */
+    private synchronized void createConnection()
+    {
+        if (_closed)
+        {
+            return;
+        }
+
+        try
+        {
+            _connection = ConnectionHelper.createConnection(_url, _connectionOptions);
+            if (_connection != null)
+            {
+                _connection.setExceptionListener(this);
+
+                // Each Console needs a unique name as the name forms part of its reply address.
+                String name = "qmfc-rest-" + UUID.randomUUID();
+                Console console;
+                if (_disableEvents)
+                {
+                    console = new Console(name, null, null, null);
+                    console.disableEvents();
+                }
+                else
+                {
+                    console = new Console(name, null, this, null);
+                }
+                console.enableObjectCache(OBJECT_CACHE_MAX_AGE, OBJECT_CACHE_MAX_SIZE);
+                if (VALUE_INTERNING)
+                {
+                    console.enableValueInterning();
+                }
+                console.addConnection(_connection);
+                _console = console;
+                _connected = true;
+                notifyAll();
+            }
+        }
+        catch (Exception ex)
+        {
+            _log.info("Exception {} caught in SharedConsole createConnection().", ex.getMessage());
+            _connected = false;
+        }
+    }
+
+    /**
+     * This method blocks until the Connection has been created.
+     */
+    public synchronized void waitForConnection()
+    {
+        while (!_connected && !_closed)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException ie)
+            {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * This method blocks until the Connection has been created or timeout expires (or wait has been interrupted).
+     * @param timeout the maximum time in milliseconds to wait for notification of the connection's availability.
+     */
+    public synchronized void waitForConnection(long timeout)
+    {
+        if (!_connected)
+        {
+            try
+            {
+                wait(timeout);
+            }
+            catch (InterruptedException ie)
+            { // Ignore
+            }
+        }
+    }
+
+    /**
+     * The exception listener for the underlying Qpid Connection, used to trigger the reconnect logic in run().
+     * @param jmse The JMSException that has caused onException to be triggered.
+     */
+    public void onException(JMSException jmse)
+    {
+        _log.info("SharedConsole onException {}", jmse.getMessage());
+        _connected = false;
+    }
+
+    /**
+     * The QmfEventListener for the Console, fans the WorkItem out to every ConnectionProxy using this SharedConsole.
+     * The JSON encoding of the WorkItem is created at most once, by the first ConnectionProxy that needs it.
+     * @param item the WorkItem received by the Console.
+     */
+    public void onEvent(final WorkItem item)
+    {
+        String json = null;
+        for (ConnectionProxy proxy : _proxies)
+        {
+            json = proxy.onEvent(item, json);
+        }
+    }
+
+    /**
+     * This method is called periodically by {@link org.apache.qpid.restapi.ConnectionStore} and attempts to
+     * reconnect if the Qpid Connection has failed.
+     */
+    public void run()
+    {
+        if (!_connected)
+        {
+            createConnection();
+        }
+    }
+
+    /**
+     * Add a ConnectionProxy to this SharedConsole. If the Console has already discovered some Agents the new
+     * ConnectionProxy receives an AGENT_ADDED WorkItem for each of them, as it would have done had it created
+     * its own Console.
+     * @param proxy the ConnectionProxy to add.
+     */
+    public void addProxy(final ConnectionProxy proxy)
+    {
+        _proxies.add(proxy);
+        Console console = _console;
+        if (console != null && _connected && !_disableEvents)
+        {
+            for (Agent agent : console.getAgents())
+            {
+                proxy.onEvent(new AgentAddedWorkItem(agent), null);
+            }
+        }
+    }
+
+    /**
+     * Remove a ConnectionProxy from this SharedConsole.
+     * @param proxy the ConnectionProxy to remove.
+     * @return the number of ConnectionProxy Objects still using this SharedConsole.
+     */
+    public int removeProxy(final ConnectionProxy proxy)
+    {
+        _proxies.remove(proxy);
+        return _proxies.size();
+    }
+
+    /**
+     * Stops scheduled housekeeping, destroys the QMF2 Console then closes the Qpid Connection.
+     */
+    public synchronized void close()
+    {
+        cancel();
+        _closed = true;
+        notifyAll();
+
+        try
+        {
+            if (_console != null)
+            {
+                _console.destroy();
+            }
+
+            if (_connection != null)
+            {
+                _connection.close();
+            }
+        }
+        catch (Exception e)
+        { // Log and Ignore
+            _log.info("SharedConsole close() caught Exception {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the key used by the ConnectionStore to look up this SharedConsole.
+     * @return the key used by the ConnectionStore to look up this SharedConsole.
+     */
+    public String getKey()
+    {
+        return _key;
+    }
+
+    /**
+     * Retrieves the QMF2 Console, which may be null if the Connection has never been created.
+     * @return The QMF2 Console.
+     */
+    public Console getConsole()
+    {
+        return _console;
+    }
+
+    /**
+     * Returns whether or not the Connection is currently connected to the broker.
+     * @return true if currently connected or false if not.
+     */
+    public boolean isConnected()
+    {
+        return _connected;
+    }
+}
@@ -22,6 +22,7 @@ package org.apache.qpid.restapi.httpserver;
 
 import java.io.IOException;
 import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -38,20 +39,37 @@ import org.apache.qpid.restapi.Server;
  * is a concrete implementation of HttpTransaction that wraps HttpServletRequest and HttpServletResponse and subclasses
  * of HttpServlet that delegate to the appropriate Server instances from the appropriate context in a similar way
  * to the Delegator class here.
+ * <p>
+ * If the Delegator is given the RequestExecutor used by the HttpServer then it sheds load when that is overloaded
+ * by responding 503 Service Unavailable, so that a burst of requests drains quickly rather than each request
+ * waiting its turn to make a blocking QMF call.
  * 
  * @author Fraser Adams
  */
 public class Delegator implements HttpHandler
 {
     private final Server _server;
+    private final RequestExecutor _executor;
 
     /**
      * Construct a Delegator instance that delegates to the specified Server instance.
      * @param server the Server instance that this Delegator delegates to.
      */
     public Delegator(Server server)
+    {
+        this(server, null);
+    }
+
+    /**
+     * Construct a Delegator instance that delegates to the specified Server instance and rejects requests when the
+     * specified RequestExecutor is overloaded.
+     * @param server the Server instance that this Delegator delegates to.
+     * @param executor the RequestExecutor used by the HttpServer, may be null.
+     */
+    public Delegator(Server server, RequestExecutor executor)
     {
         _server = server;
+        _executor = executor;
     }
 
     /**
@@ -62,6 +80,13 @@ public class Delegator implements HttpHandler
     public void handle(final HttpExchange exchange) throws IOException
     {
         HttpTransaction tx = new HttpExchangeTransaction(exchange);
+        if (_executor != null && _executor.isOverloaded())
+        {
+            tx.setHeader("Retry-After", "1");
+            tx.sendResponse(HTTP_UNAVAILABLE, "text/plain", "503 Service Unavailable: Too many requests queued.");
+            return;
+        }
+
         String method = tx.getMethod();
         if (method.equals("GET"))
         {
@@ -21,21 +21,30 @@
 package org.apache.qpid.restapi.httpserver;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpPrincipal;
 
+import org.apache.qpid.restapi.ContentEncoding;
 import org.apache.qpid.restapi.HttpTransaction;
 
+import static java.net.HttpURLConnection.HTTP_OK;
+
 /**
  * This class provides an implementation of the HttpTransaction interface that wraps com.sun.net.httpserver.HttpExchange
  * in order to provide an implementation neutral facade to the Server classes.
+ * <p>
+ * Successful responses with a textual mimeType are sent with gzip Content-Encoding if the client's Accept-Encoding
+ * header allows it and the response is at least ContentEncoding.GZIP_THRESHOLD bytes long (or is streamed and of
+ * unknown length).
  *
  * @author Fraser Adams
  */
@@ -102,6 +111,50 @@ public final class HttpExchangeTransaction implements HttpTransaction
         return bos.toByteArray();
     }
 
+    /**
+     * Returns true if a response should be sent with gzip Content-Encoding, that is if it is a successful response
+     * that isn't already encoded or partial, with a textual mimeType, and the client's Accept-Encoding header
+     * accepts gzip. An identity Content-Encoding, which the Server sets to prevent compression, is removed here
+     * as it isn't sent to the client.
+     * @param status the HTTP status code of the response.
+     * @param mimeType the mimeType of the response content.
+     * @return true if the response should be compressed.
+     */
+    private boolean useGzip(final int status, final String mimeType)
+    {
+        Headers headers = _exchange.getResponseHeaders();
+        if (ContentEncoding.IDENTITY.equals(headers.getFirst("Content-Encoding")))
+        {
+            headers.remove("Content-Encoding");
+            return false;
+        }
+
+        return status == HTTP_OK && !headers.containsKey("Content-Encoding") && !headers.containsKey("Content-Range") &&
+               ContentEncoding.isCompressible(mimeType) && ContentEncoding.acceptsGzip(this);
+    }
+
+    /**
+     * Set the response headers for a gzip Content-Encoded response using ContentEncoding.setGzipHeaders(), passing
+     * the opaque tag of any strong ETag that the Server has set. Any Content-Length is removed as it is the length
+     * of the uncompressed content.
+     */
+    private void setGzipHeaders()
+    {
+        Headers headers = _exchange.getResponseHeaders();
+        headers.remove("Content-Length");
+
+        String etag = headers.getFirst("ETag");
+        if (etag != null && etag.length() > 1 && etag.startsWith("\"") && etag.endsWith("\""))
+        {
+            etag = etag.substring(1, etag.length() - 1);
+        }
+        else
+        { // There's no ETag, or it's a weak ETag which can be left as it is.
+            etag = null;
+        }
+        ContentEncoding.setGzipHeaders(this, etag);
+    }
+
     /**
      * Send the content passed as a String as an HTTP response back to the client.
      * @param status the HTTP status code e.g. 200 for OK.
@@ -138,9 +191,20 @@ public final class HttpExchangeTransaction implements HttpTransaction
         }
         else
         {
-            _exchange.sendResponseHeaders(status, content.length);
+            byte[] body = content;
+            if (useGzip(status, mimeType) && content.length >= ContentEncoding.GZIP_THRESHOLD)
+            {
+                byte[] gzipped = ContentEncoding.gzip(content);
+                if (gzipped.length < content.length)
+                {
+                    setGzipHeaders();
+                    body = gzipped;
+                }
+            }
+
+            _exchange.sendResponseHeaders(status, body.length);
             OutputStream os = _exchange.getResponseBody();
-            os.write(content);
+            os.write(body);
             os.flush();
             os.close();
             _exchange.close();
@@ -163,18 +227,53 @@ public final class HttpExchangeTransaction implements HttpTransaction
         }
         else
         {
-            _exchange.sendResponseHeaders(status, 0); // For a stream we set to zero to force chunked transfer encoding.
-            OutputStream os = _exchange.getResponseBody();
+            // If the Server has set a Content-Length header then the stream is sent with that fixed length, unless
+            // it is to be compressed, otherwise it is sent using chunked transfer encoding.
+            Headers headers = _exchange.getResponseHeaders();
+            long length = -1;
+            String contentLength = headers.getFirst("Content-Length");
+            if (contentLength != null)
+            {
+                headers.remove("Content-Length");
+                try
+                {
+                    length = Long.parseLong(contentLength);
+                }
+                catch (NumberFormatException nfe)
+                {
+                }
+            }
+
+            OutputStream os = null;
+            if (useGzip(status, mimeType) && (length == -1 || length >= ContentEncoding.GZIP_THRESHOLD))
+            {
+                setGzipHeaders();
+                _exchange.sendResponseHeaders(status, 0); // For a stream we set to zero to force chunked transfer encoding.
+                os = new GZIPOutputStream(_exchange.getResponseBody(), 8192);
+                length = -1;
+            }
+            else if (length >= 0)
+            { // A response length of -1 means no response body, which is what a zero length stream needs.
+                _exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+                os = _exchange.getResponseBody();
+            }
+            else
+            {
+                _exchange.sendResponseHeaders(status, 0); // For a stream we set to zero to force chunked transfer encoding.
+                os = _exchange.getResponseBody();
+            }
 
             byte[] buffer = new byte[8192];
-            while (true)
+            long remaining = (length == -1) ? Long.MAX_VALUE : length;
+            while (remaining > 0)
             {
-                int read = is.read(buffer, 0, buffer.length);
+                int read = is.read(buffer, 0, (int)Math.min(buffer.length, remaining));
                 if (read == -1) // Loop until EOF is reached
                 {
                     break;
                 }
                 os.write(buffer, 0, read);
+                remaining -= read;
             }
           
             os.flush();
@@ -183,6 +282,50 @@ public final class HttpExchangeTransaction implements HttpTransaction
         }
     }
 
+    /**
+     * Send the HTTP response headers and return a stream used to write the response body, which is sent using
+     * chunked transfer encoding and compressed if the client accepts it. The HttpExchange is closed when the
+     * returned stream is closed.
+     * @param status the HTTP status code e.g. 200 for OK.
+     * @param mimeType the mimeType of the response content e.g. text/event-stream.
+     * @return the OutputStream used to write the response body.
+     */
+    public OutputStream getResponseStream(final int status, final String mimeType) throws IOException
+    {
+        _exchange.getResponseHeaders().set("Content-Type", mimeType);
+
+        // An event stream isn't compressed as each event must be delivered as soon as it has been written.
+        boolean gzip = !mimeType.equals("text/event-stream") && useGzip(status, mimeType);
+        if (gzip)
+        {
+            setGzipHeaders();
+        }
+
+        _exchange.sendResponseHeaders(status, 0); // For a stream we set to zero to force chunked transfer encoding.
+        OutputStream body = _exchange.getResponseBody();
+        return new FilterOutputStream(gzip ? new GZIPOutputStream(body, 8192) : body)
+        {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException
+            { // FilterOutputStream writes a byte at a time by default, so delegate directly.
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    _exchange.close();
+                }
+            }
+        };
+    }
+
     /**
      * Returns the Internet Protocol (IP) address of the client or last proxy that sent the request.
      * @return the Internet Protocol (IP) address of the client or last proxy that sent the request.
@@ -240,6 +383,16 @@ public final class HttpExchangeTransaction implements HttpTransaction
         return _exchange.getRequestURI().getPath();
     }
 
+    /**
+     * Returns the query string that is contained in the request URL after the path, or null if the URL does not have
+     * a query string. The query string is returned in its raw, undecoded, form.
+     * @return a String containing the query string or null if the URL contains no query string.
+     */
+    public String getQueryString()
+    {
+        return _exchange.getRequestURI().getRawQuery();
+    }
+
     /**
      * Sets a response header with the given name and value. If the header had already been set, the new value
      * overwrites the previous one.
@@ -0,0 +1,261 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.restapi.httpserver;
+
+// Misc Imports
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RequestExecutor is the Executor used by HttpServer to run requests, it bounds the number of requests that are
+ * handled concurrently and keeps track of the number of requests queued waiting to be handled.
+ * <p>
+ * Many of the REST API requests block whilst the QMF2 Console waits for a response from an Agent, so with the
+ * unbounded Executors.newCachedThreadPool() previously used a load spike would create threads without limit.
+ * RequestExecutor instead handles at most maxConcurrent requests at a time, further requests wait in a queue, and
+ * Delegator responds 503 Service Unavailable to requests that find more than maxQueued requests already waiting.
+ * HttpServer itself uses a non-blocking selector to accept connections, read request headers and manage
+ * keep-alive connections, so idle connections don't occupy request threads.
+ * <p>
+ * When the JVM supports virtual threads (Java 21 or later) each request runs in its own virtual thread, whose
+ * concurrency is bounded by a Semaphore, so a request blocked on QMF doesn't occupy a platform thread. Otherwise
+ * a fixed size pool of maxConcurrent platform threads is used.
+ * <p>
+ * Long poll requests, such as console/nextWorkItem, may block for a long time waiting for WorkItems rather than for
+ * an Agent, so they call beginWait() and endWait() around the wait. A waiting request doesn't count against the
+ * maxConcurrent bound: with virtual threads it gives up its permit, otherwise the pool grows by a thread for the
+ * duration of the wait. This means that clients long polling for WorkItems can't starve other requests. So that
+ * the number of platform threads stays bounded at most maxWaiting requests may wait at once, beginWait() refuses
+ * any more and the caller rejects them.
+ */
+public final class RequestExecutor implements Executor
+{
+    private static final Logger _log = LoggerFactory.getLogger(RequestExecutor.class);
+
+    /**
+     * The RequestExecutor running the request handled by the current Thread, null for other Threads.
+     */
+    private static final ThreadLocal<RequestExecutor> _current = new ThreadLocal<RequestExecutor>();
+
+    private final int _maxConcurrent;
+    private final int _maxQueued;
+    private final int _maxWaiting;
+    private final ExecutorService _executor;
+    private final ThreadPoolExecutor _pool;
+    private final Semaphore _permits;
+    private final AtomicInteger _queued = new AtomicInteger();
+    private int _waiting = 0; // The number of requests in beginWait() when using _pool, guarded by this.
+
+    /**
+     * Construct a RequestExecutor that allows as many requests to be in beginWait() as it handles concurrently.
+     * @param maxConcurrent the maximum number of requests handled concurrently.
+     * @param maxQueued the maximum number of requests waiting to be handled before further requests are rejected.
+     */
+    public RequestExecutor(final int maxConcurrent, final int maxQueued)
+    {
+        this(maxConcurrent, maxQueued, maxConcurrent);
+    }
+
+    /**
+     * Construct a RequestExecutor.
+     * @param maxConcurrent the maximum number of requests handled concurrently.
+     * @param maxQueued the maximum number of requests waiting to be handled before further requests are rejected.
+     * @param maxWaiting the maximum number of requests in beginWait() when using platform threads, the pool has
+     * at most maxConcurrent + maxWaiting threads.
+     */
+    public RequestExecutor(final int maxConcurrent, final int maxQueued, final int maxWaiting)
+    {
+        _maxConcurrent = maxConcurrent;
+        _maxQueued = maxQueued;
+        _maxWaiting = maxWaiting;
+
+        ExecutorService virtualExecutor = createVirtualThreadExecutor();
+        if (virtualExecutor == null)
+        {
+            // The maximum pool size allows beginWait() to grow the core size by up to maxWaiting, the
+            // LinkedBlockingQueue means that the pool never otherwise grows beyond the core size.
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent, maxConcurrent + maxWaiting,
+                                                             60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger _count = new AtomicInteger();
+
+                public Thread newThread(final Runnable r)
+                {
+                    return new Thread(r, "QpidRestAPI Request " + _count.incrementAndGet());
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            _executor = pool;
+            _pool = pool;
+            _permits = null;
+            _log.info("RequestExecutor using {} request threads", maxConcurrent);
+        }
+        else
+        {
+            _executor = virtualExecutor;
+            _pool = null;
+            _permits = new Semaphore(maxConcurrent);
+            _log.info("RequestExecutor using virtual threads, {} concurrent requests", maxConcurrent);
+        }
+    }
+
+    /**
+     * Create an Executor that starts a new virtual thread for each task, using reflection as this code is built
+     * for Java versions that don't have virtual threads.
+     * @return the Executor or null if virtual threads aren't supported by this JVM.
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e)
+        { // NoSuchMethodException on older JVMs, or virtual threads are otherwise unavailable.
+            return null;
+        }
+    }
+
+    /**
+     * Execute a request, called by HttpServer once the request headers have been read.
+     * @param command the Runnable that handles the request.
+     */
+    public void execute(final Runnable command)
+    {
+        _queued.incrementAndGet();
+        _executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                if (_permits != null)
+                {
+                    _permits.acquireUninterruptibly();
+                }
+
+                _queued.decrementAndGet();
+                _current.set(RequestExecutor.this);
+                try
+                {
+                    command.run();
+                }
+                finally
+                {
+                    _current.remove();
+                    if (_permits != null)
+                    {
+                        _permits.release();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by a request that is about to block waiting for something other than an Agent, such as a long poll for
+     * WorkItems, so that it doesn't count against the maxConcurrent bound while it waits. Every call must be
+     * followed by a call to endWait() from the same Thread unless it returns false, in which case the request
+     * shouldn't wait. Does nothing if the current Thread isn't running a request.
+     * @return false if maxWaiting requests are already waiting.
+     */
+    public static boolean beginWait()
+    {
+        RequestExecutor executor = _current.get();
+        if (executor != null)
+        {
+            if (executor._permits != null)
+            {
+                executor._permits.release();
+            }
+            else
+            {
+                return executor.resize(1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by a request when the wait started by beginWait() has finished, so that it counts against the
+     * maxConcurrent bound once more. With virtual threads this may block until a permit is available.
+     */
+    public static void endWait()
+    {
+        RequestExecutor executor = _current.get();
+        if (executor != null)
+        {
+            if (executor._permits != null)
+            {
+                executor._permits.acquireUninterruptibly();
+            }
+            else
+            {
+                executor.resize(-1);
+            }
+        }
+    }
+
+    /**
+     * Change the number of requests waiting in beginWait() and resize the thread pool so that maxConcurrent threads
+     * are available to other requests. When the pool shrinks the excess threads exit once they become idle.
+     * @param delta the change in the number of waiting requests.
+     * @return false if the number of waiting requests would exceed maxWaiting, in which case nothing is changed.
+     */
+    private synchronized boolean resize(final int delta)
+    {
+        if (delta > 0 && _waiting + delta > _maxWaiting)
+        {
+            return false;
+        }
+        _waiting += delta;
+        _pool.setCorePoolSize(_maxConcurrent + _waiting);
+        return true;
+    }
+
+    /**
+     * Returns true if more than maxQueued requests are waiting to be handled, in which case newly dequeued requests
+     * should be rejected quickly in order to drain the queue.
+     * @return true if the RequestExecutor is overloaded.
+     */
+    public boolean isOverloaded()
+    {
+        return _queued.get() > _maxQueued;
+    }
+
+    /**
+     * Stop accepting new requests.
+     */
+    public void shutdown()
+    {
+        _executor.shutdown();
+    }
+}
@@ -402,12 +402,13 @@ qmf.Console = function(onEvent) {
     };
 
     /** 
-     * Retrieve QMF2 WorkItems via the QMF2 REST API, note that this call may block (on the server).
+     * Retrieve QMF2 WorkItems via the QMF2 REST API, note that this call long polls (on the server) for up to
+     * 2*qmf.REFRESH_PERIOD, which is less than the AJAX timeout.
      */
     var dispatchEvents = function() {
         if (_connection != null) {
             _qmfEventListenerXHR = $.ajax({
-                url: _url + "/console/nextWorkItem",
+                url: _url + "/console/nextWorkItem?wait=" + 2*qmf.REFRESH_PERIOD,
                 cache: false,
                 dataType: "json",
                 timeout: 3*qmf.REFRESH_PERIOD,
@@ -424,7 +425,9 @@ qmf.Console = function(onEvent) {
      */
     var handleDispatchEventsSuccess = function(data) {
         if (_connection != null) {
-            onEvent(data);
+            if (data) { // The response is empty if no WorkItem became available within the requested wait.
+                onEvent(data);
+            }
             dispatchEvents();
         }
     };
@@ -436,7 +439,12 @@ qmf.Console = function(onEvent) {
      */
     var handleDispatchEventsFailure = function(xhr) {
         //console.log("handleDispatchEventsFailure " + xhr.status + " " + xhr.statusText);
-        if (xhr.status == 0 || xhr.status == 12029) { // For some reason IE7 sends 12029??
+        if (xhr.status == 200) {
+            // An empty response (which fails to parse as JSON) is sent if no WorkItem became available within the
+            // requested wait, so simply wait for the next WorkItem.
+            dispatchEvents();
+            return;
+        } else if (xhr.status == 0 || xhr.status == 12029) { // For some reason IE7 sends 12029??
             if (xhr.statusText == "timeout") { // If AJAX calls have timed out it's likely due to a failed broker.
                 sendBrokerDisconnectedEvent();
             } else {
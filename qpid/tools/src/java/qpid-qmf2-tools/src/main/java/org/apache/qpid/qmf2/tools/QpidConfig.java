@@ -45,6 +45,7 @@ import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.MethodResult;
 import org.apache.qpid.qmf2.console.QmfConsoleData;
 import org.apache.qpid.qmf2.util.ConnectionHelper;
 import org.apache.qpid.qmf2.util.GetOpt;
@@ -72,6 +73,7 @@ import org.apache.qpid.qmf2.util.GetOpt;
  *                   &lt;for type xml&gt;     [-f -|filename]
  *                   &lt;for type header&gt;  [all|any] k1=v1 [, k2=v2...]
  *         qpid-config [OPTIONS] unbind &lt;exchange-name&gt; &lt;queue-name&gt; [binding-key]
+ *         qpid-config [OPTIONS] apply  &lt;file&gt;|-
  * 
  * ADDRESS syntax:
  * 
@@ -84,6 +86,17 @@ import org.apache.qpid.qmf2.util.GetOpt;
  * $ qpid-config add exchange direct d localhost:5672
  * $ qpid-config exchanges 10.1.1.7:10000
  * $ qpid-config queues guest/guest@broker-host:10000
+ * $ qpid-config apply provisioning.txt
+ * 
+ * Apply file format:
+ * 
+ *     One operation per line, blank lines and lines starting with # are ignored.
+ *     create|delete exchange|queue|binding &lt;name&gt; [property=value ...]
+ *     Binding names are of the form &lt;exchange-name&gt;/&lt;queue-name&gt;[/binding-key]
+ *     e.g.
+ *     create exchange orders exchange-type=topic durable=true
+ *     create queue orders.eu durable=true qpid.max_count=100000
+ *     create binding orders/orders.eu/eu.#
  * 
  * Add Exchange &lt;type&gt; values:
  * 
@@ -200,7 +213,8 @@ public final class QpidConfig
     "        qpid-config [OPTIONS] bind   <exchange-name> <queue-name> [binding-key]\n" +
     "                  <for type xml>     [-f -|filename]\n" +
     "                  <for type header>  [all|any] k1=v1 [, k2=v2...]\n" +
-    "        qpid-config [OPTIONS] unbind <exchange-name> <queue-name> [binding-key]\n";
+    "        qpid-config [OPTIONS] unbind <exchange-name> <queue-name> [binding-key]\n" +
+    "        qpid-config [OPTIONS] apply  <file>|-\n";
 
     private static final String _description =
     "ADDRESS syntax:\n" +
@@ -214,6 +228,17 @@ public final class QpidConfig
     "$ qpid-config add exchange direct d localhost:5672\n" +
     "$ qpid-config exchanges 10.1.1.7:10000\n" +
     "$ qpid-config queues guest/guest@broker-host:10000\n" +
+    "$ qpid-config apply provisioning.txt\n" +
+    "\n" +
+    "Apply file format:\n" +
+    "\n" +
+    "    One operation per line, blank lines and lines starting with # are ignored.\n" +
+    "    create|delete exchange|queue|binding <name> [property=value ...]\n" +
+    "    Binding names are of the form <exchange-name>/<queue-name>[/binding-key]\n" +
+    "    e.g.\n" +
+    "    create exchange orders exchange-type=topic durable=true\n" +
+    "    create queue orders.eu durable=true qpid.max_count=100000\n" +
+    "    create binding orders/orders.eu/eu.#\n" +
     "\n" +
     "Add Exchange <type> values:\n" +
     "\n" +
@@ -358,6 +383,11 @@ public final class QpidConfig
     private static final String FLOW_STOP_SIZE    = "qpid.flow_stop_size";
     private static final String FLOW_RESUME_SIZE  = "qpid.flow_resume_size";
 
+    // The maximum number of operations sent in each batch method call when applying a file and the time in seconds
+    // to wait for each batch to complete, which needs to be rather longer than for an individual create or delete.
+    private static final int APPLY_BATCH_SIZE = 500;
+    private static final int APPLY_BATCH_TIMEOUT = 120;
+
     // There are various arguments to declare that have specific program options in this utility.
     // However there is now a generic mechanism for passing arguments as well. The SPECIAL_ARGS
     // set contains the arguments for which there are specific program options defined i.e. the
@@ -1211,6 +1241,196 @@ for (Map.Entry<String, Object> entry  : args.entrySet()) {
         }
     }
 
+    /**
+     * Parses a property value from an apply file, booleans and integers are converted to Boolean and Long, anything
+     * else is left as a String.
+     * @param value the String form of the value.
+     * @return the parsed value.
+     */
+    private Object parseValue(final String value)
+    {
+        if (value.equals("true") || value.equals("false"))
+        {
+            return Boolean.valueOf(value);
+        }
+
+        int length = value.length();
+        int start = (length > 1 && value.charAt(0) == '-') ? 1 : 0;
+        boolean numeric = length > start && length - start < 19;
+        for (int i = start; numeric && i < length; i++)
+        {
+            numeric = Character.isDigit(value.charAt(i));
+        }
+        return numeric ? (Object)Long.valueOf(value) : value;
+    }
+
+    /**
+     * Apply a file of create and delete operations to the broker (see the "Apply file format" in the usage).
+     * <p>
+     * Rather than making one method call per operation the operations are sent to the broker in groups of
+     * APPLY_BATCH_SIZE using the Java Broker's batch method, which returns a result for each operation. If the
+     * broker doesn't support the batch method (e.g. the C++ broker) we fall back to individual create and delete calls.
+     * Any other failure of a batch (e.g. a timeout) is reported and all of its operations counted as failed rather
+     * than retried individually, as the broker may already have applied some or all of them.
+     * @param args the file name, or "-" to read from stdin, is the first argument.
+     */
+    @SuppressWarnings("unchecked")
+    private void apply(final String[] args)
+    {
+        if (args.length < 1)
+        {
+            usage();
+        }
+
+        List<Map<String, Object>> operations = new ArrayList<Map<String, Object>>();
+        try
+        {
+            BufferedReader in = args[0].equals("-") ? new BufferedReader(new InputStreamReader(System.in)) :
+                                                      new BufferedReader(new InputStreamReader(new FileInputStream(args[0])));
+            try
+            {
+                String line;
+                int lineNumber = 0;
+                while ((line = in.readLine()) != null)
+                {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#"))
+                    {
+                        continue;
+                    }
+
+                    String[] split = line.split("\\s+");
+                    if (split.length < 3 || !(split[0].equals("create") || split[0].equals("delete")))
+                    {
+                        System.out.println("Invalid operation at line " + lineNumber + ": " + line);
+                        return;
+                    }
+
+                    Map<String, Object> properties = new HashMap<String, Object>();
+                    for (int i = 3; i < split.length; i++)
+                    {
+                        String[] kv = split[i].split("=", 2);
+                        properties.put(kv[0], kv.length == 2 ? parseValue(kv[1]) : null);
+                    }
+
+                    Map<String, Object> operation = new HashMap<String, Object>();
+                    operation.put("method", split[0]);
+                    operation.put("type", split[1]);
+                    operation.put("name", split[2]);
+                    operation.put("properties", properties);
+                    operations.add(operation);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            System.out.println("File " + args[0] + " not found");
+            return;
+        }
+        catch (IOException ioe)
+        {
+            System.out.println("Exception " + ioe + " while reading " + args[0]);
+            return;
+        }
+
+        int failed = 0;
+        for (int i = 0; i < operations.size(); i += APPLY_BATCH_SIZE)
+        {
+            List<Map<String, Object>> batch =
+                operations.subList(i, Math.min(i + APPLY_BATCH_SIZE, operations.size()));
+            QmfData arguments = new QmfData();
+            arguments.setValue("operations", new ArrayList<Map<String, Object>>(batch));
+
+            try
+            {
+                MethodResult result = _broker.invokeMethod("batch", arguments, APPLY_BATCH_TIMEOUT);
+                List<Map> results = (List<Map>)result.getArgument("results");
+                if (results == null)
+                {
+                    System.out.println("Batch of " + batch.size() + " operations starting at operation " + (i + 1) +
+                                       " returned no results");
+                    failed += batch.size();
+                }
+                else
+                {
+                    for (Map m : results)
+                    {
+                        QmfData item = new QmfData(m);
+                        if (!item.getBooleanValue("success"))
+                        {
+                            System.out.println("Failed to " + item.getStringValue("method") + " " +
+                                               item.getStringValue("type") + " " + item.getStringValue("name") +
+                                               ": " + item.getStringValue("error_text"));
+                            failed++;
+                        }
+                    }
+                }
+            }
+            catch (QmfException e)
+            {
+                if (i == 0 && isUnsupportedMethod(e))
+                { // The broker doesn't support the batch method, so nothing has been applied yet.
+                    failed = applyIndividually(operations);
+                    break;
+                }
+                System.out.println("Batch of " + batch.size() + " operations starting at operation " + (i + 1) +
+                                   " failed: " + e.getMessage());
+                failed += batch.size();
+            }
+        }
+
+        System.out.printf("Applied %d operations, %d failed\n", operations.size() - failed, failed);
+    }
+
+    /**
+     * Check whether a method call failed because the broker doesn't support the method. The C++ broker reports this
+     * as "UnknownMethod" (or "NotImplemented") and the Java Broker's QMF2 plugin as "... not yet implemented ...".
+     * @param e the QmfException thrown by the method call.
+     * @return true if the exception indicates that the method isn't supported.
+     */
+    private static boolean isUnsupportedMethod(final QmfException e)
+    {
+        String message = (e.getMessage() == null) ? "" : e.getMessage().toLowerCase();
+        return message.contains("unknownmethod") || message.contains("unknown method") ||
+               message.contains("notimplemented") || message.contains("not implemented") ||
+               message.contains("not yet implemented");
+    }
+
+    /**
+     * Apply a List of create and delete operations one method call at a time, used by apply() when the broker
+     * doesn't support the batch method.
+     * @param operations the List of operations, each holding the method, type, name and properties.
+     * @return the number of operations that failed.
+     */
+    private int applyIndividually(final List<Map<String, Object>> operations)
+    {
+        int failed = 0;
+        for (Map<String, Object> operation : operations)
+        {
+            QmfData arguments = new QmfData();
+            arguments.setValue("type", operation.get("type"));
+            arguments.setValue("name", operation.get("name"));
+            arguments.setValue("properties", operation.get("properties"));
+
+            try
+            {
+                _broker.invokeMethod((String)operation.get("method"), arguments);
+            }
+            catch (QmfException e)
+            {
+                System.out.println("Failed to " + operation.get("method") + " " + operation.get("type") + " " +
+                                   operation.get("name") + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
     /**
      * Create an instance of QpidConfig.
      *
@@ -1480,6 +1700,10 @@ for (Map.Entry<String, Object> entry  : args.entrySet()) {
                 {
                     unbind(Arrays.copyOfRange(cargs, 1, cargs.length));
                 }
+                else if (cmd.equals("apply"))
+                {
+                    apply(Arrays.copyOfRange(cargs, 1, cargs.length));
+                }
                 else
                 {
                     usage();
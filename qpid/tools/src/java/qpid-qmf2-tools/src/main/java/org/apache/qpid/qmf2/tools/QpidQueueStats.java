@@ -28,11 +28,12 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Formatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 // QMF2 Imports
@@ -72,6 +73,13 @@ import org.apache.qpid.qmf2.util.GetOpt;
  *   -f &lt;filter&gt;, --filter=&lt;filter&gt;
  *                         a list of comma separated queue names (regex are
  *                         accepted) to show
+ *   -t &lt;n&gt;, --top=&lt;n&gt;
+ *                         rather than a line per queue update, show a table of
+ *                         the top n queues and the totals for each vhost each
+ *                         time the broker heartbeats
+ *   -s &lt;key&gt;, --sort=&lt;key&gt;
+ *                         the key used to choose the top n queues, one of
+ *                         depth (the default), enqueue or dequeue (rates)
  *   --sasl-mechanism=&lt;mech&gt;
  *                         SASL mechanism for authentication (e.g. EXTERNAL,
  *                         ANONYMOUS, PLAIN, CRAM-MD5, DIGEST-MD5, GSSAPI). SASL
@@ -109,6 +117,360 @@ public final class QpidQueueStats implements QmfEventListener
         }
     }
 
+    /**
+     * The statistic used to choose the queues shown in the top n table.
+     */
+    private enum SortKey
+    {
+        DEPTH,
+        ENQUEUE,
+        DEQUEUE
+    }
+
+    /**
+     * A QueueTable holds the latest depth and rates of every queue in the top n mode.
+     * <p>
+     * On brokers with very many queues holding a QmfConsoleData per queue and printing a line per update is
+     * expensive, so the statistics are held in primitive arrays indexed by a slot allocated to each queue, and the
+     * slots of deleted queues are reused. The top n queues are chosen with a bounded min-heap of slots, so printing
+     * the table is O(queues*log(n)) and the whole table is written with a single print call.
+     */
+    private static final class QueueTable
+    {
+        private static final String _rule =
+            "===================================================================================================";
+
+        private final Map<ObjectId, Integer> _slots = new HashMap<ObjectId, Integer>();
+        private final Map<String, Integer> _vhostIndex = new HashMap<String, Integer>();
+        private final List<String> _vhostNames = new ArrayList<String>();
+        private final int _top;
+        private final SortKey _sortKey;
+
+        private String[] _names = new String[64];
+        private int[] _vhosts = new int[64];
+        private long[] _depth = new long[64];
+        private long[] _enqueues = new long[64];
+        private long[] _dequeues = new long[64];
+        private long[] _updateTime = new long[64];
+        private double[] _enqueueRate = new double[64];
+        private double[] _dequeueRate = new double[64];
+        private boolean[] _updated = new boolean[64];
+        private int[] _free = new int[64];
+        private int _freeCount = 0;
+        private int _size = 0;
+        private boolean _changed = false;
+
+        public QueueTable(final int top, final SortKey sortKey)
+        {
+            _top = top;
+            _sortKey = sortKey;
+        }
+
+        /**
+         * Record the latest statistics of a queue, allocating a slot for it if it hasn't been seen before. A queue
+         * is only added to the table once a push that includes its name has been received.
+         * @param record the queue QmfConsoleData pushed by the broker.
+         */
+        public void update(final QmfConsoleData record)
+        {
+            ObjectId id = record.getObjectId();
+            Integer index = _slots.get(id);
+            if (index == null && !record.hasValue("name"))
+            { // A statistics only push for a queue we haven't seen the properties of, skip it until they arrive.
+                return;
+            }
+
+            long updateTime = record.getUpdateTime();
+            long enqueues = record.getLongValue("msgTotalEnqueues");
+            long dequeues = record.getLongValue("msgTotalDequeues");
+            if (index == null)
+            { // If the queue isn't in the table it's likely to be a properties push from the broker.
+                int slot = allocate();
+                _slots.put(id, slot);
+                _names[slot] = record.getStringValue("name");
+                _vhosts[slot] = getVhost(record);
+                _depth[slot] = record.getLongValue("msgDepth");
+                _enqueues[slot] = enqueues;
+                _dequeues[slot] = dequeues;
+                _updateTime[slot] = updateTime;
+                _enqueueRate[slot] = 0.0d;
+                _dequeueRate[slot] = 0.0d;
+                _updated[slot] = true;
+            }
+            else
+            {
+                int slot = index;
+                _depth[slot] = record.getLongValue("msgDepth");
+                double deltaTime = updateTime - _updateTime[slot];
+                if (deltaTime > 1000000000.0d)
+                {
+                    _enqueueRate[slot] = (enqueues - _enqueues[slot])/(deltaTime/1000000000.0d);
+                    _dequeueRate[slot] = (dequeues - _dequeues[slot])/(deltaTime/1000000000.0d);
+                    _enqueues[slot] = enqueues;
+                    _dequeues[slot] = dequeues;
+                    _updateTime[slot] = updateTime;
+                }
+                _updated[slot] = true;
+            }
+            _changed = true;
+        }
+
+        /**
+         * Remove a deleted queue from the table, freeing its slot for reuse.
+         * @param id the ObjectId of the deleted queue.
+         */
+        public void remove(final ObjectId id)
+        {
+            Integer index = _slots.remove(id);
+            if (index != null)
+            {
+                _names[index] = null;
+                if (_freeCount == _free.length)
+                {
+                    _free = Arrays.copyOf(_free, _freeCount*2);
+                }
+                _free[_freeCount++] = index;
+                _changed = true;
+            }
+        }
+
+        /**
+         * Remove all queues from the table.
+         */
+        public void clear()
+        {
+            _slots.clear();
+            Arrays.fill(_names, 0, _size, null);
+            _freeCount = 0;
+            _size = 0;
+            _changed = true;
+        }
+
+        /**
+         * Print the top n queues followed by the totals for each vhost if the table has changed since it was last
+         * printed.
+         * <p>
+         * The broker only pushes the statistics of queues that have changed, so a queue that hasn't been updated
+         * since the table was last printed has had no enqueues or dequeues and its rates are zeroed.
+         */
+        public void print()
+        {
+            for (int slot = 0; slot < _size; slot++)
+            {
+                if (_updated[slot])
+                {
+                    _updated[slot] = false;
+                }
+                else if (_names[slot] != null && (_enqueueRate[slot] != 0.0d || _dequeueRate[slot] != 0.0d))
+                {
+                    _enqueueRate[slot] = 0.0d;
+                    _dequeueRate[slot] = 0.0d;
+                    _changed = true;
+                }
+            }
+
+            if (!_changed)
+            {
+                return;
+            }
+            _changed = false;
+
+            // Choose the top n slots using a min-heap whose root is the smallest of the current top n.
+            int[] heap = new int[_top];
+            int heapSize = 0;
+            for (int slot = 0; slot < _size; slot++)
+            {
+                if (_names[slot] != null)
+                {
+                    if (heapSize < _top)
+                    {
+                        heap[heapSize] = slot;
+                        siftUp(heap, heapSize++);
+                    }
+                    else if (getSortValue(slot) > getSortValue(heap[0]))
+                    {
+                        heap[0] = slot;
+                        siftDown(heap, heapSize);
+                    }
+                }
+            }
+
+            // Removing the root repeatedly yields the top n in ascending order, so fill the result from the end.
+            int[] top = new int[heapSize];
+            for (int i = heapSize - 1; i >= 0; i--)
+            {
+                top[i] = heap[0];
+                heap[0] = heap[i];
+                siftDown(heap, i);
+            }
+
+            StringBuilder buffer = new StringBuilder(128*(heapSize + _vhostNames.size() + 8));
+            Formatter formatter = new Formatter(buffer);
+            formatter.format("%nTop %d queues by %s at %s%n", _top, _sortKey.toString().toLowerCase(), new Date());
+            formatter.format("%-46s%-16s%11s%13s%13s%n", "Queue Name", "Vhost", "Depth", "Enq Rate", "Deq Rate");
+            formatter.format("%s%n", _rule);
+            for (int slot : top)
+            {
+                formatter.format("%-46s%-16s%11d%13.2f%13.2f%n", _names[slot], _vhostNames.get(_vhosts[slot]),
+                                 _depth[slot], _enqueueRate[slot], _dequeueRate[slot]);
+            }
+
+            int vhostCount = _vhostNames.size();
+            int[] queues = new int[vhostCount];
+            long[] depth = new long[vhostCount];
+            double[] enqueueRate = new double[vhostCount];
+            double[] dequeueRate = new double[vhostCount];
+            for (int slot = 0; slot < _size; slot++)
+            {
+                if (_names[slot] != null)
+                {
+                    int vhost = _vhosts[slot];
+                    queues[vhost]++;
+                    depth[vhost] += _depth[slot];
+                    enqueueRate[vhost] += _enqueueRate[slot];
+                    dequeueRate[vhost] += _dequeueRate[slot];
+                }
+            }
+
+            formatter.format("%n%-46s%-16s%11s%13s%13s%n", "Vhost", "Queues", "Depth", "Enq Rate", "Deq Rate");
+            formatter.format("%s%n", _rule);
+            for (int vhost = 0; vhost < vhostCount; vhost++)
+            {
+                if (queues[vhost] > 0)
+                {
+                    formatter.format("%-46s%-16d%11d%13.2f%13.2f%n", _vhostNames.get(vhost), queues[vhost],
+                                     depth[vhost], enqueueRate[vhost], dequeueRate[vhost]);
+                }
+            }
+            formatter.flush();
+            System.out.print(buffer);
+        }
+
+        /**
+         * Return the value of the statistic used to choose the top n queues for a given slot.
+         * @param slot the slot of the queue.
+         * @return the value of the statistic used to choose the top n queues.
+         */
+        private double getSortValue(final int slot)
+        {
+            switch (_sortKey)
+            {
+                case ENQUEUE: return _enqueueRate[slot];
+                case DEQUEUE: return _dequeueRate[slot];
+                default: return _depth[slot];
+            }
+        }
+
+        /**
+         * Restore the min-heap property after a slot has been added at the given position.
+         * @param heap the heap of slots.
+         * @param position the position of the added slot.
+         */
+        private void siftUp(final int[] heap, int position)
+        {
+            int slot = heap[position];
+            double value = getSortValue(slot);
+            while (position > 0)
+            {
+                int parent = (position - 1) >>> 1;
+                if (getSortValue(heap[parent]) <= value)
+                {
+                    break;
+                }
+                heap[position] = heap[parent];
+                position = parent;
+            }
+            heap[position] = slot;
+        }
+
+        /**
+         * Restore the min-heap property after the root of the heap has been replaced.
+         * @param heap the heap of slots.
+         * @param size the number of slots in the heap.
+         */
+        private void siftDown(final int[] heap, final int size)
+        {
+            if (size == 0)
+            {
+                return;
+            }
+
+            int slot = heap[0];
+            double value = getSortValue(slot);
+            int position = 0;
+            int child;
+            while ((child = 2*position + 1) < size)
+            {
+                if (child + 1 < size && getSortValue(heap[child + 1]) < getSortValue(heap[child]))
+                {
+                    child++;
+                }
+                if (value <= getSortValue(heap[child]))
+                {
+                    break;
+                }
+                heap[position] = heap[child];
+                position = child;
+            }
+            heap[position] = slot;
+        }
+
+        /**
+         * Allocate a slot for a new queue, reusing the slot of a deleted queue if there is one.
+         * @return the allocated slot.
+         */
+        private int allocate()
+        {
+            if (_freeCount > 0)
+            {
+                return _free[--_freeCount];
+            }
+
+            if (_size == _names.length)
+            {
+                int capacity = _size*2;
+                _names = Arrays.copyOf(_names, capacity);
+                _vhosts = Arrays.copyOf(_vhosts, capacity);
+                _depth = Arrays.copyOf(_depth, capacity);
+                _enqueues = Arrays.copyOf(_enqueues, capacity);
+                _dequeues = Arrays.copyOf(_dequeues, capacity);
+                _updateTime = Arrays.copyOf(_updateTime, capacity);
+                _enqueueRate = Arrays.copyOf(_enqueueRate, capacity);
+                _dequeueRate = Arrays.copyOf(_dequeueRate, capacity);
+                _updated = Arrays.copyOf(_updated, capacity);
+            }
+            return _size++;
+        }
+
+        /**
+         * Return the index of the vhost of a queue. The vhost name is the last element of the vhostRef object name
+         * e.g. "/" for "org.apache.qpid.broker:vhost:org.apache.qpid.broker:broker:amqp-broker,/".
+         * @param record the queue QmfConsoleData.
+         * @return the index of the vhost name in _vhostNames.
+         */
+        private int getVhost(final QmfConsoleData record)
+        {
+            String name = "-";
+            if (record.hasValue("vhostRef"))
+            {
+                String objectName = record.getRefValue("vhostRef").getObjectName();
+                if (objectName != null)
+                {
+                    name = objectName.substring(Math.max(objectName.lastIndexOf(','), objectName.lastIndexOf(':')) + 1);
+                }
+            }
+
+            Integer index = _vhostIndex.get(name);
+            if (index == null)
+            {
+                index = _vhostNames.size();
+                _vhostNames.add(name);
+                _vhostIndex.put(name, index);
+            }
+            return index;
+        }
+    }
+
     private static final String _usage =
     "Usage: QpidQueueStats [options]\n";
 
@@ -123,6 +485,13 @@ public final class QpidQueueStats implements QmfEventListener
     "  -f <filter>, --filter=<filter>\n" +
     "                        a list of comma separated queue names (regex are\n" +
     "                        accepted) to show\n" +
+    "  -t <n>, --top=<n>\n" +
+    "                        rather than a line per queue update, show a table of\n" +
+    "                        the top n queues and the totals for each vhost each\n" +
+    "                        time the broker heartbeats\n" +
+    "  -s <key>, --sort=<key>\n" +
+    "                        the key used to choose the top n queues, one of\n" +
+    "                        depth (the default), enqueue or dequeue (rates)\n" +
     "  --sasl-mechanism=<mech>\n" +
     "                        SASL mechanism for authentication (e.g. EXTERNAL,\n" +
     "                        ANONYMOUS, PLAIN, CRAM-MD5, DIGEST-MD5, GSSAPI). SASL\n" +
@@ -134,6 +503,7 @@ public final class QpidQueueStats implements QmfEventListener
     private Agent _broker;
     private Console _console;
     private Map<ObjectId, Stats> _objects = new HashMap<ObjectId, Stats>();
+    private final QueueTable _table;
     private String _subscriptionId = null;
     private long _subscriptionDuration;
     private long _startTime;
@@ -143,8 +513,11 @@ public final class QpidQueueStats implements QmfEventListener
      * @param url the connection URL.
      * @param connectionOptions the options String to pass to ConnectionHelper.
      * @param filter a list of regex Patterns used to choose the queues we wish to display.
+     * @param top the number of queues to show in the top n table, or 0 to show a line per queue update.
+     * @param sortKey the statistic used to choose the queues shown in the top n table.
      */
-    public QpidQueueStats(final String url, final String connectionOptions, final List<Pattern> filter)
+    public QpidQueueStats(final String url, final String connectionOptions, final List<Pattern> filter,
+                          final int top, final SortKey sortKey)
     {
         System.out.println("Connecting to " + url);
         if (filter.size() > 0)
@@ -153,6 +526,7 @@ public final class QpidQueueStats implements QmfEventListener
         }
         _url = url;
         _filter = filter;
+        _table = (top > 0) ? new QueueTable(top, sortKey) : null;
         try
         {
             Connection connection = ConnectionHelper.createConnection(url, connectionOptions);        
@@ -167,10 +541,13 @@ public final class QpidQueueStats implements QmfEventListener
             }
 
             System.out.println("Hit Return to exit");
-            System.out.println(
-                "Queue Name                                          Sec       Depth     Enq Rate     Deq Rate");
-            System.out.println(
-                "=============================================================================================");
+            if (_table == null)
+            {
+                System.out.println(
+                    "Queue Name                                          Sec       Depth     Enq Rate     Deq Rate");
+                System.out.println(
+                    "=============================================================================================");
+            }
         }
         catch (QmfException qmfe)
         {
@@ -179,13 +556,42 @@ public final class QpidQueueStats implements QmfEventListener
     }
 
     /**
-     * Create a Subscription to query for all queue objects
+     * Create a Subscription to query for all queue objects, or if a filter has been specified for the queue objects
+     * whose names match any of the regexes in the filter List. The filter is pushed down into the Subscription's
+     * QmfQuery as an "or" of "re_match" expressions so that only matching queues are delivered to onEvent().
      */
     private void createQueueSubscription()
     {
         try
-        {   // This QmfQuery simply does an ID query for objects with the className "queue"
-            QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"));
+        {
+            QmfQuery query = null;
+            if (_filter.isEmpty())
+            {   // This QmfQuery simply does an ID query for objects with the className "queue"
+                query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"));
+            }
+            else
+            {   // This QmfQuery is a PREDICATE query for objects with the className "queue" and a matching name
+                List<Object> predicate = new ArrayList<Object>();
+                predicate.add("or");
+                for (Pattern x : _filter)
+                {
+                    List<Object> quoted = new ArrayList<Object>();
+                    quoted.add("quote");
+                    quoted.add(x.pattern());
+
+                    List<Object> match = new ArrayList<Object>();
+                    match.add("re_match");
+                    match.add("name");
+                    match.add(quoted);
+                    predicate.add(match);
+                }
+
+                Map<String, Object> queryMap = new HashMap<String, Object>();
+                queryMap.put("_what", QmfQueryTarget.OBJECT.toString());
+                queryMap.put("_schema_id", new SchemaClassId("queue").mapEncode());
+                queryMap.put("_where", predicate);
+                query = new QmfQuery(queryMap);
+            }
             SubscribeParams params = _console.createSubscription(_broker, query, "queueStatsHandle");
             _subscriptionId = params.getSubscriptionId();
             _subscriptionDuration = params.getLifetime() - 10; // Subtract 10 as we want to refresh before it times out
@@ -204,11 +610,18 @@ public final class QpidQueueStats implements QmfEventListener
      * so that we can refresh the Subscription (or create a new one if necessary) in order to continue receiving
      * queue Management Object data from the broker.
      * <p>
+     * In the top n mode the AgentHeartbeatWorkItem is also used to print the top n table at regular intervals.
+     * <p>
      * When the AgentRestartedWorkItem is received we clear the state to remove any stale queue Management Objects.
      * @param wi a QMF2 WorkItem object
      */
     public void onEvent(final WorkItem wi)
     {
+        if (wi instanceof AgentHeartbeatWorkItem && _table != null)
+        {
+            _table.print();
+        }
+
         if (wi instanceof AgentHeartbeatWorkItem && _subscriptionId != null)
         {
             long elapsed = (long)Math.round((System.currentTimeMillis() - _startTime)/1000.0f);    
@@ -229,6 +642,10 @@ public final class QpidQueueStats implements QmfEventListener
         else if (wi instanceof AgentRestartedWorkItem)
         {
             _objects.clear();
+            if (_table != null)
+            {
+                _table.clear();
+            }
         }
         else if (wi instanceof SubscriptionIndicationWorkItem)
         {
@@ -238,6 +655,22 @@ public final class QpidQueueStats implements QmfEventListener
             if (correlationId.equals("queueStatsHandle"))
             { // If it is (and it should be!!) then it's our queue object Subscription
                 List<QmfConsoleData> data = indication.getData();
+                if (_table != null)
+                { // In the top n mode we just record the statistics, they get printed when the broker heartbeats.
+                    for (QmfConsoleData record : data)
+                    {
+                        if (record.isDeleted())
+                        {
+                            _table.remove(record.getObjectId());
+                        }
+                        else
+                        {
+                            _table.update(record);
+                        }
+                    }
+                    return;
+                }
+
                 for (QmfConsoleData record : data)
                 {
                     ObjectId id = record.getObjectId();
@@ -249,39 +682,25 @@ public final class QpidQueueStats implements QmfEventListener
                     {
                         if (_objects.containsKey(id))
                         { // If the object is already in the Map it's likely to be a statistics push from the broker.
+                            // The filter (if any) has already been applied by the Subscription's QmfQuery.
                             Stats stats = _objects.get(id);
                             String name = stats.getName();
+                            QmfConsoleData lastSample = stats.getData();
+                            stats.setData(record);
 
-                            boolean matches = false;
-                            for (Pattern x : _filter)
-                            { // Check the queue name against the regexes in the filter List (if any)
-                                Matcher m = x.matcher(name);
-                                if (m.find())
-                                {
-                                    matches = true;
-                                    break;
-                                }
-                            }
+                            float deltaTime = record.getUpdateTime() - lastSample.getUpdateTime();
+                            if (deltaTime > 1000000000.0f)
+                            {
+                                float deltaEnqueues = record.getLongValue("msgTotalEnqueues") -
+                                                      lastSample.getLongValue("msgTotalEnqueues");
+                                float deltaDequeues = record.getLongValue("msgTotalDequeues") -
+                                                      lastSample.getLongValue("msgTotalDequeues");
+                                long msgDepth = record.getLongValue("msgDepth");
+                                float enqueueRate = deltaEnqueues/(deltaTime/1000000000.0f);
+                                float dequeueRate = deltaDequeues/(deltaTime/1000000000.0f);
 
-                            if (_filter.isEmpty() || matches)
-                            { // If there's no filter enabled or the filter matches the queue name we display statistics.
-                                QmfConsoleData lastSample = stats.getData();
-                                stats.setData(record);
-    
-                                float deltaTime = record.getUpdateTime() - lastSample.getUpdateTime();
-                                if (deltaTime > 1000000000.0f)
-                                {
-                                    float deltaEnqueues = record.getLongValue("msgTotalEnqueues") -
-                                                          lastSample.getLongValue("msgTotalEnqueues");
-                                    float deltaDequeues = record.getLongValue("msgTotalDequeues") -
-                                                          lastSample.getLongValue("msgTotalDequeues");
-                                    long msgDepth = record.getLongValue("msgDepth");
-                                    float enqueueRate = deltaEnqueues/(deltaTime/1000000000.0f);
-                                    float dequeueRate = deltaDequeues/(deltaTime/1000000000.0f);
-
-                                    System.out.printf("%-46s%10.2f%11d%13.2f%13.2f\n", 
-                                                      name, deltaTime/1000000000, msgDepth, enqueueRate, dequeueRate);
-                                }
+                                System.out.printf("%-46s%10.2f%11d%13.2f%13.2f\n", 
+                                                  name, deltaTime/1000000000, msgDepth, enqueueRate, dequeueRate);
                             }
                         }
                         else
@@ -315,13 +734,15 @@ public final class QpidQueueStats implements QmfEventListener
         logLevel = (logLevel == null) ? "FATAL" : logLevel; // Set default log level to FATAL rather than DEBUG.
         System.setProperty("amqj.logging.level", logLevel);
 
-        String[] longOpts = {"help", "broker-address=", "filter=", "sasl-mechanism="};
+        String[] longOpts = {"help", "broker-address=", "filter=", "top=", "sort=", "sasl-mechanism="};
         try
         {
             String host = "localhost";
             String connectionOptions = "{reconnect: true}";
             List<Pattern> filter = new ArrayList<Pattern>();
-            GetOpt getopt = new GetOpt(args, "ha:f:", longOpts);
+            int top = 0;
+            SortKey sortKey = SortKey.DEPTH;
+            GetOpt getopt = new GetOpt(args, "ha:f:t:s:", longOpts);
             List<String[]> optList = getopt.getOptList();
 
             for (String[] opt : optList)
@@ -345,13 +766,21 @@ public final class QpidQueueStats implements QmfEventListener
                         filter.add(p);
                     }
                 }
+                else if (opt[0].equals("-t") || opt[0].equals("--top"))
+                {
+                    top = Integer.parseInt(opt[1]);
+                }
+                else if (opt[0].equals("-s") || opt[0].equals("--sort"))
+                {
+                    sortKey = SortKey.valueOf(opt[1].toUpperCase());
+                }
                 else if (opt[0].equals("--sasl-mechanism"))
                 {
                     connectionOptions = "{reconnect: true, sasl_mechs: " + opt[1] + "}";
                 }
             }
 
-            QpidQueueStats queueStats = new QpidQueueStats(host, connectionOptions, filter);
+            QpidQueueStats queueStats = new QpidQueueStats(host, connectionOptions, filter, top, sortKey);
         }
         catch (IllegalArgumentException e)
         {
@@ -29,9 +29,9 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -72,6 +72,11 @@ import org.apache.qpid.qmf2.util.GetOpt;
  * in the flowStopped state and producers will eventually time out and throw an exception if this is not cleared.
  * So all in all simply purging each time we cross the threshold is simpler and has the additional advantage that
  * if and when the consumer speeds up message delivery will eventually return to normal. 
+ * <p>
+ * The queue objects needed to invoke purge are cached by queue name. The cache is populated once at startup and
+ * then kept up to date incrementally: queueDeclare and queueDelete Events simply drop any cached entry for the
+ * queue and a queue that isn't in the cache is looked up by name when it's first needed, so a burst of queue
+ * declarations doesn't cause a burst of requests for every queue on the broker.
  * 
  * <pre>
  * Usage: QueueFuse [options] [broker-addr]...
@@ -156,7 +161,7 @@ public final class QueueFuse implements QmfEventListener
     private final String _url;
     private final List<Pattern> _filter;
     private final float _purge;
-    private Map<String, QmfConsoleData> _queueCache = new HashMap<String, QmfConsoleData>(50);
+    private Map<String, QmfConsoleData> _queueCache = new ConcurrentHashMap<String, QmfConsoleData>(50);
     private Console _console;
 
     /**
@@ -190,7 +195,7 @@ public final class QueueFuse implements QmfEventListener
     }
 
     /**
-     * Looks up queue objects and stores them in _queueCache keyed by the queue name
+     * Looks up all queue objects and stores them in _queueCache keyed by the queue name
      */
     private void updateQueueCache()
     {
@@ -203,6 +208,39 @@ public final class QueueFuse implements QmfEventListener
         }
     }
 
+    /**
+     * Return the queue object with the given name from _queueCache, looking it up by ObjectId if it isn't cached.
+     * The broker names queue objects "org.apache.qpid.broker:queue:&lt;name&gt;", if that lookup fails (e.g. with
+     * an Agent that names its objects differently) we fall back to reloading all of the queue objects.
+     * @param queueName the name of the queue.
+     * @return the queue object or null if the queue couldn't be found.
+     */
+    private QmfConsoleData getQueue(final String queueName)
+    {
+        QmfConsoleData queue = _queueCache.get(queueName);
+        if (queue == null)
+        {
+            List<QmfConsoleData> queues =
+                _console.getObjects(new ObjectId("", "org.apache.qpid.broker:queue:" + queueName, 0));
+            for (QmfConsoleData candidate : queues)
+            {
+                if (queueName.equals(candidate.getStringValue("name")))
+                {
+                    queue = candidate;
+                    _queueCache.put(queueName, queue);
+                    break;
+                }
+            }
+
+            if (queue == null)
+            {
+                updateQueueCache();
+                queue = _queueCache.get(queueName);
+            }
+        }
+        return queue;
+    }
+
     /**
      * Look up a queue object with the given name and if it's not a ring queue invoke the queue's purge method.
      * @param queueName the name of the queue to purge
@@ -210,7 +248,7 @@ public final class QueueFuse implements QmfEventListener
      */
     private void purgeQueue(final String queueName, long msgDepth)
     {
-        QmfConsoleData queue = _queueCache.get(queueName);
+        QmfConsoleData queue = getQueue(queueName);
 
         if (queue == null)
         {
@@ -242,6 +280,10 @@ public final class QueueFuse implements QmfEventListener
 
     /**
      * Main Event handler.
+     * <p>
+     * queueDeclare and queueDelete Events remove the queue from _queueCache, so that a queue that has been deleted
+     * and declared again is looked up afresh by purgeQueue(), queueThresholdExceeded Events cause the queue to be
+     * purged.
      * @param wi a QMF2 WorkItem object
      */
     public void onEvent(final WorkItem wi)
@@ -254,8 +296,16 @@ public final class QueueFuse implements QmfEventListener
             String className = event.getSchemaClassId().getClassName();
 
             if (className.equals("queueDeclare"))
+            { // Queues that already existed are unchanged so only a newly created queue invalidates the cache.
+                String disp = event.getStringValue("disp");
+                if (disp.length() == 0 || disp.equals("created"))
+                {
+                    _queueCache.remove(event.getStringValue("qName"));
+                }
+            }
+            else if (className.equals("queueDelete"))
             {
-                updateQueueCache();
+                _queueCache.remove(event.getStringValue("qName"));
             }
             else if (className.equals("queueThresholdExceeded"))
             {
@@ -37,15 +37,15 @@ import org.slf4j.LoggerFactory;
 
 // Misc Imports
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.AMQPMessage;
@@ -207,21 +207,53 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 _log.info("JMSException {} caught in sendHeartbeat()", jmse.getMessage());
             }
 
-            // Reap any QmfAgentData Objects that have been marked as Deleted
-            // Use the iterator approach rather than foreach as we may want to call iterator.remove() to zap an entry
-            Iterator<QmfAgentData> i = _objectIndex.values().iterator();
-            while (i.hasNext())
+            // Reap any QmfAgentData Objects that have been marked as Deleted. We only remove the entry if it still
+            // maps to the deleted object, as addObject() may have reused the address for a new object.
+            for (Map.Entry<ObjectId, QmfAgentData> entry : _objectIndex.entrySet())
             {
-                QmfAgentData object = i.next();
-                if (object.isDeleted())
+                QmfAgentData object = entry.getValue();
+                if (object.isDeleted() && _objectIndex.remove(entry.getKey(), object))
                 {
                     _log.debug("Removing deleted QmfAgentData Object from store");
-                    i.remove();
+                    unindex(object);
                 }
             }
         }
     }
 
+    /**
+     * The key used to order sortable QmfAgentData objects in _sortedIndex. QmfAgentData objects are ordered by their
+     * compare key, objects with the same compare key are ordered by ObjectId so that they each have a distinct key.
+     */
+    private static final class SortKey implements Comparable<SortKey>
+    {
+        private final String _compareKey;
+        private final String _objectId;
+
+        /**
+         * Construct a SortKey.
+         * @param compareKey the compare key of the QmfAgentData object.
+         * @param objectId the ObjectId of the QmfAgentData object.
+         */
+        public SortKey(final String compareKey, final ObjectId objectId)
+        {
+            _compareKey = compareKey;
+            _objectId = objectId.toString();
+        }
+
+        /**
+         * Compare SortKeys by compare key then by ObjectId.
+         * @param rhs the right hand side SortKey in the comparison.
+         * @return a negative integer, zero, or a positive integer as this SortKey is less than, equal to, or greater
+         * than rhs.
+         */
+        public int compareTo(final SortKey rhs)
+        {
+            int result = _compareKey.compareTo(rhs._compareKey);
+            return (result == 0) ? _objectId.compareTo(rhs._objectId) : result;
+        }
+    }
+
     //                                             Attributes
     // ********************************************************************************************************
 
@@ -244,6 +276,19 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      */
     private Map<ObjectId, QmfAgentData> _objectIndex = new ConcurrentHashMap<ObjectId, QmfAgentData>(100);
 
+    /**
+     * _sortedIndex holds the sortable QmfAgentData objects (those with a compare key) registered with this Agent
+     * ordered by compare key, so that query results can be returned in order without sorting them on every query.
+     */
+    private ConcurrentSkipListMap<SortKey, QmfAgentData> _sortedIndex =
+        new ConcurrentSkipListMap<SortKey, QmfAgentData>();
+
+    /**
+     * The number of QmfAgentData objects in _objectIndex that aren't held in _sortedIndex, used to avoid searching
+     * _objectIndex for unsortable objects when all of the objects are sortable.
+     */
+    private AtomicInteger _unsortedCount = new AtomicInteger();
+
     /**
      * This Map is used to look up Subscriptions by SubscriptionId
      */
@@ -453,53 +498,69 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                     // by an Agent is generally fairly small, so it should be OK. Note that this is the same approach
                     // taken by the C++ broker ManagementAgent, so if it's a problem here........
 
-                    // N.B. the results list declared here is a generic List of Objects. We *must* only pass a List of
-                    // Map to queryResponse(), but conversely if the response items are sortable we need to sort them
-                    // before doing mapEncode(). Unfortunately we don't know if the items are sortable a priori so
-                    // we either add a Map or we add a QmfAgentData, then sort then mapEncode() each item. I'm not
-                    // sure of a more elegant way to do this without creating two lists, which might not be so bad
-                    // but we don't know the size of the list a priori either.
-                    List results = new ArrayList(_objectIndex.size());
+                    // Sortable QmfAgentData objects are held in compare key order in _sortedIndex so we can stream
+                    // the matching objects in order, applying any offset and limit as we go, rather than collecting
+                    // and sorting them for every query. Other objects are only held in _objectIndex, which we only
+                    // need to search if there are any unsortable objects.
+                    List<Map> results = new ArrayList<Map>();
+                    int offset = query.getOffset();
+                    int limit = query.getLimit();
+
                     // It's unlikely that evaluating this query will return a mixture of sortable and notSortable 
-                    // QmfAgentData objects, but it's best to check if that has occurred as accidentally passing a
-                    // List of QmfAgentData instead of a List of Map to queryResponse() will break things.
+                    // QmfAgentData objects, but it's best to check if that has occurred as the results would be in
+                    // an inconsistent order, which would make paging through them meaningless.
                     boolean sortable = false;
                     boolean notSortable = false;
-                    for (QmfAgentData object : _objectIndex.values())
+                    for (QmfAgentData object : _sortedIndex.values())
                     {
                         if (!object.isDeleted() && query.evaluate(object))
                         {
-                            if (object.isSortable())
-                            { // If QmfAgentData is marked sortable we add the QmfAgentData object to the List
-                              // so we can sort first before mapEncoding.
-                                results.add(object);
-                                sortable = true;
+                            sortable = true;
+                            if (offset > 0)
+                            {
+                                offset--;
+                            }
+                            else if (limit >= 0 && results.size() >= limit)
+                            {
+                                break;
                             }
                             else
-                            { // If QmfAgentData is not marked sortable we mapEncode immediately and add the Map to List.
+                            {
                                 results.add(object.mapEncode());
+                            }
+                        }
+                    }
+
+                    if (_unsortedCount.get() > 0)
+                    {
+                        for (QmfAgentData object : _objectIndex.values())
+                        {
+                            if (object._indexedCompareKey == null && !object.isDeleted() && query.evaluate(object))
+                            {
                                 notSortable = true;
+                                if (sortable)
+                                {
+                                    break;
+                                }
+                                else if (offset > 0)
+                                {
+                                    offset--;
+                                }
+                                else if (limit < 0 || results.size() < limit)
+                                {
+                                    results.add(object.mapEncode());
+                                }
                             }
                         }
                     }
 
                     // If both flags have been set something has gone a bit weird, so we log an error and clear the
-                    // results List to avoid sending unconvertable data. Hopefully this condition should never occur.
+                    // results List to avoid sending inconsistently ordered data. Hopefully this should never occur.
                     if (sortable && notSortable)
                     {
                         _log.info("Query resulted in inconsistent mixture of sortable and non-sortable data.");
                         results.clear();
                     }
-                    else if (sortable)
-                    {
-                        Collections.sort(results);
-                        int length = results.size();
-                        for (int i = 0; i < length; i++)
-                        {
-                            QmfAgentData object = (QmfAgentData)results.get(i);
-                            results.set(i, object.mapEncode());
-                        }
-                    }
                     queryResponse(handle, results, "_data"); // Send the response back to the Console.
                 }
             }
@@ -1232,6 +1293,11 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
 
         _objectIndex.put(addr, object);
+        if (foundObject != null)
+        {
+            unindex(foundObject);
+        }
+        index(object);
 
         // Does the new object match any Subscriptions? If so add a reference to the matching Subscription and publish.
         for (Subscription subscription : _subscriptions.values())
@@ -1253,6 +1319,54 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
     } // end of addObject()
 
+    /**
+     * Add a QmfAgentData object that has just been put into _objectIndex to _sortedIndex if it is sortable.
+     * @param object the QmfAgentData object being added.
+     */
+    private void index(final QmfAgentData object)
+    {
+        if (!object._indexed.compareAndSet(false, true))
+        { // Already indexed.
+            return;
+        }
+
+        String compareKey = object.getCompareKey();
+        if (compareKey == null)
+        {
+            _unsortedCount.incrementAndGet();
+        }
+        else
+        {
+            object._indexedCompareKey = compareKey;
+            _sortedIndex.put(new SortKey(compareKey, object.getObjectId()), object);
+        }
+    }
+
+    /**
+     * Remove a QmfAgentData object that has just been removed (or replaced) in _objectIndex from _sortedIndex.
+     * This may be called more than once for the same object, e.g. by the heartbeat reaper and by addObject()
+     * reusing the address of a deleted object, but only the first call has any effect.
+     * @param object the QmfAgentData object being removed.
+     */
+    private void unindex(final QmfAgentData object)
+    {
+        if (!object._indexed.compareAndSet(true, false))
+        { // Already unindexed.
+            return;
+        }
+
+        String compareKey = object._indexedCompareKey;
+        if (compareKey == null)
+        {
+            _unsortedCount.decrementAndGet();
+        }
+        else
+        {
+            _sortedIndex.remove(new SortKey(compareKey, object.getObjectId()), object);
+            object._indexedCompareKey = null;
+        }
+    }
+
     /**
      * Returns the count of pending WorkItems that can be retrieved.
      * @return the count of pending WorkItems that can be retrieved.
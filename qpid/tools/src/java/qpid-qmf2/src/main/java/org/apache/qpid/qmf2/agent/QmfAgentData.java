@@ -27,6 +27,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.ObjectId;
@@ -74,6 +75,19 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     private long _deleteTimestamp;
     private String _compareKey = null;
 
+    /**
+     * The compare key that the Agent indexed this object by, or null if it isn't held in the Agent's sorted index.
+     * This is recorded so that the Agent can find the object in its index even if the compare key is changed.
+     */
+    volatile String _indexedCompareKey = null;
+
+    /**
+     * Set while the object is indexed by the Agent. The Agent changes this with compareAndSet() so that an object
+     * that is unindexed by more than one thread (e.g. when its address is reused as it is being reaped) is only
+     * removed from the Agent's indexes and counts once.
+     */
+    final AtomicBoolean _indexed = new AtomicBoolean(false);
+
     /**
      * This Map is used to look up Subscriptions that are interested in this data by SubscriptionId
      */
@@ -324,6 +338,9 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     /**
      * Set the key String to be used for comparing two QmfAgentData instances. This is primarily used by the Agent
      * to allow it to order Query results (e.g. for getObjects()).
+     * <p>
+     * The Agent maintains an index of sortable objects ordered by compare key when they are added via addObject(),
+     * so the compare key should be set before the object is added, changing it afterwards won't reorder the index.
      * @param compareKey the String that we wish to use as a compare key.
      */
     public void setCompareKey(String compareKey)
@@ -331,6 +348,15 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
         _compareKey = compareKey;
     }
 
+    /**
+     * Return the key String used for comparing two QmfAgentData instances.
+     * @return the compare key, or null if the QmfAgentData isn't sortable.
+     */
+    public String getCompareKey()
+    {
+        return _compareKey;
+    }
+
     /**
      * If a compare key has been set then the QmfAgentData is sortable.
      * @return true if a compare key has been set and the QmfAgentData is sortable otherwise return false.
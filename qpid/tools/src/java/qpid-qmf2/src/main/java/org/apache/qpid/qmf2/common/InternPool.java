@@ -0,0 +1,69 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An InternPool holds a canonical instance of each distinct value of an immutable type, in the same way that
+ * String.intern() does for Strings, so that long lived data can share a single instance of values that would
+ * otherwise be duplicated, such as the SchemaClassId of every object of a given class.
+ * <p>
+ * Values are weakly referenced, so a canonical instance is discarded once nothing else refers to it.
+ */
+public final class InternPool<T>
+{
+    private final Map<T, WeakReference<T>> _pool = new WeakHashMap<T, WeakReference<T>>();
+
+    /**
+     * Returns the canonical instance of a value, adding the value to the pool if there isn't one.
+     * @param value the value to intern, which must be immutable.
+     * @return the canonical instance equal to value.
+     */
+    public synchronized T intern(final T value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        WeakReference<T> reference = _pool.get(value);
+        T canonical = (reference == null) ? null : reference.get();
+        if (canonical == null)
+        {
+            _pool.put(value, new WeakReference<T>(value));
+            canonical = value;
+        }
+        return canonical;
+    }
+
+    /**
+     * Returns the number of values currently held by the pool.
+     * @return the number of values currently held by the pool.
+     */
+    public synchronized int size()
+    {
+        return _pool.size();
+    }
+}
@@ -30,7 +30,9 @@ import java.util.Map;
  * as byte[] due to inconsistent binary and UTF-8 encodings being used and byte[].equals() compares the address not a
  * bytewise comparison.
  * <p>
- * This class creates a String from the internal ObjectId state information to enable easier comparison and rendering.
+ * This class normalises any byte[] properties to Strings when it is decoded and compares ObjectIds field by field
+ * using a hashCode computed once on construction, so that ObjectIds are cheap to use as Map keys. Like String,
+ * ObjectIds may be interned so that long lived data can share a single instance of each distinct ObjectId.
  *
  * @author Fraser Adams
  */
@@ -39,6 +41,13 @@ public final class ObjectId extends QmfData
     private final String _agentName;
     private final String _objectName;
     private final long   _agentEpoch;
+    private final int    _hashCode;
+    private String       _string = null; // Lazily created, racy but benign as Strings are immutable.
+
+    /**
+     * The pool used by intern().
+     */
+    private static final InternPool<ObjectId> _pool = new InternPool<ObjectId>();
 
     /**
      * Create an ObjectId given the ID created via ObjectId.toString().
@@ -52,6 +61,8 @@ public final class ObjectId extends QmfData
         _agentEpoch = split.length == 3 ? Long.parseLong(split[1]) : 0;
         _objectName = split.length == 3 ? split[2] : "";
 
+        _hashCode = hash(_agentName, _objectName, _agentEpoch);
+
         setValue("_agent_name", _agentName);
         setValue("_agent_epoch", _agentEpoch);
         setValue("_object_name", _objectName);
@@ -68,6 +79,7 @@ public final class ObjectId extends QmfData
         _agentName = agentName;
         _objectName = objectName;
         _agentEpoch = agentEpoch;
+        _hashCode = hash(_agentName, _objectName, _agentEpoch);
         setValue("_agent_name", _agentName);
         setValue("_object_name", _objectName);
         setValue("_agent_epoch", _agentEpoch);
@@ -80,9 +92,25 @@ public final class ObjectId extends QmfData
     public ObjectId(Map m)
     {
         super(m);
-        _agentName = getStringValue("_agent_name");
-        _objectName = getStringValue("_object_name");
+        _agentName = normaliseStringValue("_agent_name");
+        _objectName = normaliseStringValue("_object_name");
         _agentEpoch = getLongValue("_agent_epoch");
+        _hashCode = hash(_agentName, _objectName, _agentEpoch);
+    }
+
+    /**
+     * Compute the hashCode of an ObjectId from its fields.
+     * @param agentName the name of the Agent managing the object.
+     * @param objectName the name of the managed object.
+     * @param agentEpoch a count used to identify if an Agent has been restarted.
+     * @return the hashCode of the ObjectId.
+     */
+    private static int hash(final String agentName, final String objectName, final long agentEpoch)
+    {
+        int hash = (agentName == null) ? 0 : agentName.hashCode();
+        hash = 31*hash + (int)(agentEpoch ^ (agentEpoch >>> 32));
+        hash = 31*hash + ((objectName == null) ? 0 : objectName.hashCode());
+        return hash;
     }
 
     /**
@@ -121,6 +149,16 @@ public final class ObjectId extends QmfData
         return _agentEpoch;
     }
 
+    /**
+     * Returns the canonical instance of this ObjectId, which is the same instance for all equal ObjectIds that
+     * have been interned, in the same way as String.intern().
+     * @return the canonical instance of this ObjectId.
+     */
+    public ObjectId intern()
+    {
+        return _pool.intern(this);
+    }
+
     /**
      * Compares two ObjectId objects for equality.
      * @param rhs the right hands side ObjectId in the comparison.
@@ -129,13 +167,28 @@ public final class ObjectId extends QmfData
     @Override
     public boolean equals(Object rhs)
     {
+        if (rhs == this)
+        {
+            return true;
+        }
+
         if (rhs instanceof ObjectId)
         {
-            return toString().equals(rhs.toString());
+            ObjectId that = (ObjectId)rhs;
+            return _hashCode == that._hashCode && _agentEpoch == that._agentEpoch &&
+                   equals(_objectName, that._objectName) && equals(_agentName, that._agentName);
         }
         return false;
     }
 
+    /**
+     * Null safe String comparison.
+     */
+    private static boolean equals(final String lhs, final String rhs)
+    {
+        return (lhs == null) ? rhs == null : lhs.equals(rhs);
+    }
+
     /**
      * Returns the ObjectId hashCode.
      * @return the ObjectId hashCode.
@@ -143,7 +196,7 @@ public final class ObjectId extends QmfData
     @Override
     public int hashCode()
     {
-        return toString().hashCode();
+        return _hashCode;
     }
 
     /**
@@ -153,7 +206,12 @@ public final class ObjectId extends QmfData
     @Override
     public String toString()
     {
-        return _agentName + "@" +  _agentEpoch + "@" + _objectName;
+        String string = _string;
+        if (string == null)
+        {
+            string = _agentName + "@" +  _agentEpoch + "@" + _objectName;
+            _string = string;
+        }
+        return string;
     }
 }
-
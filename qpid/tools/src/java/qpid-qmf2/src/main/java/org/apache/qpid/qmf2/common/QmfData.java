@@ -360,6 +360,25 @@ public class QmfData
         return getString(getValue(name));
     }
 
+    /**
+     * Accessor method to return a named property as a String, replacing a byte[] value in the underlying Map with
+     * its String representation so that the byte[]/String inconsistency described in getString() is dealt with
+     * once, when the QmfData is decoded, rather than every time the property is used.
+     *
+     * @param name of the property to return as a String.
+     * @return value of property as a String.
+     */
+    protected final String normaliseStringValue(final String name)
+    {
+        Object p = getValue(name);
+        String value = getString(p);
+        if (p instanceof byte[])
+        {
+            setValue(name, value);
+        }
+        return value;
+    }
+
     /**
      * Accessor method to return a reference property.
      * <p>
@@ -23,9 +23,11 @@ package org.apache.qpid.qmf2.common;
 // Misc Imports
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 // Reuse this class as it provides a handy mechanism to parse an predicate String into a Map
 import org.apache.qpid.messaging.util.AddressParser;
@@ -100,6 +102,7 @@ public final class QmfQuery extends QmfData
     private ObjectId       _objectId;
     private List           _predicate;
     private Expression     _expression;
+    private Set<String>    _predicateKeys;
 
     /**
      * This Constructor is only used to construct the ID and PREDICATE objects
@@ -264,8 +267,52 @@ public final class QmfQuery extends QmfData
         return _objectId;
     }
 
+    /**
+     * Set the number of matching objects that the Agent should skip before it starts returning results. This is
+     * used together with setLimit() to page through large collections of objects, which is most useful when the
+     * Agent's objects are sortable so that the order is consistent between queries.
+     * <p>
+     * This is an extension to the QMF2 API and will be ignored by Agents that don't support it.
+     * @param offset the number of matching objects to skip.
+     */
+    public void setOffset(final int offset)
+    {
+        setValue("_offset", offset);
+    }
+
+    /**
+     * Return the number of matching objects that the Agent should skip before it starts returning results.
+     * @return the number of matching objects to skip, which is zero if no offset has been set.
+     */
+    public int getOffset()
+    {
+        return (int)getLongValue("_offset");
+    }
+
+    /**
+     * Set the maximum number of objects that the Agent should return, see setOffset().
+     * <p>
+     * This is an extension to the QMF2 API and will be ignored by Agents that don't support it.
+     * @param limit the maximum number of objects to return.
+     */
+    public void setLimit(final int limit)
+    {
+        setValue("_limit", limit);
+    }
+
+    /**
+     * Return the maximum number of objects that the Agent should return.
+     * @return the maximum number of objects to return, or -1 if no limit has been set.
+     */
+    public int getLimit()
+    {
+        return hasValue("_limit") ? (int)getLongValue("_limit") : -1;
+    }
+
     /**
      * Evaluate query against a QmfData instance.
+     * <p>
+     * A PREDICATE query that also specifies a SchemaClassId only matches managed data of that class.
      * @return true if query matches the QmfData instance, else false.
      */
     public boolean evaluate(final QmfData data)
@@ -282,29 +329,18 @@ public final class QmfQuery extends QmfData
                 }
                 else if (_classId != null)
                 {
-                    SchemaClassId dataClassId = managedData.getSchemaClassId();
-                    String dataClassName = dataClassId.getClassName();
-                    String dataPackageName = dataClassId.getPackageName();
-
-                    // Wildcard the package name if it hasn't been specified when checking class name
-                    if (_className.equals(dataClassName) &&
-                        (_packageName.length() == 0 || _packageName.equals(dataPackageName)))
-                    {
-                        return true;
-                    }
-
-                    // Wildcard the class name if it hasn't been specified when checking package name
-                    if (_packageName.equals(dataPackageName) &&
-                        (_className.length() == 0 || _className.equals(dataClassName)))
-                    {
-                        return true;
-                    }
+                    return matchesClass(managedData);
                 }
             }
             return false;
         }
         else
         {
+            if (_classId != null && data instanceof QmfManaged && !matchesClass((QmfManaged)data))
+            {
+                return false;
+            }
+
             // Evaluate a PREDICATE query by evaluating against the expression created from the predicate
             if (_predicate.size() == 0)
             {
@@ -315,6 +351,105 @@ public final class QmfQuery extends QmfData
         }
     }
 
+    /**
+     * Check whether managed data is of the class specified by this query's SchemaClassId, with the package name or
+     * the class name acting as wildcards if they haven't been specified.
+     * @param managedData the managed data to check.
+     * @return true if the managed data is of the class specified by this query, else false.
+     */
+    private boolean matchesClass(final QmfManaged managedData)
+    {
+        SchemaClassId dataClassId = managedData.getSchemaClassId();
+        if (dataClassId == null)
+        {
+            return false;
+        }
+
+        String dataClassName = dataClassId.getClassName();
+        String dataPackageName = dataClassId.getPackageName();
+
+        // Wildcard the package name if it hasn't been specified when checking class name
+        if (_className.equals(dataClassName) &&
+            (_packageName.length() == 0 || _packageName.equals(dataPackageName)))
+        {
+            return true;
+        }
+
+        // Wildcard the class name if it hasn't been specified when checking package name
+        if (_packageName.equals(dataPackageName) &&
+            (_className.length() == 0 || _className.equals(dataClassName)))
+        {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a QmfData instance holds all of the properties referred to by this query's predicate, and can
+     * therefore be meaningfully evaluated. This is used when evaluating queries against partial object state, such as
+     * the statistics only updates that the broker ManagementAgent periodically pushes, which don't include the
+     * object's properties. Properties that are only tested by "exists" don't need to be present.
+     * @param data the QmfData instance to check.
+     * @return true if the query has no predicate or data holds all of the properties referred to by the predicate.
+     */
+    public boolean canEvaluate(final QmfData data)
+    {
+        if (_predicate == null)
+        {
+            return true;
+        }
+
+        if (_predicateKeys == null)
+        {
+            Set<String> keys = new HashSet<String>();
+            addPredicateKeys(_predicate, keys);
+            _predicateKeys = keys;
+        }
+
+        for (String key : _predicateKeys)
+        {
+            if (!data.hasValue(key))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the names of the properties referred to by a predicate expression to a Set. Unquoted String operands
+     * of boolean expressions are property names, whereas the operands of logical expressions are sub-expressions.
+     * @param expr the predicate expression.
+     * @param keys the Set that the property names are added to.
+     */
+    private static void addPredicateKeys(final List expr, final Set<String> keys)
+    {
+        if (expr.isEmpty() || !(expr.get(0) instanceof String))
+        {
+            return;
+        }
+
+        String op = (String)expr.get(0);
+        boolean logical = op.equals("and") || op.equals("or") || op.equals("not");
+        if (op.equals("exists"))
+        {
+            return;
+        }
+
+        for (int i = 1; i < expr.size(); i++)
+        {
+            Object operand = expr.get(i);
+            if (logical && operand instanceof List)
+            {
+                addPredicateKeys((List)operand, keys);
+            }
+            else if (!logical && operand instanceof String)
+            {
+                keys.add((String)operand);
+            }
+        }
+    }
+
     /**
      * Helper/debug method to list the QMF Object properties and their type.
      */
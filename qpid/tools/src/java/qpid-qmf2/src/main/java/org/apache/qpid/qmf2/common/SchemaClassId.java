@@ -30,15 +30,25 @@ import java.util.UUID;
  * <p>
  * If the hash value is not supplied, then the value of the hash string will be set to None. This will be the
  * case when a SchemaClass is being dynamically constructed, and a proper hash is not yet available.
+ * <p>
+ * SchemaClassIds are compared field by field using a hashCode computed once on construction, so that they are
+ * cheap to use as Map keys, and may be interned so that, for example, all of the objects of a given class can
+ * share a single SchemaClassId instance.
  *
  * @author Fraser Adams
  */
 public final class SchemaClassId extends QmfData
 {
-    private String _packageName = "";
-    private String _className = "";
-    private String _type = "";
-    private UUID _hash = null;
+    private final String _packageName;
+    private final String _className;
+    private final String _type;
+    private final UUID _hash;
+    private final int _hashCode;
+
+    /**
+     * The pool used by intern().
+     */
+    private static final InternPool<SchemaClassId> _pool = new InternPool<SchemaClassId>();
 
     /**
      * The main constructor, taking a java.util.Map as a parameter.
@@ -48,10 +58,11 @@ public final class SchemaClassId extends QmfData
     public SchemaClassId(final Map m)
     {
         super(m);
-        _packageName =  getStringValue("_package_name");
-        _className = getStringValue("_class_name");
-        _type = getStringValue("_type");
+        _packageName = normaliseStringValue("_package_name");
+        _className = normaliseStringValue("_class_name");
+        _type = normaliseStringValue("_type");
         _hash = hasValue("_hash") ? (UUID)getValue("_hash") : null;
+        _hashCode = hash(_packageName, _className, _hash);
     }
 
     /**
@@ -97,31 +108,48 @@ public final class SchemaClassId extends QmfData
      */
     public SchemaClassId(final String packageName, final String className, final String type, final UUID hash)
     {
+        _packageName = (packageName == null) ? "" : packageName;
+        _className = (className == null) ? "" : className;
+        _type = (type == null) ? "" : type;
+        _hash = hash;
+        _hashCode = hash(_packageName, _className, _hash);
+
         if (packageName != null)
         {
             setValue("_package_name", packageName);
-            _packageName = packageName;
         }
 
         if (className != null)
         {
             setValue("_class_name", className);
-            _className = className;
         }
 
         if (type != null)
         {
             setValue("_type", type);
-            _type = type;
         }
 
         if (hash != null)
         {
             setValue("_hash", hash);
-            _hash = hash;
         }
     }
 
+    /**
+     * Compute the hashCode of a SchemaClassId from the fields used in equals().
+     * @param packageName the package name.
+     * @param className the class name.
+     * @param hash the hash of the Schema, may be null.
+     * @return the hashCode of the SchemaClassId.
+     */
+    private static int hash(final String packageName, final String className, final UUID hash)
+    {
+        int result = packageName.hashCode();
+        result = 31*result + className.hashCode();
+        result = 31*result + ((hash == null) ? 0 : hash.hashCode());
+        return result;
+    }
+
     /**
      * Return The name of the associated package.
      * @return The name of the associated package. Returns empty String if there's no package name.
@@ -158,6 +186,16 @@ public final class SchemaClassId extends QmfData
         return _hash;
     }
 
+    /**
+     * Returns the canonical instance of this SchemaClassId, which is the same instance for all equal SchemaClassIds
+     * that have been interned, in the same way as String.intern().
+     * @return the canonical instance of this SchemaClassId.
+     */
+    public SchemaClassId intern()
+    {
+        return _pool.intern(this);
+    }
+
     /**
      * Compares two SchemaClassId objects for equality.
      * @param rhs the right hands side SchemaClassId in the comparison.
@@ -166,12 +204,17 @@ public final class SchemaClassId extends QmfData
     @Override
     public boolean equals(final Object rhs)
     {
+        if (rhs == this)
+        {
+            return true;
+        }
+
         if (rhs instanceof SchemaClassId)
         {
             SchemaClassId that = (SchemaClassId)rhs;
-            String lvalue = _packageName + _className + _hash;
-            String rvalue = that._packageName + that._className + that._hash;
-            return lvalue.equals(rvalue);
+            return _hashCode == that._hashCode && _className.equals(that._className) &&
+                   _packageName.equals(that._packageName) &&
+                   (_hash == null ? that._hash == null : _hash.equals(that._hash));
         }
         return false;
     }
@@ -183,8 +226,7 @@ public final class SchemaClassId extends QmfData
     @Override
     public int hashCode()
     {
-        String lvalue = _packageName + _className + _hash;
-        return lvalue.hashCode();
+        return _hashCode;
     }
 
     /**
@@ -0,0 +1,209 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ValueInterner canonicalises the property names and low cardinality property values of decoded QmfData.
+ * <p>
+ * Every QmfData decoded from an AMQP message has its own Map containing its own copies of the same property names
+ * ("msgDepth", "name", "vhostRef" ...) and often the same values (the names of the vhosts, exchanges and queues that
+ * objects refer to, exchange types etc.), so a Console that retains a large number of objects, for example in its
+ * object cache, holds many duplicate Strings. The intern() method replaces the QmfData's Map with one that uses a
+ * single shared instance of each property name and of each of the following values:
+ * <pre>
+ * - The Strings in reference properties e.g. the _agent_name and _object_name of vhostRef.
+ * - The values of non-index string properties if the SchemaClass describing the QmfData is known. The values of
+ *   index properties such as a queue's name are unique to each object so there's nothing to be gained by sharing
+ *   them.
+ * </pre>
+ * The C++ broker sends string values as byte[], so a byte[] value of one of these properties is replaced by its
+ * interned String representation in the same way as {@link QmfData#getStringValue(String)} would decode it.
+ * <p>
+ * The canonical Strings are held in a bounded pool, once the pool is full further Strings are no longer shared.
+ */
+public final class ValueInterner
+{
+    /**
+     * The maximum number of distinct Strings held in the pool.
+     */
+    private static final int MAX_STRINGS = 65536;
+
+    private final ConcurrentHashMap<String, String> _strings = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The names of the non-index string properties of each SchemaClass that we have seen, keyed by SchemaClassId.
+     */
+    private final Map<SchemaClassId, Set<String>> _internedProperties =
+        new ConcurrentHashMap<SchemaClassId, Set<String>>();
+
+    /**
+     * Returns the canonical instance of a String.
+     * @param value the String to intern.
+     * @return the canonical instance of the String, or value itself if the pool is full.
+     */
+    public String intern(final String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        String canonical = _strings.get(value);
+        if (canonical == null)
+        {
+            if (_strings.size() >= MAX_STRINGS)
+            {
+                return value;
+            }
+
+            canonical = value;
+            String previous = _strings.putIfAbsent(value, value);
+            if (previous != null)
+            {
+                canonical = previous;
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Replace the Map of a QmfData with an equal Map that uses canonical property names and values.
+     * @param data the QmfData to canonicalise.
+     * @param schema the SchemaClass describing the QmfData, or null if it isn't known.
+     */
+    public void intern(final QmfData data, final SchemaClass schema)
+    {
+        Map<String, Object> values = data._values;
+        if (values == null || values.isEmpty())
+        {
+            return;
+        }
+
+        Set<String> properties = getInternedProperties(schema);
+        Map<String, Object> result = new HashMap<String, Object>((int)(values.size()/0.75f) + 1);
+        for (Map.Entry<String, Object> entry : values.entrySet())
+        {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof String || value instanceof byte[])
+            {
+                if (properties.contains(key))
+                {
+                    value = intern(QmfData.getString(value));
+                }
+            }
+            else if (value instanceof Map && ((Map)value).containsKey("_object_name"))
+            {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> reference = (Map<String, Object>)value;
+                value = internReference(reference);
+            }
+            result.put(intern(key), value);
+        }
+        data._values = result;
+    }
+
+    /**
+     * Returns an equal copy of a reference property, which is an ObjectId Map, with all of its Strings interned.
+     * A byte[] _agent_name or _object_name is replaced by its String representation, as ObjectId does.
+     * @param reference the reference property.
+     * @return the canonicalised copy of the reference property.
+     */
+    private Map<String, Object> internReference(final Map<String, Object> reference)
+    {
+        Map<String, Object> result = new HashMap<String, Object>((int)(reference.size()/0.75f) + 1);
+        for (Map.Entry<String, Object> entry : reference.entrySet())
+        {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof String)
+            {
+                value = intern((String)value);
+            }
+            else if (value instanceof byte[] && (key.equals("_agent_name") || key.equals("_object_name")))
+            {
+                value = intern(QmfData.getString(value));
+            }
+            result.put(intern(key), value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the names of the properties of a SchemaClass whose values should be interned, that is the non-index
+     * string properties. The first time a SchemaClass is seen the names of all of its properties are interned, so
+     * that the property names of the QmfData it describes share the SchemaProperty name instances.
+     * @param schema the SchemaClass, may be null.
+     * @return the names of the properties whose values should be interned.
+     */
+    private Set<String> getInternedProperties(final SchemaClass schema)
+    {
+        if (schema == null || schema.getClassId() == null)
+        {
+            return Collections.emptySet();
+        }
+
+        SchemaClassId classId = schema.getClassId();
+        Set<String> properties = _internedProperties.get(classId);
+        if (properties == null)
+        {
+            List<SchemaProperty> schemaProperties = null;
+            if (schema instanceof SchemaObjectClass)
+            {
+                schemaProperties = ((SchemaObjectClass)schema).getProperties();
+            }
+            else if (schema instanceof SchemaEventClass)
+            {
+                schemaProperties = ((SchemaEventClass)schema).getProperties();
+            }
+
+            properties = new HashSet<String>();
+            if (schemaProperties != null)
+            {
+                for (SchemaProperty property : schemaProperties)
+                {
+                    String name = intern(property.getName());
+                    try
+                    {
+                        if (property.getType() == QmfType.TYPE_STRING && !property.isIndex())
+                        {
+                            properties.add(name);
+                        }
+                    }
+                    catch (IllegalArgumentException iae)
+                    { // Ignore properties with an unrecognised type.
+                    }
+                }
+            }
+            _internedProperties.put(classId, properties);
+        }
+        return properties;
+    }
+}
@@ -430,7 +430,7 @@ public final class Agent extends QmfData
     public List<SchemaClass> getSchema(final SchemaClassId classId)
     {
         SchemaClass schema = _schemaCache.get(classId);
-        if (schema == SchemaClass.EMPTY_SCHEMA)
+        if (schema == null || schema == SchemaClass.EMPTY_SCHEMA)
         {
             return Collections.emptyList();
         }
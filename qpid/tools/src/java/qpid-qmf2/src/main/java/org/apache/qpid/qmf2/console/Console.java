@@ -39,15 +39,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // Misc Imports
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.AMQPMessage;
@@ -58,6 +64,7 @@ import org.apache.qpid.qmf2.common.NullQmfEventListener;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfCallback;
 import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfDescribed;
 import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
@@ -67,6 +74,7 @@ import org.apache.qpid.qmf2.common.SchemaClass;
 import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.ValueInterner;
 import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.common.WorkQueue;
 
@@ -203,13 +211,42 @@ public final class Console implements MessageListener, AgentProxy
      * The eventListener may be a real application QmfEventListener, a NullQmfEventListener or an application
      * Notifier wrapped in a QmfEventListener. In all cases the Console may call _eventListener.onEvent() at
      * various places to pass a WorkItem to an asynchronous receiver.
+     * <p>
+     * Most WorkItems are passed from the JMS listener thread, but the AgentDeletedWorkItem for an expired Agent is
+     * raised on the Timer thread, so onEvent() is only ever called whilst holding _callbackLock, see dispatchEvent().
      */
     private QmfEventListener _eventListener;
 
+    /**
+     * Held whilst passing WorkItems to the QmfEventListener, so that they are never passed concurrently. It is only
+     * held around the calls to onEvent(), not whilst handling a message, so Agent expiry isn't held up by slow
+     * operations such as the synchronous schema discovery done by onMessage().
+     */
+    private final Object _callbackLock = new Object();
+
+    /**
+     * The AgentDeletedWorkItems of expired Agents, waiting to be passed to the QmfEventListener. An Agent is removed
+     * and its WorkItem queued whilst holding this queue's lock, and the queue is drained before any other WorkItem is
+     * passed, so the AgentDeletedWorkItem always precedes the AgentAddedWorkItem of an Agent that has just come back.
+     */
+    private final LinkedList<WorkItem> _expiredAgentEvents = new LinkedList<WorkItem>();
+
     /**
      * Explicitly store Agents in a ConcurrentHashMap, as we know the MessageListener thread may modify its contents.
      */
-    private Map<String, Agent> _agents = new ConcurrentHashMap<String, Agent>();
+    private ConcurrentHashMap<String, Agent> _agents = new ConcurrentHashMap<String, Agent>();
+
+    /**
+     * The deadlines by which each Agent must next be heard from, ordered so that the earliest is at the head.
+     * A new deadline is added each time an Agent is heard from, rather than the existing one being moved, so the
+     * queue may contain stale deadlines, which are discarded when they reach the head. Guarded by its own lock.
+     */
+    private final PriorityQueue<AgentDeadline> _agentDeadlines = new PriorityQueue<AgentDeadline>();
+
+    /**
+     * The period in milliseconds at which the Timer checks for Agent expiry.
+     */
+    private static final long AGENT_EXPIRY_CHECK_PERIOD = 1000;
 
     /**
      * This Map is used to look up a Subscription by consoleHandle. 
@@ -231,7 +268,7 @@ public final class Console implements MessageListener, AgentProxy
      * we can support the synonyms "broker" and "qpidd" for the broker Agent, as its full name isn't especially
      * easy to use givent that it contains a UUID "instance" component.
      */
-    private String _brokerAgentName = null;
+    private volatile String _brokerAgentName = null;
 
     /**
      * A flag to indicate that an Agent has been registered, used as a condition variable.
@@ -268,12 +305,41 @@ public final class Console implements MessageListener, AgentProxy
      */
     private boolean _disableEvents = false;
 
+    /**
+     * This flag stops the Console retrieving the schema of every class when an Agent is discovered, instead the
+     * schema for a class is retrieved when it is first asked for, see enableLazySchema().
+     */
+    private volatile boolean _lazySchema = false;
+
+    /**
+     * The schema requests that are currently in progress, used to coalesce concurrent requests for the same schema.
+     */
+    private final ConcurrentHashMap<SchemaRequestKey, FutureTask<List<SchemaClass>>> _schemaRequests =
+        new ConcurrentHashMap<SchemaRequestKey, FutureTask<List<SchemaClass>>>();
+
     /**
      * If the "disable_subscription_emulation" System Property is set then we disable Console side emulation
      * of broker subscriptions
      */
     private boolean _subscriptionEmulationEnabled = !Boolean.getBoolean("disable_subscription_emulation");
 
+    /**
+     * The optional Console side cache of QmfConsoleData, which is null unless enableObjectCache() has been called.
+     */
+    private volatile ObjectCache _objectCache = null;
+
+    /**
+     * The optional ValueInterner used to canonicalise the property names and values of the QmfConsoleData and
+     * QmfEvents that we receive, which is null unless enableValueInterning() has been called.
+     */
+    private volatile ValueInterner _valueInterner = null;
+
+    /**
+     * The optional persistent cache of the schema retrieved from Agents, which is null unless enableSchemaCache()
+     * has been called, the schemaCache option has been supplied or the "qpid.qmf2.schema_cache" System Property has been set.
+     */
+    private volatile SchemaCache _schemaCache = null;
+
     /**
      * Various timeouts used internally.
      * replyTimeout is the default maximum time we wait for synchronous responses
@@ -332,37 +398,192 @@ public final class Console implements MessageListener, AgentProxy
     }
 
     /**
-     * Check whether any of the registered Agents has expired by comparing their timestamp against the 
-     * current time. We explicitly use an iterator rather than a foreach loop because if the Agent has
-     * expired we want to remove it and the only safe way to do that whilst still iterating is to use
-     * iterator.remove() and the foreach loop hides the underlying iterator from us.
+     * The time by which an Agent must next be heard from, used to order Agents by expiry time.
+     */
+    private static final class AgentDeadline implements Comparable<AgentDeadline>
+    {
+        private final Agent _agent;
+        private final long _deadline;
+
+        /**
+         * Construct an AgentDeadline.
+         * @param agent the Agent.
+         * @param deadline the time in nanoseconds after which the Agent will have expired.
+         */
+        public AgentDeadline(final Agent agent, final long deadline)
+        {
+            _agent = agent;
+            _deadline = deadline;
+        }
+
+        /**
+         * Compare AgentDeadlines by deadline.
+         * @param rhs the right hand side AgentDeadline in the comparison.
+         * @return a negative integer, zero, or a positive integer as this deadline is earlier, equal or later.
+         */
+        public int compareTo(final AgentDeadline rhs)
+        {
+            return (_deadline < rhs._deadline) ? -1 : ((_deadline == rhs._deadline) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Identifies a request for the schema of a class from a particular Agent.
+     */
+    private static final class SchemaRequestKey
+    {
+        private final String _agentName;
+        private final SchemaClassId _classId;
+
+        /**
+         * Construct a SchemaRequestKey.
+         * @param agentName the name of the Agent that the schema is requested from.
+         * @param classId the SchemaClassId of the requested schema.
+         */
+        public SchemaRequestKey(final String agentName, final SchemaClassId classId)
+        {
+            _agentName = agentName;
+            _classId = classId;
+        }
+
+        @Override
+        public boolean equals(final Object rhs)
+        {
+            if (rhs instanceof SchemaRequestKey)
+            {
+                SchemaRequestKey that = (SchemaRequestKey)rhs;
+                return _agentName.equals(that._agentName) && _classId.equals(that._classId);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return _agentName.hashCode()*31 + _classId.hashCode();
+        }
+    }
+
+    /**
+     * Returns the time in nanoseconds after which an Agent will have expired if it isn't heard from again.
+     * @param agent the Agent.
+     * @return the time in nanoseconds after which the Agent will have expired.
+     */
+    private long getAgentDeadline(final Agent agent)
+    {
+        return agent.getTimestamp() + _agentTimeout*1000000000l;
+    }
+
+    /**
+     * Record the deadline by which an Agent must next be heard from, called each time the Agent is heard from.
+     * This costs O(log n) rather than the O(n) scan of all Agents that would otherwise be required.
+     * @param agent the Agent that has been heard from.
+     */
+    private void scheduleAgentExpiry(final Agent agent)
+    {
+        synchronized (_agentDeadlines)
+        {
+            _agentDeadlines.add(new AgentDeadline(agent, getAgentDeadline(agent)));
+        }
+    }
+
+    /**
+     * Check whether any of the registered Agents has expired. This is called periodically by the Timer, so expiry is
+     * detected promptly even if no heartbeats are being received. Only the deadlines that have passed are examined:
+     * a deadline is stale if the Agent has been removed or has since been heard from, in which case a later deadline
+     * will have been queued for it, otherwise the Agent has expired.
+     * <p>
+     * An expired Agent's AgentDeletedWorkItem is queued on _expiredAgentEvents, which is then drained by the Timer
+     * thread or, if the JMS listener thread is passing a WorkItem, by the listener thread, see dispatchEvent().
      */
     private void handleAgentExpiry()
     {
         long currentTime = System.currentTimeMillis()*1000000l;
-
-        // Use the iterator approach rather than foreach as we may want to call iterator.remove() to zap an entry
-        Iterator<Agent> i = _agents.values().iterator();
-        while (i.hasNext())
+        while (true)
         {
-            Agent agent = i.next();
-            // Get the time difference in seconds between now and the last Agent update.
-            long diff = (currentTime - agent.getTimestamp())/1000000000l;
-            if (diff > _agentTimeout)
+            Agent agent = null;
+            synchronized (_agentDeadlines)
+            {
+                AgentDeadline head = _agentDeadlines.peek();
+                if (head == null || head._deadline >= currentTime)
+                {
+                    break;
+                }
+                _agentDeadlines.poll();
+
+                // Ignore deadlines for Agents that have been removed or replaced, or that have since been heard from.
+                if (_agents.get(head._agent.getName()) != head._agent || getAgentDeadline(head._agent) > head._deadline)
+                {
+                    continue;
+                }
+                agent = head._agent;
+            }
+
+            synchronized (_expiredAgentEvents)
             {
+                if (!_agents.remove(agent.getName(), agent))
+                {
+                    continue;
+                }
+
                 if (agent.getVendor().equals("apache.org") && agent.getProduct().equals("qpidd"))
                 {            
                     _brokerAgentName = null;
                 }
                 agent.deactivate();
-                i.remove();
+                ObjectCache cache = _objectCache;
+                if (cache != null)
+                {
+                    cache.removeAgent(agent.getName());
+                }
                 _log.info("Agent {} has expired", agent.getName());
                 if (_discoverAgents && (_agentQuery == null || _agentQuery.evaluate(agent)))
                 {
-                    _eventListener.onEvent(new AgentDeletedWorkItem(agent));
+                    _expiredAgentEvents.add(new AgentDeletedWorkItem(agent));
                 }
             }
         }
+
+        synchronized (_callbackLock)
+        {
+            dispatchExpiredAgentEvents();
+        }
+    }
+
+    /**
+     * Pass the queued AgentDeletedWorkItems of any expired Agents to the QmfEventListener. The caller must hold
+     * _callbackLock.
+     */
+    private void dispatchExpiredAgentEvents()
+    {
+        while (true)
+        {
+            WorkItem item = null;
+            synchronized (_expiredAgentEvents)
+            {
+                item = _expiredAgentEvents.poll();
+            }
+
+            if (item == null)
+            {
+                return;
+            }
+            _eventListener.onEvent(item);
+        }
+    }
+
+    /**
+     * Pass a WorkItem to the QmfEventListener, first passing the AgentDeletedWorkItems of any Agents that have
+     * expired, so that they are delivered in order.
+     * @param item the WorkItem to pass to the QmfEventListener.
+     */
+    private void dispatchEvent(final WorkItem item)
+    {
+        synchronized (_callbackLock)
+        {
+            dispatchExpiredAgentEvents();
+            _eventListener.onEvent(item);
+        }
     }
 
     /**
@@ -389,24 +610,29 @@ public final class Console implements MessageListener, AgentProxy
 
             if (opcode.equals("_agent_heartbeat_indication") || opcode.equals("_agent_locate_response"))
             { // This block handles Agent lifecycle information (discover, register, delete)
-                if (_agents.containsKey(agentName))
+                Agent agent = _agents.get(agentName);
+                if (agent != null)
                 { // This block handles Agents that have previously been registered
-                    Agent agent = _agents.get(agentName);
                     long originalEpoch = agent.getEpoch();
 
                     // If we already know about an Agent we simply update the Agent's state using initialise()
                     agent.initialise(AMQPMessage.getMap(message));
+                    scheduleAgentExpiry(agent);
 
                     // If the Epoch has changed it means the Agent has been restarted so we send a notification
                     if (agent.getEpoch() != originalEpoch)
                     {
                         agent.clearSchemaCache(); // Clear cache to force a lookup
-                        List<SchemaClassId> classes = getClasses(agent);
-                        getSchema(classes, agent); // Discover the schema for this Agent and cache it
+                        ObjectCache cache = _objectCache;
+                        if (cache != null)
+                        {
+                            cache.removeAgent(agentName);
+                        }
+                        discoverSchema(agent);
                         _log.info("Agent {} has been restarted", agentName);
                         if (_discoverAgents && (_agentQuery == null || _agentQuery.evaluate(agent)))
                         {
-                            _eventListener.onEvent(new AgentRestartedWorkItem(agent));
+                            dispatchEvent(new AgentRestartedWorkItem(agent));
                         }
                     }
                     else
@@ -414,16 +640,16 @@ public final class Console implements MessageListener, AgentProxy
                         _log.info("Agent {} heartbeat", agent.getName());
                         if (_discoverAgents && (_agentQuery == null || _agentQuery.evaluate(agent)))
                         {
-                            _eventListener.onEvent(new AgentHeartbeatWorkItem(agent));
+                            dispatchEvent(new AgentHeartbeatWorkItem(agent));
                         }
                     }
                 }
                 else
                 { // This block handles Agents that haven't already been registered
-                    Agent agent = new Agent(AMQPMessage.getMap(message), this);
-                    List<SchemaClassId> classes = getClasses(agent);
-                    getSchema(classes, agent); // Discover the schema for this Agent and cache it
+                    agent = new Agent(AMQPMessage.getMap(message), this);
+                    discoverSchema(agent);
                     _agents.put(agentName, agent);
+                    scheduleAgentExpiry(agent);
                     _log.info("Adding Agent {}", agentName);
 
                     // If the Agent is the Broker Agent we record it as _brokerAgentName to make retrieving
@@ -449,24 +675,19 @@ public final class Console implements MessageListener, AgentProxy
 
                     if (_discoverAgents && (_agentQuery == null || _agentQuery.evaluate(agent)))
                     {
-                        _eventListener.onEvent(new AgentAddedWorkItem(agent));
+                        dispatchEvent(new AgentAddedWorkItem(agent));
                     }
                 }
-
-                // The broker Agent sends periodic heartbeats and that Agent should *always* be available given
-                // a running broker, so we should get here every "--mgmt-pub-interval" seconds or so, so it's
-                // a good place to periodically check for the expiry of any other Agents.
-                handleAgentExpiry();
                 return;
             }
 
-            if (!_agents.containsKey(agentName))
+            Agent agent = _agents.get(agentName);
+            if (agent == null)
             {
                 _log.info("Ignoring Event from unregistered Agent {}", agentName);
                 return;
             }
 
-            Agent agent = _agents.get(agentName);
             if (!agent.eventsEnabled())
             {
                 _log.info("{} has disabled Event reception, ignoring Event", agentName);
@@ -481,7 +702,7 @@ public final class Console implements MessageListener, AgentProxy
             {
                 if (AMQPMessage.isAMQPMap(message))
                 {
-                    _eventListener.onEvent(
+                    dispatchEvent(
                         new MethodResponseWorkItem(handle, new MethodResult(AMQPMessage.getMap(message)))
                     );
                 }
@@ -498,9 +719,15 @@ public final class Console implements MessageListener, AgentProxy
                 if (AMQPMessage.isAMQPList(message))
                 {
                     List<Map> list = AMQPMessage.getList(message);
+                    ObjectCache cache = _objectCache;
                     for (Map m : list)
                     {
-                        _eventListener.onEvent(new ObjectUpdateWorkItem(handle, new QmfConsoleData(m, agent)));
+                        QmfConsoleData object = createConsoleData(m, agent);
+                        if (cache != null)
+                        {
+                            cache.refresh(object);
+                        }
+                        dispatchEvent(new ObjectUpdateWorkItem(handle, object));
                     }
                 }
                 else
@@ -536,7 +763,7 @@ public final class Console implements MessageListener, AgentProxy
                                 }
                                 else
                                 {
-                                    _eventListener.onEvent(new SubscribeResponseWorkItem(new Handle(replyHandle), params));
+                                    dispatchEvent(new SubscribeResponseWorkItem(new Handle(replyHandle), params));
                                 }
                             }
                         }
@@ -545,7 +772,7 @@ public final class Console implements MessageListener, AgentProxy
                             params.setConsoleHandle(subscription.getConsoleHandle());
                             subscription.setDuration(params.getLifetime());
                             subscription.refresh();
-                            _eventListener.onEvent(new SubscribeResponseWorkItem(handle, params));
+                            dispatchEvent(new SubscribeResponseWorkItem(handle, params));
                         }
                     }
                 }
@@ -558,18 +785,24 @@ public final class Console implements MessageListener, AgentProxy
             // Subscription Indication - in other words the asynchronous results of a Subscription
             if (opcode.equals("_data_indication") && content.equals("_data"))
             {
-                if (AMQPMessage.isAMQPList(message))
+                ObjectCache cache = _objectCache;
+                if (AMQPMessage.isAMQPList(message) && (cache != null || !_subscriptionByHandle.isEmpty()))
                 {
+                    // Each object is decoded at most once, however many Subscriptions it is delivered to and whether
+                    // or not it also updates the object cache, and is only interned once it is known to be needed.
+                    List<Map> list = AMQPMessage.getList(message);
+                    QmfConsoleData[] objects = new QmfConsoleData[list.size()];
+                    boolean[] interned = new boolean[list.size()];
+
                     String consoleHandle = handle.getCorrelationId();
                     if (consoleHandle != null && _subscriptionByHandle.containsKey(consoleHandle))
                     { // If we have a valid consoleHandle the data has come from a "real" Subscription.
-                        List<Map> list = AMQPMessage.getList(message);
                         List<QmfConsoleData> resultList = new ArrayList<QmfConsoleData>(list.size());
-                        for (Map m : list)
+                        for (int i = 0; i < objects.length; i++)
                         {
-                            resultList.add(new QmfConsoleData(m, agent));
+                            resultList.add(decodeConsoleData(list, objects, interned, i, agent, true));
                         }
-                        _eventListener.onEvent(
+                        dispatchEvent(
                             new SubscriptionIndicationWorkItem(new SubscribeIndication(consoleHandle, resultList))
                         );
                     }
@@ -583,13 +816,13 @@ public final class Console implements MessageListener, AgentProxy
                             { // Only evaluate broker Agent subscriptions with QueryTarget == OBJECT on the Console.
                                 long objectEpoch = 0;
                                 consoleHandle = subscription.getConsoleHandle();
-                                List<Map> list = AMQPMessage.getList(message);
-                                List<QmfConsoleData> resultList = new ArrayList<QmfConsoleData>(list.size());
-                                for (Map m : list)
-                                { // Evaluate the QmfConsoleData object against the query
-                                    QmfConsoleData object = new QmfConsoleData(m, agent);
-                                    if (query.evaluate(object))
+                                List<QmfConsoleData> resultList = new ArrayList<QmfConsoleData>();
+                                for (int i = 0; i < objects.length; i++)
+                                { // Evaluate the QmfConsoleData object against the query, only interning matches
+                                    QmfConsoleData object = decodeConsoleData(list, objects, interned, i, agent, false);
+                                    if (subscription.evaluate(object))
                                     {
+                                        decodeConsoleData(list, objects, interned, i, agent, true);
                                         long epoch = object.getObjectId().getAgentEpoch();
                                         objectEpoch = (epoch > objectEpoch && !object.isDeleted()) ? epoch : objectEpoch;
                                         resultList.add(object);
@@ -611,16 +844,19 @@ public final class Console implements MessageListener, AgentProxy
                                     {
                                         agent.setEpoch(objectEpoch);
                                         agent.clearSchemaCache(); // Clear cache to force a lookup
-                                        List<SchemaClassId> classes = getClasses(agent);
-                                        getSchema(classes, agent); // Discover the schema for this Agent and cache it
+                                        if (cache != null)
+                                        {
+                                            cache.removeAgent(agentName);
+                                        }
+                                        discoverSchema(agent);
                                         _log.info("Agent {} has been restarted", agentName);
                                         if (_discoverAgents && (_agentQuery == null || _agentQuery.evaluate(agent)))
                                         {
-                                            _eventListener.onEvent(new AgentRestartedWorkItem(agent));
+                                            dispatchEvent(new AgentRestartedWorkItem(agent));
                                         }
                                     }
 
-                                    _eventListener.onEvent(
+                                    dispatchEvent(
                                         new SubscriptionIndicationWorkItem(
                                             new SubscribeIndication(consoleHandle, resultList))
                                     );
@@ -628,8 +864,16 @@ public final class Console implements MessageListener, AgentProxy
                             }
                         }
                     }
+
+                    if (cache != null)
+                    { // Keep the object cache fresh using the data pushed by the Agent.
+                        for (int i = 0; i < objects.length; i++)
+                        {
+                            cache.update(decodeConsoleData(list, objects, interned, i, agent, true));
+                        }
+                    }
                 }
-                else
+                else if (!AMQPMessage.isAMQPList(message))
                 {
                     _log.info("onMessage() Received Subscribe Indication message in incorrect format");
                 }
@@ -640,7 +884,9 @@ public final class Console implements MessageListener, AgentProxy
             { // There are differences in the type of message sent by Qpid 0.8 and 0.10 onwards.
                 if (AMQPMessage.isAMQPMap(message))
                 { // 0.8 broker passes Events as amqp/map encoded as MapMessages (we convert into java.util.Map)
-                    _eventListener.onEvent(new EventReceivedWorkItem(agent, new QmfEvent(AMQPMessage.getMap(message))));
+                    dispatchEvent(
+                        new EventReceivedWorkItem(agent, createEvent(AMQPMessage.getMap(message), agent))
+                    );
                 }
                 else if (AMQPMessage.isAMQPList(message))
                 { // 0.10 and above broker passes Events as amqp/list encoded as BytesMessage (needs decoding)
@@ -648,7 +894,7 @@ public final class Console implements MessageListener, AgentProxy
                     List<Map> list = AMQPMessage.getList(message);
                     for (Map m : list)
                     {
-                        _eventListener.onEvent(new EventReceivedWorkItem(agent, new QmfEvent(m)));
+                        dispatchEvent(new EventReceivedWorkItem(agent, createEvent(m, agent)));
                     }
                 }
                 else
@@ -663,6 +909,26 @@ public final class Console implements MessageListener, AgentProxy
         }
     } // end of onMessage() 
 
+    /**
+     * Discover the schema for an Agent and cache it, then write any newly retrieved schema to the persistent schema
+     * cache if it is enabled. If enableLazySchema() has been called only the list of classes is retrieved.
+     *
+     * @param agent the Agent whose schema we want to discover.
+     */
+    private void discoverSchema(final Agent agent)
+    {
+        List<SchemaClassId> classes = getClasses(agent);
+        if (!_lazySchema)
+        {
+            getSchema(classes, agent);
+        }
+        SchemaCache schemaCache = _schemaCache;
+        if (schemaCache != null)
+        {
+            schemaCache.save();
+        }
+    }
+
     /**
      * Retrieve the schema for a List of classes.
      * This method explicitly retrieves the schema from the remote Agent and is generally used for schema
@@ -742,7 +1008,7 @@ public final class Console implements MessageListener, AgentProxy
                             partials.ensureCapacity(partials.size() + mapResults.size());
                             for (Map content : mapResults)
                             {
-                                partials.add(new QmfConsoleData(content, agent));
+                                partials.add(createConsoleData(content, agent));
                             }
                         }
                         else if (AMQPMessage.isAMQPMap(response))
@@ -757,6 +1023,22 @@ public final class Console implements MessageListener, AgentProxy
                         }
                     } while (!lastResult);
                     results = partials;
+
+                    ObjectCache cache = _objectCache;
+                    if (cache != null)
+                    {
+                        if (query instanceof SchemaClassId)
+                        {
+                            cache.load(agent, (SchemaClassId)query, results);
+                        }
+                        else
+                        {
+                            for (QmfConsoleData object : results)
+                            {
+                                cache.refresh(object);
+                            }
+                        }
+                    }
                 }
             }
         }
@@ -780,6 +1062,7 @@ public final class Console implements MessageListener, AgentProxy
      */
     public void destroy(final Agent agent)
     {
+        scheduleAgentExpiry(agent); // The Agent's timestamp has been zeroed so this deadline has already passed.
         handleAgentExpiry();
     }
 
@@ -943,7 +1226,10 @@ public final class Console implements MessageListener, AgentProxy
      *         <b>replyTimeout</b>=&lt;default for all blocking calls&gt;
      *         <b>agentTimeout</b>=&lt;default timeout for agent heartbeat&gt;,
      *         <b>subscriptionDuration</b>=&lt;default lifetime of a subscription&gt;
+     *         <b>schemaCache</b>=&lt;file used to persist schema between Console instances&gt;
      * </pre>
+     * If the schemaCache option isn't supplied the "qpid.qmf2.schema_cache" System Property may be used to name the file,
+     * which allows the schema cache to be enabled for existing applications such as the command line tools.
      */
     public Console(String name, final String domain,
                    final QmfCallback notifier, final String options) throws QmfException
@@ -986,6 +1272,7 @@ public final class Console implements MessageListener, AgentProxy
             throw new QmfException("QmfCallback listener must be either a Notifier or QmfEventListener");
         }
 
+        String schemaCache = System.getProperty("qpid.qmf2.schema_cache");
         if (options != null)
         { // We wrap the Map in a QmfData object to avoid potential class cast issues with the parsed options
             QmfData optMap = new QmfData(new AddressParser(options).map());
@@ -1003,6 +1290,16 @@ public final class Console implements MessageListener, AgentProxy
             {
                 _subscriptionDuration = (int)optMap.getLongValue("subscriptionDuration");
             }
+
+            if (optMap.hasValue("schemaCache"))
+            {
+                schemaCache = optMap.getStringValue("schemaCache");
+            }
+        }
+
+        if (schemaCache != null && schemaCache.length() > 0)
+        {
+            enableSchemaCache(new File(schemaCache));
         }
     }
 
@@ -1165,8 +1462,15 @@ public final class Console implements MessageListener, AgentProxy
                     }
                 }
 
-                // Timer used for tidying up Subscriptions.
+                // Timer used for tidying up Subscriptions and checking for Agent expiry.
                 _timer = new Timer(true);
+                _timer.schedule(new TimerTask()
+                {
+                    public void run()
+                    {
+                        handleAgentExpiry();
+                    }
+                }, AGENT_EXPIRY_CHECK_PERIOD, AGENT_EXPIRY_CHECK_PERIOD);
             }
         }
         catch (JMSException jmse)
@@ -1195,6 +1499,12 @@ public final class Console implements MessageListener, AgentProxy
         {
             _timer.cancel();
             _connection.close(); // Should we close() the connection here or just stop() it ???
+
+            SchemaCache schemaCache = _schemaCache;
+            if (schemaCache != null)
+            { // Persist any schema that have been retrieved since the last Agent was discovered.
+                schemaCache.save();
+            }
         }
         catch (JMSException jmse)
         {
@@ -1339,6 +1649,176 @@ public final class Console implements MessageListener, AgentProxy
         _disableEvents = true;
     }
 
+    /**
+     * Enables a Console side cache of QmfConsoleData used to answer getObjects() calls without going to the wire.
+     * <p>
+     * The cache is populated by getObjects() and kept fresh by subscription indications and asynchronous refresh
+     * responses, so it is most effective for Consoles that hold a subscription to the objects that they query.
+     * Queries for a class are answered from the cache only if the class was retrieved in full, or updated by an
+     * indication, within maxAge milliseconds. Calling this method again replaces the existing cache.
+     * <p>
+     * This method is <b>not</b> an official method specified in the QMF2 API.
+     *
+     * @param maxAge the maximum age in milliseconds of the data returned from the cache.
+     * @param maxSize the maximum number of objects held in the cache, the least recently used are evicted.
+     */
+    public void enableObjectCache(final long maxAge, final int maxSize)
+    {
+        _objectCache = new ObjectCache(maxAge, maxSize);
+    }
+
+    /**
+     * Enables interning of the property names and low cardinality property values of the QmfConsoleData and
+     * QmfEvents received by this Console, see {@link org.apache.qpid.qmf2.common.ValueInterner}. This costs a copy of
+     * each object's property Map as it is received, but greatly reduces the heap used by Consoles that retain many
+     * objects, for example those with the object cache enabled or long running monitors.
+     * <p>
+     * This method is <b>not</b> an official method specified in the QMF2 API.
+     */
+    public void enableValueInterning()
+    {
+        if (_valueInterner == null)
+        {
+            _valueInterner = new ValueInterner();
+        }
+    }
+
+    /**
+     * Enables lazy schema retrieval. By default the Console retrieves the schema for every class of every Agent as
+     * soon as the Agent is discovered (or restarted), which in a domain with many Agents and large schema causes a
+     * storm of requests at startup and holds schema that the application may never use. When lazy schema retrieval
+     * is enabled only the list of classes is retrieved when an Agent is discovered and the schema for a class is
+     * retrieved from the Agent the first time getSchema() is called for it. Concurrent getSchema() calls for the same
+     * class share a single request.
+     * <p>
+     * Note that value interning (see enableValueInterning()) only makes use of schema that have been retrieved.
+     * This method should be called before addConnection().
+     * <p>
+     * This method is <b>not</b> an official method specified in the QMF2 API.
+     */
+    public void enableLazySchema()
+    {
+        _lazySchema = true;
+    }
+
+    /**
+     * Enables the persistent schema cache, see {@link SchemaCache}. The lists of classes and the schema retrieved
+     * from Agents are saved to the specified file, so that subsequent Consoles using the same file can skip the
+     * schema queries that they would otherwise make when discovering an unchanged Agent. This is mainly useful for
+     * short lived Consoles such as command line tools. This method should be called before addConnection().
+     * <p>
+     * This method is <b>not</b> an official method specified in the QMF2 API.
+     *
+     * @param file the file used to hold the cached schema, which is created if it doesn't exist.
+     */
+    public void enableSchemaCache(final File file)
+    {
+        _schemaCache = new SchemaCache(file);
+    }
+
+    /**
+     * Retrieve the current state of the objects that an emulated Subscription's query may match. The ManagementAgent
+     * only pushes an object's properties when they change, so without this the Subscription couldn't tell whether
+     * the statistics only updates of existing objects match a query whose predicate refers to their properties.
+     * @param subscription the emulated Subscription.
+     * @param timeout the time to wait for a reply from the Agent.
+     */
+    private void seedEmulatedSubscription(final SubscriptionManager subscription, final int timeout)
+    {
+        QmfQuery query = subscription.getQuery();
+        if (query.getPredicate() != null && query.getSchemaClassId() != null)
+        {
+            QmfQuery classQuery = new QmfQuery(QmfQueryTarget.OBJECT, query.getSchemaClassId());
+            subscription.addMatchedObjects(getObjects(subscription.getAgent(), classQuery, null, timeout));
+        }
+    }
+
+    /**
+     * Create a QmfConsoleData from a Map received from an Agent, interning its values if enabled.
+     * @param m the Map received from the Agent.
+     * @param agent the Agent that manages the object.
+     * @return the QmfConsoleData.
+     */
+    private QmfConsoleData createConsoleData(final Map m, final Agent agent)
+    {
+        QmfConsoleData object = new QmfConsoleData(m, agent);
+        internValues(object, agent);
+        return object;
+    }
+
+    /**
+     * Return the QmfConsoleData decoded from an element of a List received from an Agent, decoding it if it hasn't
+     * already been decoded so that an object delivered to several Subscriptions and the object cache is decoded once.
+     * @param list the List of Maps received from the Agent.
+     * @param objects the objects that have been decoded so far, indexed as list.
+     * @param interned records which of the decoded objects have been interned, indexed as list.
+     * @param index the index of the element to decode.
+     * @param agent the Agent that manages the object.
+     * @param intern if true the object's values are interned if enabled and they haven't been already.
+     * @return the QmfConsoleData.
+     */
+    private QmfConsoleData decodeConsoleData(final List<Map> list, final QmfConsoleData[] objects,
+                                             final boolean[] interned, final int index, final Agent agent,
+                                             final boolean intern)
+    {
+        QmfConsoleData object = objects[index];
+        if (object == null)
+        {
+            object = new QmfConsoleData(list.get(index), agent);
+            objects[index] = object;
+        }
+
+        if (intern && !interned[index])
+        {
+            internValues(object, agent);
+            interned[index] = true;
+        }
+        return object;
+    }
+
+    /**
+     * Create a QmfEvent from a Map received from an Agent, interning its values if enabled.
+     * @param m the Map received from the Agent.
+     * @param agent the Agent that raised the Event.
+     * @return the QmfEvent.
+     */
+    private QmfEvent createEvent(final Map m, final Agent agent)
+    {
+        QmfEvent event = new QmfEvent(m);
+        internValues(event, agent);
+        return event;
+    }
+
+    /**
+     * Intern the property names and values of a QmfConsoleData or QmfEvent if enableValueInterning() has been
+     * called, using the Agent's cached schema (if any) to identify the properties whose values should be interned.
+     * @param data the QmfConsoleData or QmfEvent.
+     * @param agent the Agent that the data was received from.
+     */
+    private void internValues(final QmfDescribed data, final Agent agent)
+    {
+        ValueInterner interner = _valueInterner;
+        if (interner != null)
+        {
+            SchemaClass schema = null;
+            SchemaClassId classId = data.getSchemaClassId();
+            if (agent != null && classId != null)
+            {
+                List<SchemaClass> schemaList = agent.getSchema(classId);
+                schema = schemaList.isEmpty() ? null : schemaList.get(0);
+            }
+            interner.intern(data, schema);
+        }
+    }
+
+    /**
+     * Disables the Console side cache of QmfConsoleData so that every getObjects() call goes to the Agents.
+     */
+    public void disableObjectCache()
+    {
+        _objectCache = null;
+    }
+
     /**
      * Return the count of pending WorkItems that can be retrieved.
      * @return the count of pending WorkItems that can be retrieved.
@@ -1527,6 +2007,18 @@ public final class Console implements MessageListener, AgentProxy
             return results;
         }
 
+        // Then look to see if the persistent schema cache holds the classes for this incarnation of the Agent.
+        SchemaCache schemaCache = _schemaCache;
+        if (schemaCache != null)
+        {
+            results = schemaCache.getClasses(agent);
+            if (results != null)
+            {
+                agent.setClasses(results);
+                return results;
+            }
+        }
+
         String agentName = agent.getName();
         results = new ArrayList<SchemaClassId>();
         try
@@ -1578,6 +2070,11 @@ public final class Console implements MessageListener, AgentProxy
         {
             _log.info("JMSException {} caught in getClasses()", jmse.getMessage());
         }
+
+        if (schemaCache != null && results.size() > 0)
+        {
+            schemaCache.putClasses(agent, results);
+        }
         agent.setClasses(results);
         return results;
     }
@@ -1622,6 +2119,72 @@ public final class Console implements MessageListener, AgentProxy
             return results;
         }
 
+        // Coalesce concurrent requests for the same schema, so that if several threads make first use of a class at
+        // the same time only the first sends a request and the others wait for its results.
+        SchemaRequestKey key = new SchemaRequestKey(agent.getName(), schemaClassId);
+        FutureTask<List<SchemaClass>> request = new FutureTask<List<SchemaClass>>(new Callable<List<SchemaClass>>()
+        {
+            public List<SchemaClass> call()
+            {
+                // A request for this schema may have completed since we last looked at the Agent's cache.
+                List<SchemaClass> cached = agent.getSchema(schemaClassId);
+                return (cached.size() > 0) ? cached : requestSchema(schemaClassId, agent);
+            }
+        });
+
+        FutureTask<List<SchemaClass>> pending = _schemaRequests.putIfAbsent(key, request);
+        if (pending == null)
+        {
+            pending = request;
+            try
+            {
+                request.run();
+            }
+            finally
+            {
+                _schemaRequests.remove(key, request);
+            }
+        }
+
+        try
+        {
+            return pending.get();
+        }
+        catch (InterruptedException ie)
+        {
+            _log.info("Interrupted waiting for schema {} from {}", schemaClassId.getClassName(), agent.getName());
+            return Collections.emptyList();
+        }
+        catch (ExecutionException ee)
+        {
+            _log.info("Exception {} caught in getSchema()", ee.getCause());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Retrieve the schema for a class from the persistent schema cache if it is enabled, otherwise send a query
+     * message to the remote Agent and block waiting for a response. The results are cached by the Agent.
+     *
+     * @param schemaClassId the SchemaClassId we wish to return schema information for.
+     * @param agent the Agent we want to retrieve the schema from
+     */
+    private List<SchemaClass> requestSchema(final SchemaClassId schemaClassId, final Agent agent)
+    {
+        List<SchemaClass> results = null;
+
+        // First look to see if the persistent schema cache holds the schema, which is keyed by the schema hash.
+        SchemaCache schemaCache = _schemaCache;
+        if (schemaCache != null)
+        {
+            results = schemaCache.getSchema(schemaClassId);
+            if (results != null)
+            {
+                agent.setSchema(schemaClassId, results);
+                return results;
+            }
+        }
+
         String agentName = agent.getName();
 //System.out.println("getSchema for agent " + agentName);
         results = new ArrayList<SchemaClass>();
@@ -1663,6 +2226,11 @@ public final class Console implements MessageListener, AgentProxy
 //schema.listValues();
                         results.add(schema);
                     }
+
+                    if (schemaCache != null)
+                    {
+                        schemaCache.putSchema(schemaClassId, mapResults);
+                    }
                 }
                 else if (AMQPMessage.isAMQPMap(response))
                 {
@@ -1855,9 +2423,31 @@ public final class Console implements MessageListener, AgentProxy
      */
     public List<QmfConsoleData> getObjects(final QmfData query, final int timeout, final List<Agent> agentList)
     {
+        ObjectCache cache = _objectCache;
         List<QmfConsoleData> results = new ArrayList<QmfConsoleData>();
         for (Agent agent : agentList)
         {
+            if (cache != null)
+            {
+                if (query instanceof SchemaClassId)
+                {
+                    List<QmfConsoleData> cached = cache.getObjects(agent, (SchemaClassId)query);
+                    if (cached != null)
+                    {
+                        results.addAll(cached);
+                        continue;
+                    }
+                }
+                else if (query instanceof ObjectId && agent.getName().equals(((ObjectId)query).getAgentName()))
+                {
+                    QmfConsoleData cached = cache.getObject((ObjectId)query);
+                    if (cached != null)
+                    {
+                        results.add(cached);
+                        continue;
+                    }
+                }
+            }
             results.addAll(getObjects(agent, query, null, timeout));
         }
         return results;
@@ -1994,16 +2584,20 @@ public final class Console implements MessageListener, AgentProxy
                 final SubscribeParams params = new SubscribeParams(consoleHandle, subscription.mapEncode());
                 if (replyHandle == null)
                 {
+                    seedEmulatedSubscription(subscription, (int)timeout);
                     return params;
                 }
                 else
                 {
                     final String handle = replyHandle;
+                    final SubscriptionManager emulated = subscription;
+                    final int seedTimeout = (int)timeout;
                     Thread thread = new Thread()
                     {
                         public void run()
                         {
-                            _eventListener.onEvent(new SubscribeResponseWorkItem(new Handle(handle), params));
+                            seedEmulatedSubscription(emulated, seedTimeout);
+                            dispatchEvent(new SubscribeResponseWorkItem(new Handle(handle), params));
                         }
                     };
                     thread.start();
@@ -2145,7 +2739,7 @@ public final class Console implements MessageListener, AgentProxy
                         {
                             public void run()
                             {
-                                _eventListener.onEvent(new SubscribeResponseWorkItem(new Handle(handle), params));
+                                dispatchEvent(new SubscribeResponseWorkItem(new Handle(handle), params));
                             }
                         };
                         thread.start();
@@ -0,0 +1,376 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+
+/**
+ * A Console side cache of QmfConsoleData, enabled via Console.enableObjectCache().
+ * <p>
+ * Objects are keyed by ObjectId and indexed by Agent name and schema class name. The cache is populated by the
+ * results of getObjects() and is kept fresh by the subscription indications (including those used by the Console's
+ * emulation of broker subscriptions) and asynchronous refresh responses received by the Console, so that a
+ * Console holding a subscription can answer repeated getObjects() calls without going to the wire.
+ * <p>
+ * A getObjects() call for a class is only answered from the cache if all of the objects of that class have been
+ * retrieved from the Agent, and either that retrieval or an indication for that class has happened within the
+ * maximum age. A getObjects() call for an ObjectId is answered if the object was cached within the maximum age.
+ * When the cache grows beyond its maximum size the least recently used objects are evicted, and the class they
+ * belonged to must then be retrieved from the Agent again.
+ * <p>
+ * The cache holds its own copies of the QmfConsoleData it is given and returns copies to its callers, so that a
+ * caller's setValue() or refresh() can't change what the cache or other callers see. Property values that are
+ * themselves Maps or Lists are shared by the copies and must not be modified in place.
+ */
+public final class ObjectCache
+{
+    /**
+     * A cached QmfConsoleData and the time at which it was cached.
+     */
+    private static final class Entry
+    {
+        private final QmfConsoleData _object;
+        private final long _cachedAt;
+
+        private Entry(final QmfConsoleData object, final long cachedAt)
+        {
+            _object = object;
+            _cachedAt = cachedAt;
+        }
+    }
+
+    private final long _maxAge;
+    private final int _maxSize;
+
+    /**
+     * The cached objects in least recently used order, the eldest is evicted when the maximum size is exceeded.
+     */
+    private final LinkedHashMap<ObjectId, Entry> _objects = new LinkedHashMap<ObjectId, Entry>(100, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ObjectId, Entry> eldest)
+        {
+            if (size() > _maxSize)
+            {
+                QmfConsoleData object = eldest.getValue()._object;
+                removeFromIndex(object);
+                invalidateClass(object);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Index of cached objects keyed by classKey(agentName, className).
+     */
+    private final Map<String, Map<ObjectId, QmfConsoleData>> _classIndex =
+        new HashMap<String, Map<ObjectId, QmfConsoleData>>();
+
+    /**
+     * The time each class was last known to be complete, keyed by loadedKey(agentName, packageName, className)
+     * where packageName is that of the getObjects() query and may be null.
+     */
+    private final Map<String, Long> _loaded = new HashMap<String, Long>();
+
+    /**
+     * Construct an ObjectCache.
+     *
+     * @param maxAge the maximum age in milliseconds of the data returned from the cache.
+     * @param maxSize the maximum number of objects held in the cache.
+     */
+    public ObjectCache(final long maxAge, final int maxSize)
+    {
+        _maxAge = maxAge;
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Return the key used by the _classIndex Map.
+     */
+    private static String classKey(final String agentName, final String className)
+    {
+        return agentName + "/" + className;
+    }
+
+    /**
+     * Return the key used by the _loaded Map.
+     */
+    private static String loadedKey(final String agentName, final String packageName, final String className)
+    {
+        return agentName + "/" + packageName + ":" + className;
+    }
+
+    /**
+     * Add an object to the _classIndex.
+     */
+    private void addToIndex(final QmfConsoleData object)
+    {
+        SchemaClassId classId = object.getSchemaClassId();
+        String key = classKey(object.getObjectId().getAgentName(), classId.getClassName());
+        Map<ObjectId, QmfConsoleData> objects = _classIndex.get(key);
+        if (objects == null)
+        {
+            objects = new HashMap<ObjectId, QmfConsoleData>();
+            _classIndex.put(key, objects);
+        }
+        objects.put(object.getObjectId(), object);
+    }
+
+    /**
+     * Remove an object from the _classIndex.
+     */
+    private void removeFromIndex(final QmfConsoleData object)
+    {
+        SchemaClassId classId = object.getSchemaClassId();
+        String key = classKey(object.getObjectId().getAgentName(), classId.getClassName());
+        Map<ObjectId, QmfConsoleData> objects = _classIndex.get(key);
+        if (objects != null)
+        {
+            objects.remove(object.getObjectId());
+            if (objects.isEmpty())
+            {
+                _classIndex.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Mark the class of an object as incomplete, so that it must be retrieved from the Agent again.
+     */
+    private void invalidateClass(final QmfConsoleData object)
+    {
+        String agentName = object.getObjectId().getAgentName();
+        SchemaClassId classId = object.getSchemaClassId();
+        _loaded.remove(loadedKey(agentName, null, classId.getClassName()));
+        _loaded.remove(loadedKey(agentName, classId.getPackageName(), classId.getClassName()));
+    }
+
+    /**
+     * Record that a class has been updated, extending the time for which it may be answered from the cache.
+     */
+    private void touchClass(final QmfConsoleData object, final long now)
+    {
+        String agentName = object.getObjectId().getAgentName();
+        SchemaClassId classId = object.getSchemaClassId();
+        String key = loadedKey(agentName, null, classId.getClassName());
+        if (_loaded.containsKey(key))
+        {
+            _loaded.put(key, now);
+        }
+
+        key = loadedKey(agentName, classId.getPackageName(), classId.getClassName());
+        if (_loaded.containsKey(key))
+        {
+            _loaded.put(key, now);
+        }
+    }
+
+    /**
+     * Store the complete set of objects of a class retrieved from an Agent, replacing any previously cached objects
+     * of that class.
+     *
+     * @param agent the Agent that the objects were retrieved from.
+     * @param classId the SchemaClassId that was queried.
+     * @param objects the complete List of objects returned by the Agent.
+     */
+    public synchronized void load(final Agent agent, final SchemaClassId classId, final List<QmfConsoleData> objects)
+    {
+        long now = System.currentTimeMillis();
+        String packageName = classId.getPackageName();
+        Map<ObjectId, QmfConsoleData> previous = _classIndex.get(classKey(agent.getName(), classId.getClassName()));
+        if (previous != null)
+        {
+            for (QmfConsoleData object : new ArrayList<QmfConsoleData>(previous.values()))
+            {
+                if (packageName == null || packageName.equals(object.getSchemaClassId().getPackageName()))
+                {
+                    _objects.remove(object.getObjectId());
+                    removeFromIndex(object);
+                }
+            }
+        }
+
+        for (QmfConsoleData object : objects)
+        {
+            if (object.getObjectId() != null && object.getSchemaClassId() != null)
+            {
+                QmfConsoleData copy = object.copy();
+                _objects.put(copy.getObjectId(), new Entry(copy, now));
+                addToIndex(copy);
+            }
+        }
+
+        // Only mark the class complete if none of its objects were evicted whilst storing them.
+        if (objects.size() <= _maxSize)
+        {
+            _loaded.put(loadedKey(agent.getName(), packageName, classId.getClassName()), now);
+        }
+    }
+
+    /**
+     * Apply an update pushed by an Agent, such as a subscription indication. Deleted objects are removed.
+     *
+     * @param object the updated QmfConsoleData.
+     */
+    public synchronized void update(final QmfConsoleData object)
+    {
+        ObjectId objectId = object.getObjectId();
+        if (objectId == null || object.getSchemaClassId() == null)
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = _objects.get(objectId);
+        if (object.isDeleted())
+        {
+            if (entry != null)
+            {
+                _objects.remove(objectId);
+                removeFromIndex(entry._object);
+            }
+        }
+        else
+        {
+            QmfConsoleData merged = (entry == null) ? object.copy() : entry._object.merge(object, false);
+            _objects.put(objectId, new Entry(merged, now));
+            addToIndex(merged);
+        }
+        touchClass(object, now);
+    }
+
+    /**
+     * Apply the result of a refresh of a single object, which is only stored if the object is already cached.
+     * The lifecycle timestamps of the cached object are retained as the Agent doesn't return them.
+     *
+     * @param object the refreshed QmfConsoleData.
+     */
+    public synchronized void refresh(final QmfConsoleData object)
+    {
+        ObjectId objectId = object.getObjectId();
+        Entry entry = (objectId == null) ? null : _objects.get(objectId);
+        if (entry != null)
+        {
+            QmfConsoleData merged = entry._object.merge(object, true);
+            _objects.put(objectId, new Entry(merged, System.currentTimeMillis()));
+            addToIndex(merged);
+        }
+    }
+
+    /**
+     * Return the cached objects of a class, if all of them are cached and are no older than the maximum age.
+     *
+     * @param agent the Agent being queried.
+     * @param classId the SchemaClassId being queried.
+     * @return a List of copies of the cached objects or null if the query can't be answered from the cache.
+     */
+    public synchronized List<QmfConsoleData> getObjects(final Agent agent, final SchemaClassId classId)
+    {
+        String packageName = classId.getPackageName();
+        Long loaded = _loaded.get(loadedKey(agent.getName(), packageName, classId.getClassName()));
+        if (loaded == null || System.currentTimeMillis() - loaded > _maxAge)
+        {
+            return null;
+        }
+
+        Map<ObjectId, QmfConsoleData> objects = _classIndex.get(classKey(agent.getName(), classId.getClassName()));
+        if (objects == null)
+        {
+            return new ArrayList<QmfConsoleData>();
+        }
+
+        List<QmfConsoleData> results = new ArrayList<QmfConsoleData>(objects.size());
+        for (QmfConsoleData object : objects.values())
+        {
+            if (packageName == null || packageName.equals(object.getSchemaClassId().getPackageName()))
+            {
+                results.add(object.copy());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return a cached object, if it is no older than the maximum age.
+     *
+     * @param objectId the ObjectId being queried.
+     * @return a copy of the cached object or null if the query can't be answered from the cache.
+     */
+    public synchronized QmfConsoleData getObject(final ObjectId objectId)
+    {
+        Entry entry = _objects.get(objectId);
+        if (entry == null || System.currentTimeMillis() - entry._cachedAt > _maxAge)
+        {
+            return null;
+        }
+        return entry._object.copy();
+    }
+
+    /**
+     * Remove all of the objects belonging to an Agent, used when an Agent has expired or been restarted.
+     *
+     * @param agentName the name of the Agent.
+     */
+    public synchronized void removeAgent(final String agentName)
+    {
+        Iterator<Entry> i = _objects.values().iterator();
+        while (i.hasNext())
+        {
+            QmfConsoleData object = i.next()._object;
+            if (agentName.equals(object.getObjectId().getAgentName()))
+            {
+                removeFromIndex(object);
+                i.remove();
+            }
+        }
+
+        String prefix = agentName + "/";
+        Iterator<String> keys = _loaded.keySet().iterator();
+        while (keys.hasNext())
+        {
+            if (keys.next().startsWith(prefix))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all objects from the cache.
+     */
+    public synchronized void clear()
+    {
+        _objects.clear();
+        _classIndex.clear();
+        _loaded.clear();
+    }
+}
@@ -85,7 +85,8 @@ public class QmfConsoleData extends QmfManaged
         Map<String, String> subtypes = (Map<String, String>)m.get("_subtypes");
         _subtypes = subtypes;
 
-        setSchemaClassId(new SchemaClassId((Map)m.get("_schema_id")));
+        // Every object of a given class has an equal SchemaClassId, so they share an interned instance.
+        setSchemaClassId(new SchemaClassId((Map)m.get("_schema_id")).intern());
         setObjectId(new ObjectId((Map)m.get("_object_id")));
 
         long currentTime = System.currentTimeMillis()*1000000l;
@@ -110,6 +111,49 @@ public class QmfConsoleData extends QmfManaged
         _deleteTimestamp = rhs._deleteTimestamp;
     }
 
+    /**
+     * Returns a new QmfConsoleData holding the values of this object updated by those of rhs. This is used by
+     * the ObjectCache because an Agent's periodic updates may carry only the values that have changed.
+     * 
+     * @param rhs the QmfConsoleData holding the updated values.
+     * @param keepLifecycle if true the create and delete timestamps of this object are retained, which is needed
+     *        for the results of getObjects(ObjectId) as the ManagementAgent doesn't return them.
+     * @return the merged QmfConsoleData.
+     */
+    QmfConsoleData merge(final QmfConsoleData rhs, final boolean keepLifecycle)
+    {
+        Map<String, Object> values = new HashMap<String, Object>(_values);
+        values.putAll(rhs._values);
+
+        QmfConsoleData merged = new QmfConsoleData(new HashMap<String, Object>(), _agent);
+        merged.initialise(rhs);
+        merged._values = values;
+        Map<String, String> subtypes = (rhs._subtypes == null) ? _subtypes : rhs._subtypes;
+        merged._subtypes = (subtypes == null) ? null : new HashMap<String, String>(subtypes);
+        if (keepLifecycle)
+        {
+            merged._createTimestamp = _createTimestamp;
+            merged._deleteTimestamp = _deleteTimestamp;
+        }
+        return merged;
+    }
+
+    /**
+     * Returns a copy of this object with its own Maps of values and subtypes, so that setValue() or refresh() on
+     * one doesn't affect the other. This is used by the ObjectCache so that it never shares an instance with its
+     * callers. Values that are themselves Maps or Lists are shared.
+     * 
+     * @return the copy of this QmfConsoleData.
+     */
+    QmfConsoleData copy()
+    {
+        QmfConsoleData copy = new QmfConsoleData(new HashMap<String, Object>(), _agent);
+        copy.initialise(this);
+        copy._values = new HashMap<String, Object>(_values);
+        copy._subtypes = (_subtypes == null) ? null : new HashMap<String, String>(_subtypes);
+        return copy;
+    }
+
     /**
      * Return a list of timestamps describing the lifecycle of the object.
      * @return a list of timestamps describing the lifecycle of the object.
@@ -0,0 +1,449 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// Misc Imports
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.SchemaClass;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+import org.apache.qpid.qmf2.common.SchemaEventClass;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+
+// Reuse this class as it provides a handy mechanism to encode and decode Maps in the same way as the wire format.
+import org.apache.qpid.transport.codec.BBDecoder;
+import org.apache.qpid.transport.codec.BBEncoder;
+
+/**
+ * A persistent on-disk cache of the schema retrieved from Agents, enabled via Console.enableSchemaCache().
+ * <p>
+ * Each time a Console is started it discovers the broker Agent (and any other Agents) and then retrieves the list
+ * of classes and the schema of each class from each Agent, which takes a number of round trips that can dominate
+ * the run time of short lived command line tools. The SchemaCache records the results of these queries in a file
+ * so that subsequent Consoles can skip them when nothing has changed:
+ * <pre>
+ * - The list of classes supported by an Agent is keyed by the Agent's name and is only returned if the Agent's
+ *   vendor, product and epoch match those recorded, so a restarted Agent is always queried for its classes.
+ * - Schema are keyed by SchemaClassId, which includes the schema hash, and are shared by all Agents. A schema is
+ *   only ever returned for a SchemaClassId whose hash matches exactly, so the cached schema is validated lazily
+ *   against the class list of each Agent and a changed schema is simply retrieved from the Agent again.
+ * </pre>
+ * The file holds the same binary Map encoding that is used on the wire, preceded by a magic number, version and
+ * length. The class lists are held in a List, least recently updated first, so that the order in which Agents are
+ * discarded is retained between Consoles. It is read when the cache is first used and is rewritten (via a temporary file that is atomically renamed, so that
+ * concurrent Consoles don't see partially written files) when save() is called after new schema has been added.
+ * Only the class lists of the most recently seen Agents, and the schema they refer to, are retained.
+ */
+public final class SchemaCache
+{
+    private static final Logger _log = LoggerFactory.getLogger(SchemaCache.class);
+
+    /**
+     * The magic number ("QMFS") and version that the cache file starts with.
+     */
+    private static final int MAGIC = 0x514D4653;
+    private static final int VERSION = 2;
+
+    /**
+     * The size in bytes of the header (magic number, version and length) that precedes the encoded cache.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * The maximum number of Agents whose class lists are retained.
+     */
+    private static final int MAX_AGENTS = 256;
+
+    private final File _file;
+    private boolean _loaded = false;
+    private boolean _dirty = false;
+
+    /**
+     * The class list of each Agent keyed by Agent name, in the order in which they were last updated. Each entry
+     * is a Map holding the Agent's _vendor, _product and _epoch and the encoded SchemaClassIds of its _classes.
+     */
+    private final LinkedHashMap<String, Map<String, Object>> _agents = new LinkedHashMap<String, Map<String, Object>>()
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Map<String, Object>> eldest)
+        {
+            return size() > MAX_AGENTS;
+        }
+    };
+
+    /**
+     * The Maps received from Agents in response to schema queries keyed by SchemaClassId.
+     */
+    private final Map<SchemaClassId, List<Map>> _schema = new HashMap<SchemaClassId, List<Map>>();
+
+    /**
+     * Create a SchemaCache backed by the specified file, which need not exist yet.
+     * @param file the file used to hold the cached schema.
+     */
+    public SchemaCache(final File file)
+    {
+        _file = file;
+    }
+
+    /**
+     * Returns the file used to hold the cached schema.
+     * @return the file used to hold the cached schema.
+     */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Returns the cached list of classes supported by an Agent if the Agent's vendor, product and epoch match
+     * those that were recorded when the list was cached.
+     * @param agent the Agent whose classes we want.
+     * @return the cached list of SchemaClassIds or null if the cache doesn't hold a valid list for the Agent.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<SchemaClassId> getClasses(final Agent agent)
+    {
+        load();
+        Map<String, Object> entry = _agents.get(agent.getName());
+        if (entry == null || !matches(new QmfData(entry), agent))
+        {
+            return null;
+        }
+
+        List<Map> classes = (List<Map>)entry.get("_classes");
+        List<SchemaClassId> results = new ArrayList<SchemaClassId>(classes.size());
+        for (Map classId : classes)
+        {
+            results.add(new SchemaClassId(classId).intern());
+        }
+        return results;
+    }
+
+    /**
+     * Record the list of classes supported by an Agent. Agents that don't have an epoch aren't cached as there's no
+     * way to tell if they've been restarted since the list was cached.
+     * @param agent the Agent that was queried.
+     * @param classes the list of SchemaClassIds returned by the Agent.
+     */
+    public synchronized void putClasses(final Agent agent, final List<SchemaClassId> classes)
+    {
+        if (agent.getEpoch() == 0)
+        {
+            return;
+        }
+
+        load();
+        List<Map> encoded = new ArrayList<Map>(classes.size());
+        for (SchemaClassId classId : classes)
+        {
+            encoded.add(classId.mapEncode());
+        }
+
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put("_vendor", agent.getVendor());
+        entry.put("_product", agent.getProduct());
+        entry.put("_epoch", agent.getEpoch());
+        entry.put("_classes", encoded);
+
+        // Remove before put so that the LinkedHashMap's insertion order reflects the most recent update.
+        _agents.remove(agent.getName());
+        _agents.put(agent.getName(), entry);
+        _dirty = true;
+    }
+
+    /**
+     * Returns the cached schema for a SchemaClassId. Only SchemaClassIds that include a schema hash are cached.
+     * @param classId the SchemaClassId of the schema that we want.
+     * @return the cached schema or null if the cache doesn't hold the schema for the SchemaClassId.
+     */
+    public synchronized List<SchemaClass> getSchema(final SchemaClassId classId)
+    {
+        if (classId.getHashString() == null)
+        {
+            return null;
+        }
+
+        load();
+        List<Map> contents = _schema.get(classId);
+        if (contents == null)
+        {
+            return null;
+        }
+
+        List<SchemaClass> results = new ArrayList<SchemaClass>(contents.size());
+        for (Map content : contents)
+        {
+            SchemaClass schema = new SchemaObjectClass(content);
+            if (schema.getClassId().getType().equals("_event"))
+            {
+                schema = new SchemaEventClass(content);
+            }
+            results.add(schema);
+        }
+        return results;
+    }
+
+    /**
+     * Record the schema for a SchemaClassId.
+     * @param classId the SchemaClassId that was queried, which is ignored if it doesn't include a schema hash.
+     * @param contents the Maps returned by the Agent in response to the schema query.
+     */
+    public synchronized void putSchema(final SchemaClassId classId, final List<Map> contents)
+    {
+        if (classId.getHashString() == null || contents.isEmpty())
+        {
+            return;
+        }
+
+        load();
+        _schema.put(classId, new ArrayList<Map>(contents));
+        _dirty = true;
+    }
+
+    /**
+     * Write the cache to its file if anything has been added since it was loaded or last saved. Schema that aren't
+     * referred to by the class list of any cached Agent are discarded. Failures are logged but otherwise ignored, as
+     * the cache is purely an optimisation.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void save()
+    {
+        if (!_dirty)
+        {
+            return;
+        }
+
+        Set<SchemaClassId> referenced = new HashSet<SchemaClassId>();
+        for (Map<String, Object> entry : _agents.values())
+        {
+            for (Map classId : (List<Map>)entry.get("_classes"))
+            {
+                referenced.add(new SchemaClassId(classId));
+            }
+        }
+
+        List<Map> schema = new ArrayList<Map>(_schema.size());
+        for (Iterator<Map.Entry<SchemaClassId, List<Map>>> i = _schema.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<SchemaClassId, List<Map>> entry = i.next();
+            if (referenced.contains(entry.getKey()))
+            {
+                Map<String, Object> encoded = new HashMap<String, Object>();
+                encoded.put("_schema_id", entry.getKey().mapEncode());
+                encoded.put("_values", entry.getValue());
+                schema.add(encoded);
+            }
+            else
+            {
+                i.remove();
+            }
+        }
+
+        // The class lists are saved as a List with their Agent names, as the decoded Map wouldn't preserve the order.
+        List<Map> agents = new ArrayList<Map>(_agents.size());
+        for (Map.Entry<String, Map<String, Object>> entry : _agents.entrySet())
+        {
+            Map<String, Object> encoded = new HashMap<String, Object>(entry.getValue());
+            encoded.put("_name", entry.getKey());
+            agents.add(encoded);
+        }
+
+        Map<String, Object> cache = new HashMap<String, Object>();
+        cache.put("agents", agents);
+        cache.put("schema", schema);
+
+        File tmp = null;
+        try
+        {
+            BBEncoder encoder = new BBEncoder(65536);
+            encoder.writeMap(cache);
+            ByteBuffer buf = encoder.segment();
+            byte[] data = new byte[buf.limit()];
+            buf.get(data);
+
+            File dir = _file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists())
+            {
+                dir.mkdirs();
+            }
+
+            tmp = File.createTempFile(_file.getName(), ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            try
+            {
+                Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException amnse)
+            {
+                Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+            _dirty = false;
+        }
+        catch (IOException ioe)
+        {
+            _log.info("Failed to save schema cache {}: {}", _file, ioe.getMessage());
+        }
+        catch (RuntimeException re)
+        { // The encoder throws unchecked exceptions if it comes across a value type that it can't encode.
+            _log.info("Failed to encode schema cache {}: {}", _file, re.getMessage());
+        }
+        finally
+        {
+            if (tmp != null)
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Check that a cached Agent entry was recorded for the same vendor, product and epoch as the Agent.
+     * @param entry the cached Agent entry.
+     * @param agent the Agent.
+     * @return true if the entry is still valid for the Agent.
+     */
+    private boolean matches(final QmfData entry, final Agent agent)
+    {
+        return entry.getLongValue("_epoch") == agent.getEpoch() &&
+               entry.getStringValue("_vendor").equals(agent.getVendor()) &&
+               entry.getStringValue("_product").equals(agent.getProduct());
+    }
+
+    /**
+     * Read the cache file the first time that the cache is used. If the file is missing, corrupt or written by an
+     * incompatible version the cache simply starts off empty and the file is replaced when the cache is next saved.
+     */
+    @SuppressWarnings("unchecked")
+    private void load()
+    {
+        if (_loaded)
+        {
+            return;
+        }
+        _loaded = true;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    _log.info("Ignoring schema cache {} with unrecognised format", _file);
+                    return;
+                }
+
+                // Check the length against the file size before allocating, so a corrupt length can't exhaust memory.
+                int length = in.readInt();
+                if (length < 0 || length > _file.length() - HEADER_SIZE)
+                {
+                    _log.info("Ignoring schema cache {} with invalid length {}", _file, length);
+                    return;
+                }
+
+                byte[] data = new byte[length];
+                in.readFully(data);
+                BBDecoder decoder = new BBDecoder();
+                decoder.init(ByteBuffer.wrap(data));
+                Map<String, Object> cache = decoder.readMap();
+
+                List<Map> agents = (List<Map>)cache.get("agents");
+                if (agents != null)
+                {
+                    for (Map encoded : agents)
+                    {
+                        Map<String, Object> entry = new HashMap<String, Object>(encoded);
+                        String name = QmfData.getString(entry.remove("_name"));
+                        _agents.put(name, entry);
+                    }
+                }
+
+                List<Map> schema = (List<Map>)cache.get("schema");
+                if (schema != null)
+                {
+                    for (Map encoded : schema)
+                    {
+                        SchemaClassId classId = new SchemaClassId((Map)encoded.get("_schema_id"));
+                        _schema.put(classId, (List<Map>)encoded.get("_values"));
+                    }
+                }
+                _log.debug("Loaded {} schema from schema cache {}", _schema.size(), _file);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (FileNotFoundException fnfe)
+        { // Nothing has been cached yet.
+        }
+        catch (IOException ioe)
+        {
+            _log.info("Failed to load schema cache {}: {}", _file, ioe.getMessage());
+        }
+        catch (RuntimeException re)
+        { // Covers ClassCastExceptions and decoder failures caused by a corrupt file.
+            _log.info("Ignoring corrupt schema cache {}: {}", _file, re.getMessage());
+            _agents.clear();
+            _schema.clear();
+        }
+    }
+}
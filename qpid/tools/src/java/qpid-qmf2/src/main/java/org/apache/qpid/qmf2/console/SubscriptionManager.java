@@ -25,11 +25,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // Misc Imports
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 // QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfQuery;
 
 /** 
@@ -50,6 +55,11 @@ import org.apache.qpid.qmf2.common.QmfQuery;
  * the QmfConsoleData returned by the _data indication. Any QmfConsoleData that match the query are passed to the
  * client application with the consoleHandle of the matching Subscription.
  * <p>
+ * The ManagementAgent only pushes an object's properties when they change, the rest of its periodic pushes contain
+ * just the object's statistics, so a query whose predicate refers to properties can't be evaluated against most of
+ * the QmfConsoleData it pushes. The SubscriptionManager therefore records the ObjectIds of the objects that matched
+ * the last time their properties were seen and uses that to evaluate the query against statistics only updates.
+ * <p>
  * The following diagram illustrates the Subscription relationships with the Console and local Agent proxy.
  * <p>
  * <img alt="" src="doc-files/Subscriptions.png">
@@ -70,6 +80,12 @@ public final class SubscriptionManager extends TimerTask
     private long     _interval = 0;
     private boolean  _waiting = true;
 
+    /**
+     * The ObjectIds of the objects that matched the query the last time that their properties were evaluated.
+     */
+    private final Set<ObjectId> _matchedObjects =
+        Collections.newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>());
+
     /**
      * Construct a Console side proxy of a Subscription. Primarily to manage references to the Subscription.
      *
@@ -236,6 +252,64 @@ public final class SubscriptionManager extends TimerTask
         return _query;
     }
 
+    /**
+     * Evaluate the Subscription's QmfQuery against an object pushed by an Agent whose Subscriptions are emulated.
+     * <p>
+     * If the object contains all of the properties that the query's predicate refers to the query is evaluated
+     * and the result recorded against its ObjectId, otherwise the object is a statistics only update and matches
+     * if its properties matched the last time they were evaluated.
+     * @param object the QmfConsoleData pushed by the Agent.
+     * @return true if the object matches the Subscription's QmfQuery, else false.
+     */
+    public boolean evaluate(final QmfConsoleData object)
+    {
+        if (_query.getPredicate() == null)
+        {
+            return _query.evaluate(object);
+        }
+
+        ObjectId objectId = object.getObjectId();
+        boolean matches;
+        if (_query.canEvaluate(object))
+        {
+            matches = _query.evaluate(object);
+            if (matches)
+            {
+                _matchedObjects.add(objectId);
+            }
+            else
+            {
+                _matchedObjects.remove(objectId);
+            }
+        }
+        else
+        {
+            matches = _matchedObjects.contains(objectId);
+        }
+
+        if (object.isDeleted())
+        {
+            _matchedObjects.remove(objectId);
+        }
+        return matches;
+    }
+
+    /**
+     * Evaluate the Subscription's QmfQuery against the current state of the objects that it may match, so that
+     * statistics only updates of objects whose properties don't change can be evaluated by evaluate().
+     * @param objects the current state of the objects retrieved from the Agent.
+     */
+    public void addMatchedObjects(final List<QmfConsoleData> objects)
+    {
+        for (QmfConsoleData object : objects)
+        {
+            if (_query.getPredicate() != null && _query.canEvaluate(object) && _query.evaluate(object))
+            {
+                _matchedObjects.add(object.getObjectId());
+            }
+        }
+    }
+
     /**
      * Create a Map encoded version.
      * <p>